@@ -1,19 +1,71 @@
 package place;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 /**
  * The board is the place that holds the colored tiles.  The server creates
  * the initial ClientModel and then transmits it only once to each client that
  * successfully logs in to the server.
  *
+ * The tiles are not stored as objects.  Each cell is a color number, an owner
+ * id from a {@link UserTable} and a time, so a cell costs 13 bytes and no
+ * garbage.  PlaceTile objects are only made when someone asks for one.
+ *
+ * The cells are kept in square chunks of CHUNK_SIZE by CHUNK_SIZE that are
+ * only made the first time something is written into them.  Until then a
+ * chunk reads as white tiles owned by nobody at time 0, so a huge board that
+ * is mostly untouched costs little memory and nothing to create.  Each chunk
+ * also remembers whether it has been written since its dirty flag was last
+ * cleared, so a copy of the board can be brought up to date by copying only
+ * the chunks that changed.
+ *
+ * Chunks are made under a lock; reading and writing cells takes none, so
+ * callers that need more than that (e.g. the server) lock around it.
+ *
  * @author Sean Strout @ RIT CS
  */
 public class PlaceBoard implements Serializable {
+    private static final long serialVersionUID = 8001832296626478871L;
+
+    /** Side of a chunk, as a shift */
+    public static final int CHUNK_SHIFT = 6;
+    /** Side of a chunk */
+    public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final byte WHITE = (byte) PlaceColor.WHITE.getNumber();
+
+    /**
+     * CHUNK_SIZE by CHUNK_SIZE cells, row by row.  Chunks on the right and
+     * bottom edges are full size and the part off the board is never used.
+     */
+    private static class Chunk implements Serializable {
+        private static final long serialVersionUID = -6231179731449400291L;
+
+        /** The color number of each cell */
+        final byte[] colors = new byte[CHUNK_SIZE * CHUNK_SIZE];
+        /** The owner id of each cell */
+        final int[] owners = new int[CHUNK_SIZE * CHUNK_SIZE];
+        /** The time each cell was changed */
+        final long[] times = new long[CHUNK_SIZE * CHUNK_SIZE];
+        /** Written since the flag was last cleared */
+        boolean dirty;
+
+        Chunk() {
+            Arrays.fill(colors, WHITE);
+        }
+    }
+
     /** The square dimension of the board */
     public final int DIM;
-    /** The grid of tiles */
-    private PlaceTile[][] board;
+    /** Chunks along one side of the board */
+    private final int chunks;
+    /** The chunks row by row, or null for ones never written */
+    private final Chunk[] grid;
+    /** The number of chunks made */
+    private int allocated;
+    /** The names behind the owner ids */
+    private final UserTable users;
 
     /**
      * Create a new board of all white tiles.
@@ -21,27 +73,47 @@ public class PlaceBoard implements Serializable {
      * @param DIM the square dimension of the board
      */
     public PlaceBoard(int DIM) {
-        this.DIM = DIM;
-        this.board = new PlaceTile[DIM][DIM];
-        for (int row=0; row<DIM; ++row) {
-            for (int col=0; col<DIM; ++col) {
-                this.board[row][col] =
-                        new PlaceTile(row, col, "", PlaceColor.WHITE);
-            }
+        this(DIM, new UserTable());
+    }
+
+    /**
+     * Create a new board of all white tiles whose owners are interned in
+     * an existing table.
+     *
+     * @param DIM the square dimension of the board
+     * @param users the table of owner names
+     * @throws IllegalArgumentException if the board is too big to index
+     */
+    public PlaceBoard(int DIM, UserTable users) {
+        long chunks = ((long) DIM + CHUNK_MASK) >> CHUNK_SHIFT;
+        if (DIM < 0 || chunks * chunks > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Bad board dimension " + DIM);
         }
+        this.DIM = DIM;
+        this.chunks = (int) chunks;
+        this.grid = new Chunk[(int) (chunks * chunks)];
+        this.users = users;
     }
 
     /**
-     * Get the entire board.
+     * Get the entire board.  The tiles are copies; changing them does not
+     * change the board.
      *
      * @return the board
      */
     public PlaceTile[][] getBoard() {
-        return this.board;
+        PlaceTile[][] board = new PlaceTile[DIM][DIM];
+        for (int row=0; row<DIM; ++row) {
+            for (int col=0; col<DIM; ++col) {
+                board[row][col] = getTile(row, col);
+            }
+        }
+        return board;
     }
 
     /**
-     * Get a tile on the board
+     * Get a tile on the board.  The tile is a copy; changing it does not
+     * change the board.
      *
      * @param row row
      * @param col column
@@ -49,7 +121,54 @@ public class PlaceBoard implements Serializable {
      * @return the tile
      */
     public PlaceTile getTile(int row, int col){
-        return this.board[row][col];
+        return new PlaceTile(row, col, users.nameOf(getOwnerId(row, col)),
+                getColor(row, col), getTime(row, col));
+    }
+
+    /**
+     * Get the color of a tile without making a tile object.
+     *
+     * @param row row
+     * @param col column
+     * @rit.pre row and column constitute a valid board coordinate
+     * @return the color
+     */
+    public PlaceColor getColor(int row, int col) {
+        Chunk chunk = grid[chunkOf(row, col)];
+        return PlaceColor.fromNumber(chunk == null ? WHITE : chunk.colors[cellOf(row, col)]);
+    }
+
+    /**
+     * Get the owner id of a tile without making a tile object.
+     *
+     * @param row row
+     * @param col column
+     * @rit.pre row and column constitute a valid board coordinate
+     * @return the owner's id in {@link #getUsers()}
+     */
+    public int getOwnerId(int row, int col) {
+        Chunk chunk = grid[chunkOf(row, col)];
+        return chunk == null ? UserTable.NOBODY : chunk.owners[cellOf(row, col)];
+    }
+
+    /**
+     * Get the time a tile was changed without making a tile object.
+     *
+     * @param row row
+     * @param col column
+     * @rit.pre row and column constitute a valid board coordinate
+     * @return the time
+     */
+    public long getTime(int row, int col) {
+        Chunk chunk = grid[chunkOf(row, col)];
+        return chunk == null ? 0 : chunk.times[cellOf(row, col)];
+    }
+
+    /**
+     * @return the table of owner names
+     */
+    public UserTable getUsers() {
+        return this.users;
     }
 
     /**
@@ -59,7 +178,109 @@ public class PlaceBoard implements Serializable {
      * @rit.pre row and column constitute a valid board coordinate
      */
     public void setTile(PlaceTile tile) {
-        this.board[tile.getRow()][tile.getCol()] = tile;
+        setTile(tile.getRow(), tile.getCol(), tile.getColor().getNumber(),
+                users.idOf(tile.getOwner()), tile.getTime());
+    }
+
+    /**
+     * Change a tile in the board without making a tile object.  Writing an
+     * untouched tile into a chunk that was never written leaves the chunk
+     * unmade.
+     *
+     * @param row row
+     * @param col column
+     * @param color the color number
+     * @param owner the owner's id in {@link #getUsers()}
+     * @param time the time of the change
+     * @rit.pre row and column constitute a valid board coordinate
+     */
+    public void setTile(int row, int col, int color, int owner, long time) {
+        int index = chunkOf(row, col);
+        Chunk chunk = grid[index];
+        if (chunk == null) {
+            if (color == WHITE && owner == UserTable.NOBODY && time == 0) return;
+            chunk = allocate(index);
+        }
+        int cell = cellOf(row, col);
+        chunk.colors[cell] = (byte) color;
+        chunk.owners[cell] = owner;
+        chunk.times[cell] = time;
+        chunk.dirty = true;
+    }
+
+    /**
+     * @return the number of chunks along one side of the board
+     */
+    public int getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return the number of chunks that have been written and take memory
+     */
+    public synchronized int getAllocatedChunks() {
+        return allocated;
+    }
+
+    /**
+     * @param chunkRow the row of the chunk, counted in chunks
+     * @param chunkCol the column of the chunk, counted in chunks
+     * @return whether anything was ever written into the chunk
+     */
+    public boolean isAllocated(int chunkRow, int chunkCol) {
+        return grid[chunkRow * chunks + chunkCol] != null;
+    }
+
+    /**
+     * Clear a chunk's dirty flag.  The flag is not synchronized: the caller
+     * must hold whatever the writers of the chunk hold while they write.
+     *
+     * @param chunkRow the row of the chunk, counted in chunks
+     * @param chunkCol the column of the chunk, counted in chunks
+     * @return whether the chunk was written since its flag was last cleared
+     */
+    public boolean clearDirty(int chunkRow, int chunkCol) {
+        Chunk chunk = grid[chunkRow * chunks + chunkCol];
+        if (chunk == null || !chunk.dirty) return false;
+        chunk.dirty = false;
+        return true;
+    }
+
+    /**
+     * Copy one row of a chunk.  A chunk that was never written copies as
+     * untouched tiles.  Like other reads this takes no lock.
+     *
+     * @param chunkRow the row of the chunk, counted in chunks
+     * @param chunkCol the column of the chunk, counted in chunks
+     * @param row the row within the chunk
+     * @param colors where to copy CHUNK_SIZE color numbers
+     * @param owners where to copy CHUNK_SIZE owner ids
+     * @param times where to copy CHUNK_SIZE times
+     */
+    public void copyChunkRow(int chunkRow, int chunkCol, int row, byte[] colors, int[] owners, long[] times) {
+        Chunk chunk = grid[chunkRow * chunks + chunkCol];
+        if (chunk == null) {
+            Arrays.fill(colors, 0, CHUNK_SIZE, WHITE);
+            Arrays.fill(owners, 0, CHUNK_SIZE, UserTable.NOBODY);
+            Arrays.fill(times, 0, CHUNK_SIZE, 0);
+            return;
+        }
+        int from = row << CHUNK_SHIFT;
+        System.arraycopy(chunk.colors, from, colors, 0, CHUNK_SIZE);
+        System.arraycopy(chunk.owners, from, owners, 0, CHUNK_SIZE);
+        System.arraycopy(chunk.times, from, times, 0, CHUNK_SIZE);
+    }
+
+    /**
+     * Get the position of a cell when the board is laid out row by row,
+     * without overflowing on huge boards.
+     *
+     * @param row row
+     * @param col column
+     * @return row * DIM + col
+     */
+    public long indexOf(int row, int col) {
+        return (long) row * DIM + col;
     }
 
     /**
@@ -82,13 +303,33 @@ public class PlaceBoard implements Serializable {
      */
     @Override
     public String toString() {
-        StringBuilder builder = new StringBuilder("");
+        StringBuilder builder = new StringBuilder(DIM * (DIM + 1));
         for (int row=0; row<DIM; ++row) {
             builder.append("\n");
             for (int col=0; col<DIM; ++col) {
-                builder.append(this.board[row][col].getColor());
+                builder.append(Character.toUpperCase(Character.forDigit(getColor(row, col).getNumber(), 16)));
             }
         }
         return builder.toString();
     }
+
+    /**
+     * Make a chunk unless another writer just did.
+     */
+    private synchronized Chunk allocate(int index) {
+        Chunk chunk = grid[index];
+        if (chunk == null) {
+            chunk = grid[index] = new Chunk();
+            allocated++;
+        }
+        return chunk;
+    }
+
+    private int chunkOf(int row, int col) {
+        return (row >> CHUNK_SHIFT) * chunks + (col >> CHUNK_SHIFT);
+    }
+
+    private static int cellOf(int row, int col) {
+        return ((row & CHUNK_MASK) << CHUNK_SHIFT) | (col & CHUNK_MASK);
+    }
 }
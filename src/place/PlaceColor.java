@@ -29,6 +29,15 @@ public enum PlaceColor implements Serializable {
     /** Yes, there are 16 colors */
     public final static int TOTAL_COLORS = 16;
 
+    /** The colors indexed by number */
+    private final static PlaceColor[] BY_NUMBER = new PlaceColor[TOTAL_COLORS];
+
+    static {
+        for (PlaceColor color : values()) {
+            BY_NUMBER[color.number] = color;
+        }
+    }
+
     /** The color name */
     private String name;
     /** Red intensity, 0-255 */
@@ -94,6 +103,15 @@ public enum PlaceColor implements Serializable {
      */
     public int getNumber() { return this.number; }
 
+    /**
+     * Get the color with a number.
+     *
+     * @param number the color number, 0-15
+     * @return the color
+     * @rit.pre number is in the range 0-15
+     */
+    public static PlaceColor fromNumber(int number) { return BY_NUMBER[number]; }
+
     /**
      * Returns the hex string for the color number, 0-F.
      *
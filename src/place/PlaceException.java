@@ -6,6 +6,8 @@ package place;
  * @author Sean Strout @ RIT CS
  */
 public class PlaceException extends Exception {
+    private static final long serialVersionUID = -2382288655205699363L;
+
     /**
      * Convenience constructor to create a new {@link PlaceException}
      * with an error message.
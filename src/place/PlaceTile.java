@@ -9,6 +9,8 @@ import java.io.Serializable;
  * @author Sean Strout @ RIT CS
  */
 public class PlaceTile implements Serializable {
+    private static final long serialVersionUID = -507145776981425850L;
+
     /** the row */
     private int row;
     /** the column */
@@ -0,0 +1,101 @@
+package place;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns usernames as small integer ids so that tiles can refer to their
+ * owner with a number instead of a String.  Id 0 is always the empty name
+ * that untouched tiles are owned by.  Lookups are lock free; only adding a
+ * new name takes a lock.
+ *
+ * @author Michael Jansen
+ */
+public class UserTable implements Serializable {
+    private static final long serialVersionUID = -2871160707824918326L;
+
+    /** The id of the empty owner of untouched tiles */
+    public static final int NOBODY = 0;
+
+    /** name to id */
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    /** id to name */
+    private volatile String[] names = new String[16];
+    /** number of ids handed out */
+    private volatile int size;
+
+    /**
+     * Create a table that only knows the empty name.
+     */
+    public UserTable() {
+        define(NOBODY, "");
+    }
+
+    /**
+     * Get the id of a name, adding the name if it is new.
+     *
+     * @param name the username (null is treated as the empty name)
+     * @return the id
+     */
+    public int idOf(String name) {
+        if (name == null) return NOBODY;
+        Integer id = ids.get(name);
+        return id != null ? id : add(name);
+    }
+
+    /**
+     * Get the name with an id.
+     *
+     * @param id the id
+     * @return the name, or null if the id is unknown
+     */
+    public String nameOf(int id) {
+        String[] names = this.names;
+        if (id >= 0 && id < names.length && names[id] != null) {
+            return names[id];
+        }
+        synchronized (this) {
+            return id >= 0 && id < this.names.length ? this.names[id] : null;
+        }
+    }
+
+    /**
+     * Record a name under an id chosen by someone else, e.g. the server.
+     *
+     * @param id the id
+     * @param name the name
+     */
+    public synchronized void define(int id, String name) {
+        String[] names = this.names;
+        if (id >= names.length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, id + 1));
+        }
+        names[id] = name;
+        this.names = names;
+        this.ids.put(name, id);
+        this.size = Math.max(this.size, id + 1);
+    }
+
+    /**
+     * @return one more than the largest id in the table
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Hand out the next id for a new name.
+     *
+     * @param name the name
+     * @return its id
+     */
+    private synchronized int add(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        int next = this.size;
+        define(next, name);
+        return next;
+    }
+}
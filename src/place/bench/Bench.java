@@ -0,0 +1,182 @@
+package place.bench;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A small harness for timing one operation the way JMH would: the operation
+ * is run in a loop for some warm up iterations that are thrown away and then
+ * for some measured iterations of fixed length, and the result is the mean
+ * time per operation with a 99.9% confidence interval over the measured
+ * iterations.  Values the operation returns are folded into a sink that is
+ * printed at the end, so the JIT cannot throw the work away.
+ *
+ * Every benchmark uses fixed random seeds, so results from different commits
+ * measure the same work.  The harness is set with system properties:
+ * <pre>
+ *   bench.warmup      warm up iterations (5)
+ *   bench.iterations  measured iterations (10)
+ *   bench.millis      milliseconds per iteration (200)
+ *   bench.filter      regular expression; only benchmarks whose name matches run
+ *   bench.out         CSV file the results are appended to
+ *   bench.baseline    CSV file from an earlier run to compare the results with
+ * </pre>
+ *
+ * @author Michael Jansen
+ */
+public class Bench {
+    /**
+     * The operation being measured
+     */
+    public interface Operation {
+        /**
+         * Run the operation once.
+         *
+         * @param i the number of the run, counting from 0 across iterations
+         * @return anything the operation computed, so it is not optimized away
+         * @throws Exception if the operation fails, which ends the benchmark
+         */
+        Object run(long i) throws Exception;
+    }
+
+    /** Shortest time between looks at the clock, so reading it costs little */
+    private static final long BATCH_NANOS = 10_000;
+    /** Two sided 99.9% quantile of the normal distribution */
+    private static final double Z = 3.29;
+
+    private static final int WARMUP = Integer.getInteger("bench.warmup", 5);
+    private static final int ITERATIONS = Math.max(2, Integer.getInteger("bench.iterations", 10));
+    private static final long MILLIS = Integer.getInteger("bench.millis", 200);
+    private static final Pattern FILTER = Pattern.compile(System.getProperty("bench.filter", ".*"));
+    private static final Map<String, Double> BASELINE = readBaseline(System.getProperty("bench.baseline"));
+    private static long sink;
+    private static boolean header;
+
+    /**
+     * Measure an operation and print the result.
+     *
+     * @param name the benchmark name, e.g. "board.setTile"
+     * @param params what the benchmark was run with, e.g. "dim=512"
+     * @param operation the operation
+     */
+    public static void measure(String name, String params, Operation operation) {
+        if (!FILTER.matcher(name).find()) return;
+        if (!header) {
+            System.out.printf("%-28s %-22s %14s %10s %14s%n", "benchmark", "params", "ns/op", "error", "ops/s");
+            header = true;
+        }
+        try {
+            // run number, operations per batch
+            long[] state = {0, 1};
+            for (int i = 0; i < WARMUP; i++) {
+                iteration(operation, state, null);
+            }
+            double[] nanos = new double[ITERATIONS];
+            for (int i = 0; i < ITERATIONS; i++) {
+                long[] done = new long[2];
+                iteration(operation, state, done);
+                nanos[i] = (double) done[1] / done[0];
+            }
+            report(name, params, nanos);
+        } catch (Exception e) {
+            System.out.printf("%-28s %-22s failed: %s%n", name, params, e);
+        }
+    }
+
+    /**
+     * Print the sink, so the work of every benchmark was used for something.
+     */
+    public static void finish() {
+        System.out.println("(sink " + sink + ")");
+    }
+
+    /**
+     * Run an operation for one iteration.  Operations are run in batches
+     * between looks at the clock, and batches grow until they take a while.
+     *
+     * @param state the number of the next run and the batch size, both updated
+     * @param done where to store the operations run and the nanoseconds they took, or null
+     */
+    private static void iteration(Operation operation, long[] state, long[] done) throws Exception {
+        long hash = 0;
+        long run = state[0];
+        long batch = state[1];
+        long start = System.nanoTime();
+        long end = start + MILLIS * 1_000_000;
+        long last = start;
+        long now;
+        long count = 0;
+        do {
+            for (long i = 0; i < batch; i++) {
+                Object result = operation.run(run++);
+                if (result != null) hash += result.hashCode();
+            }
+            count += batch;
+            now = System.nanoTime();
+            if (now - last < BATCH_NANOS) batch *= 2;
+            last = now;
+        } while (now < end);
+        sink += hash;
+        state[0] = run;
+        state[1] = batch;
+        if (done != null) {
+            done[0] = count;
+            done[1] = now - start;
+        }
+    }
+
+    private static void report(String name, String params, double[] nanos) {
+        double mean = 0;
+        for (double n : nanos) mean += n;
+        mean /= nanos.length;
+        double variance = 0;
+        for (double n : nanos) variance += (n - mean) * (n - mean);
+        double error = Z * Math.sqrt(variance / (nanos.length - 1)) / Math.sqrt(nanos.length);
+
+        String key = name + "," + params;
+        Double before = BASELINE.get(key);
+        System.out.printf("%-28s %-22s %14.1f %9.1f%% %14.0f%s%n", name, params, mean,
+                100 * error / mean, 1e9 / mean,
+                before == null ? "" : String.format("  %+.1f%% vs baseline", 100 * (mean - before) / before));
+
+        String out = System.getProperty("bench.out");
+        if (out == null) return;
+        Path path = Paths.get(out);
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+            if (Files.size(path) == 0) writer.println("benchmark,params,ns/op,error");
+            writer.printf(Locale.ROOT, "%s,%.3f,%.3f%n", key, mean, error);
+        } catch (IOException e) {
+            System.err.println("Cannot write " + out + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read the mean ns/op of each benchmark in a results file.  Later lines
+     * win, so a file appended to by several runs compares with the newest.
+     */
+    private static Map<String, Double> readBaseline(String file) {
+        Map<String, Double> baseline = new HashMap<>();
+        if (file == null) return baseline;
+        try {
+            List<String> lines = Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+            for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+                String[] fields = line.split(",");
+                if (fields.length == 4) baseline.put(fields[0] + "," + fields[1], Double.parseDouble(fields[2]));
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Cannot read baseline " + file + ": " + e.getMessage());
+        }
+        return baseline;
+    }
+}
@@ -0,0 +1,26 @@
+package place.bench;
+
+/**
+ * Runs every benchmark in the suite, so a whole run can be saved with
+ * bench.out and compared with a run from another commit with bench.baseline:
+ * <pre>
+ *   java -Dbench.out=before.csv place.bench.Benchmarks
+ *   (change something)
+ *   java -Dbench.baseline=before.csv place.bench.Benchmarks
+ * </pre>
+ * Use bench.filter to run some of them, e.g. -Dbench.filter=^codec.
+ * {@link CommitBenchmark}, which measures scaling with threads instead of
+ * one operation, is run on its own.
+ *
+ * @author Michael Jansen
+ */
+public class Benchmarks {
+    public static void main(String[] args) throws Exception {
+        BoardBenchmark.run();
+        CodecBenchmark.run();
+        StatisticsBenchmark.run();
+        ServerBenchmark.run();
+        Bench.finish();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,75 @@
+package place.bench;
+
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+import java.util.Random;
+
+/**
+ * Times reading and writing tiles of a PlaceBoard, and printing it, at
+ * several board sizes.  The cells are chosen at random ahead of time.
+ *
+ * Usage: java place.bench.BoardBenchmark (see {@link Bench} for the settings)
+ *
+ * @author Michael Jansen
+ */
+public class BoardBenchmark {
+    /** Board sizes measured */
+    private static final int[] DIMS = {64, 512, 4096};
+    /** Tiles prepared ahead of time, a power of two */
+    private static final int TILES = 1 << 16;
+
+    public static void main(String[] args) {
+        run();
+        Bench.finish();
+    }
+
+    /**
+     * Run every board benchmark
+     */
+    static void run() {
+        for (int dim : DIMS) {
+            PlaceBoard board = new PlaceBoard(dim);
+            PlaceTile[] tiles = tiles(dim, 1);
+            Bench.measure("board.setTile", "dim=" + dim, i -> {
+                board.setTile(tiles[(int) (i & (TILES - 1))]);
+                return null;
+            });
+            Bench.measure("board.getTile", "dim=" + dim, i -> {
+                PlaceTile tile = tiles[(int) (i & (TILES - 1))];
+                return board.getTile(tile.getRow(), tile.getCol());
+            });
+            Bench.measure("board.getColor", "dim=" + dim, i -> {
+                PlaceTile tile = tiles[(int) (i & (TILES - 1))];
+                return board.getColor(tile.getRow(), tile.getCol());
+            });
+            if (dim <= 512) {
+                Bench.measure("board.toString", "dim=" + dim, i -> board.toString());
+            }
+        }
+        // A board too big to allocate whole, written in one corner
+        PlaceBoard huge = new PlaceBoard(100_000);
+        PlaceTile[] corner = tiles(1024, 2);
+        Bench.measure("board.setTile", "dim=100000", i -> {
+            huge.setTile(corner[(int) (i & (TILES - 1))]);
+            return null;
+        });
+    }
+
+    /**
+     * Make random tiles, owned by a few hundred users.
+     *
+     * @param dim the cells are in [0, dim)
+     * @param seed the random seed
+     * @return TILES tiles
+     */
+    static PlaceTile[] tiles(int dim, long seed) {
+        Random random = new Random(seed);
+        PlaceTile[] tiles = new PlaceTile[TILES];
+        for (int i = 0; i < TILES; i++) {
+            tiles[i] = new PlaceTile(random.nextInt(dim), random.nextInt(dim), "user" + random.nextInt(300),
+                    PlaceColor.fromNumber(random.nextInt(PlaceColor.TOTAL_COLORS)), 1_500_000_000_000L + i);
+        }
+        return tiles;
+    }
+}
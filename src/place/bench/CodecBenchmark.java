@@ -0,0 +1,104 @@
+package place.bench;
+
+import place.PlaceBoard;
+import place.PlaceTile;
+import place.UserTable;
+import place.network.BoardSnapshot;
+import place.network.FrameBuffer;
+import place.network.PlaceExchange;
+import place.network.PlaceRequest;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Times encoding and decoding PlaceRequests holding PlaceTiles with both
+ * codecs, and encoding and decoding a whole board.  Every user name has
+ * already been sent once on the exchange being measured, as it would have
+ * been on a connection that has been up a while.
+ *
+ * Usage: java place.bench.CodecBenchmark (see {@link Bench} for the settings)
+ *
+ * @author Michael Jansen
+ */
+public class CodecBenchmark {
+    /** Tiles in a TILES_CHANGED */
+    private static final int BATCH = 64;
+    /** Requests prepared ahead of time, a power of two */
+    private static final int REQUESTS = 1 << 12;
+
+    public static void main(String[] args) throws IOException {
+        run();
+        Bench.finish();
+    }
+
+    /**
+     * Run every codec benchmark
+     */
+    static void run() throws IOException {
+        PlaceTile[] tiles = BoardBenchmark.tiles(1000, 3);
+        for (PlaceExchange.Codec codec : PlaceExchange.Codec.values()) {
+            String params = "codec=" + codec.name().toLowerCase();
+            request("codec.changeTile", params, codec, i ->
+                    new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE, tiles[i]));
+            request("codec.tileChanged", params, codec, i ->
+                    new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED, tiles[i]));
+            request("codec.tilesChanged", params + " tiles=" + BATCH, codec, i ->
+                    new PlaceRequest<>(PlaceRequest.RequestType.TILES_CHANGED,
+                            Arrays.copyOfRange(tiles, i * BATCH % tiles.length, i * BATCH % tiles.length + BATCH)));
+        }
+
+        PlaceBoard board = new PlaceBoard(512);
+        for (PlaceTile tile : BoardBenchmark.tiles(512, 4)) {
+            board.setTile(tile);
+        }
+        Bench.measure("codec.snapshot.encode", "dim=512", i -> BoardSnapshot.of(board, i));
+        byte[] snapshot = BoardSnapshot.of(board, 0).getBytes();
+        Bench.measure("codec.snapshot.decode", "dim=512", i ->
+                BoardSnapshot.decode(new ByteArrayInputStream(snapshot), new UserTable()));
+    }
+
+    /**
+     * Make the i-th request of a benchmark
+     */
+    private interface RequestMaker {
+        PlaceRequest<?> make(int i);
+    }
+
+    /**
+     * Time encoding and decoding one kind of request.
+     */
+    private static void request(String name, String params, PlaceExchange.Codec codec, RequestMaker maker)
+            throws IOException {
+        PlaceRequest<?>[] requests = new PlaceRequest<?>[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            requests[i] = maker.make(i);
+        }
+        PlaceExchange sender = new PlaceExchange(codec, new UserTable());
+        PlaceExchange receiver = new PlaceExchange(codec, new UserTable());
+        FrameBuffer out = new FrameBuffer(64 * 1024);
+        // The first time round carries the names, which the receiver has to see once
+        for (PlaceRequest<?> request : requests) {
+            out.reset();
+            sender.encode(request, out);
+            receiver.decode(payload(out));
+        }
+        byte[][] payloads = new byte[REQUESTS][];
+        for (int i = 0; i < REQUESTS; i++) {
+            out.reset();
+            sender.encode(requests[i], out);
+            payloads[i] = payload(out);
+        }
+
+        Bench.measure(name + ".encode", params, i -> {
+            out.reset();
+            sender.encode(requests[(int) (i & (REQUESTS - 1))], out);
+            return out.size();
+        });
+        Bench.measure(name + ".decode", params, i -> receiver.decode(payloads[(int) (i & (REQUESTS - 1))]));
+    }
+
+    private static byte[] payload(FrameBuffer frame) {
+        return Arrays.copyOfRange(frame.toByteBuffer().array(), PlaceExchange.HEADER_SIZE, frame.size());
+    }
+}
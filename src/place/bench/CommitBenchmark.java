@@ -0,0 +1,77 @@
+package place.bench;
+
+import place.PlaceColor;
+import place.PlaceTile;
+import place.server.PlaceServer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how many placements per second PlaceServer.updateTile commits as
+ * more threads place tiles at once.  Each thread places tiles at random cells
+ * of the board, so most of the time the threads are writing to unrelated
+ * regions.
+ *
+ * Usage: java place.bench.CommitBenchmark [DIM] [maxThreads] [millis]
+ *
+ * @author Michael Jansen
+ */
+public class CommitBenchmark {
+    /** Tiles prepared per thread ahead of time */
+    private static final int TILES = 1 << 16;
+
+    public static void main(String[] args) throws InterruptedException {
+        int dim = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors() * 2;
+        int millis = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        PlaceServer server = new PlaceServer(0, dim);
+        System.out.println("threads  placements/s");
+        run(server, dim, maxThreads, millis / 2);   // warm up
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            System.out.printf("%7d  %12.0f%n", threads, run(server, dim, threads, millis));
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Have some threads place tiles for a while.
+     *
+     * @param server the server to place on
+     * @param dim the board dimension
+     * @param threads the number of threads placing tiles
+     * @param millis how long to place tiles for
+     * @return placements per second across all threads
+     */
+    private static double run(PlaceServer server, int dim, int threads, int millis) throws InterruptedException {
+        AtomicBoolean go = new AtomicBoolean(true);
+        LongAdder placed = new LongAdder();
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            Random random = new Random(t);
+            PlaceTile[] tiles = new PlaceTile[TILES];
+            for (int i = 0; i < TILES; i++) {
+                tiles[i] = new PlaceTile(random.nextInt(dim), random.nextInt(dim), "bench" + t,
+                        PlaceColor.fromNumber(random.nextInt(PlaceColor.TOTAL_COLORS)), i);
+            }
+            new Thread(() -> {
+                ready.countDown();
+                long count = 0;
+                while (go.get()) {
+                    server.updateTile(tiles[(int) (count++ & (TILES - 1))]);
+                }
+                placed.add(count);
+                done.countDown();
+            }).start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        Thread.sleep(millis);
+        go.set(false);
+        done.await();
+        return placed.sum() / ((System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,98 @@
+package place.bench;
+
+import place.UserTable;
+import place.network.FrameBuffer;
+import place.network.PlaceExchange;
+import place.network.PlaceRequest;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Clients that log in to a server and then read everything it sends them
+ * and throw it away, so a benchmark can make the server broadcast to real
+ * sockets without running real clients.  One thread reads for all of them.
+ *
+ * @author Michael Jansen
+ */
+class FakeClients implements AutoCloseable {
+    private final List<SocketChannel> channels = new ArrayList<>();
+    private final Selector selector;
+    private final Thread reader;
+    private volatile boolean running = true;
+
+    /**
+     * Connect and log in some clients.
+     *
+     * @param port the server's port on this machine
+     * @param count the number of clients
+     * @param prefix the start of their usernames, which must not be logged in already
+     * @throws IOException if a client cannot connect
+     */
+    FakeClients(int port, int count, String prefix) throws IOException {
+        this.selector = Selector.open();
+        for (int i = 0; i < count; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+            FrameBuffer login = new FrameBuffer(64);
+            new PlaceExchange(PlaceExchange.Codec.BINARY, new UserTable())
+                    .encode(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, prefix + i), login);
+            ByteBuffer bytes = login.toByteBuffer();
+            while (bytes.hasRemaining()) channel.write(bytes);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            channels.add(channel);
+        }
+        this.reader = new Thread(this::read, "fake-clients");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /**
+     * @return the number of clients
+     */
+    int size() {
+        return channels.size();
+    }
+
+    /**
+     * Read and drop whatever arrives until closed.
+     */
+    private void read() {
+        ByteBuffer scratch = ByteBuffer.allocateDirect(256 * 1024);
+        try {
+            while (running) {
+                selector.select(100);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    scratch.clear();
+                    if (((SocketChannel) key.channel()).read(scratch) < 0) key.cancel();
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            if (running) e.printStackTrace();
+        }
+    }
+
+    /**
+     * Disconnect every client
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        selector.close();
+    }
+}
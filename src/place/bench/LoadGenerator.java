@@ -0,0 +1,509 @@
+package place.bench;
+
+import place.PlaceBoard;
+import place.PlaceTile;
+import place.UserTable;
+import place.network.PlaceExchange;
+import place.network.PlaceRequest;
+import place.server.PlaceServer;
+import place.server.ServerMetrics;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Puts a server under the load of thousands of clients from one process, and
+ * reports how many placements it took per second, how long each took to
+ * reach the clients watching, and how many bytes each client was sent.
+ *
+ * The clients are {@link SimulatedClient}s spread over a few worker threads,
+ * each of which drives its share through one selector, so thousands of them
+ * cost a few threads and little memory.  Each client places tiles at random
+ * times, on average load.rate a second.  Most placements can be made to fall
+ * around a few hot spots on the board, and clients can be made to leave and
+ * come back under new names.  The workload is set with system properties:
+ * <pre>
+ *   load.clients      simulated clients (1000)
+ *   load.rate         placements a second per client (1)
+ *   load.hotspots     hot spots on the board; 0 spreads placements evenly (0)
+ *   load.hotShare     share of placements around a hot spot (0.8)
+ *   load.hotRadius    spread of the placements around a hot spot, in tiles (16)
+ *   load.viewport     side of the square each client subscribes to; 0 watches the whole board (0)
+ *   load.churn        clients a second that log out and back in as someone new (0)
+ *   load.connectRate  clients a second that connect at the start (500)
+ *   load.sample       one in this many clients decodes everything for the latency (16)
+ *   load.seconds      length of the run (30)
+ *   load.report       seconds between reports (5)
+ *   load.threads      worker threads (the number of cores)
+ *   load.prefix       start of the usernames (load)
+ *   load.dim          board size of the server started in process (1000)
+ * </pre>
+ * The latency is from a client handing a placement to its socket to a
+ * sampled client decoding the change, so it includes the broadcaster's tick
+ * and the time the generator takes to get to the socket.  Placements are
+ * matched to changes by cell and time, on a table that forgets old ones, so
+ * a change too late to match is not counted rather than counted wrong.
+ *
+ * With no arguments a server is started in this process, with the change
+ * log and the connection limits off and the cooldown down to a millisecond,
+ * unless their properties are set.  A server elsewhere keeps its own limits: the cooldown turns
+ * placements away, and the per-address limits keep most of the clients out.
+ *
+ * Usage: java place.bench.LoadGenerator [host port]
+ *
+ * @author Michael Jansen
+ */
+public class LoadGenerator {
+    /** Placements remembered for matching with the changes that come back */
+    private static final int SLOTS = 1 << 16;
+
+    private final int clients = Integer.getInteger("load.clients", 1000);
+    private final double rate = Double.parseDouble(System.getProperty("load.rate", "1"));
+    private final int hotspots = Integer.getInteger("load.hotspots", 0);
+    private final double hotShare = Double.parseDouble(System.getProperty("load.hotShare", "0.8"));
+    private final double hotRadius = Double.parseDouble(System.getProperty("load.hotRadius", "16"));
+    private final int viewport = Integer.getInteger("load.viewport", 0);
+    private final double churn = Double.parseDouble(System.getProperty("load.churn", "0"));
+    private final double connectRate = Double.parseDouble(System.getProperty("load.connectRate", "500"));
+    private final int sample = Math.max(1, Integer.getInteger("load.sample", 16));
+    private final int seconds = Integer.getInteger("load.seconds", 30);
+    private final int report = Math.max(1, Integer.getInteger("load.report", 5));
+    private final int threads = Math.max(1, Integer.getInteger("load.threads",
+            Runtime.getRuntime().availableProcessors()));
+    private final String prefix = System.getProperty("load.prefix", "load");
+
+    private final InetSocketAddress address;
+    private final int dim;
+    /** Rows and columns of the hot spots */
+    private final int[][] spots;
+
+    final LongAdder placed = new LongAdder();
+    /** Placements skipped because the client's socket was full */
+    final LongAdder stalled = new LongAdder();
+    final LongAdder frames = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    private final LongAdder logins = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicInteger online = new AtomicInteger();
+    private final Histogram latency = new Histogram();
+    private final Histogram loginLatency = new Histogram();
+    /** System.nanoTime() and tile time of the latest placement hashed to each slot */
+    private final AtomicLongArray inFlight = new AtomicLongArray(2 * SLOTS);
+    private volatile boolean running = true;
+
+    /**
+     * Set up a load against a server.
+     *
+     * @param address the server
+     * @param dim the server's board size
+     */
+    private LoadGenerator(InetSocketAddress address, int dim) {
+        this.address = address;
+        this.dim = dim;
+        Random random = new Random(42);
+        this.spots = new int[hotspots][];
+        for (int i = 0; i < hotspots; i++) {
+            spots[i] = new int[]{random.nextInt(dim), random.nextInt(dim)};
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 0 && args.length != 2) {
+            System.out.println("Usage: java place.bench.LoadGenerator [host port]");
+            System.exit(1);
+        }
+        PlaceServer server = null;
+        InetSocketAddress address;
+        int dim;
+        if (args.length == 0) {
+            if (System.getProperty("place.cooldown") == null) System.setProperty("place.cooldown", "1");
+            dim = Integer.getInteger("load.dim", 1000);
+            int port = ServerBenchmark.freePort();
+            server = ServerBenchmark.startServer(port, dim);
+            address = new InetSocketAddress("localhost", port);
+            System.out.println("Started a " + dim + "x" + dim + " server on port " + port);
+        } else {
+            address = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+            dim = boardSize(address, System.getProperty("load.prefix", "load") + "-probe");
+        }
+        new LoadGenerator(address, dim).run(server == null ? null : server.getMetrics());
+        System.exit(0);
+    }
+
+    /**
+     * Log in to a server once to learn the size of its board.
+     */
+    private static int boardSize(InetSocketAddress address, String username) throws IOException {
+        try (Socket socket = new Socket(address.getHostString(), address.getPort())) {
+            PlaceExchange exchange = new PlaceExchange(PlaceExchange.Codec.BINARY, new UserTable());
+            BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            exchange.write(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, username), out);
+            while (true) {
+                PlaceRequest<?> request = exchange.read(in);
+                if (request.getType() == PlaceRequest.RequestType.BOARD) {
+                    return ((PlaceBoard) request.getData()).DIM;
+                } else if (request.getType() == PlaceRequest.RequestType.ERROR) {
+                    throw new IOException("Server refused the login: " + request.getData());
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the load, report as it goes and sum up at the end.
+     *
+     * @param metrics the server's metrics, if it is in this process
+     */
+    private void run(ServerMetrics metrics) throws InterruptedException {
+        System.out.printf("%d clients on %d threads, %.1f placements/s each, %d hot spots, viewport %d, churn %.1f/s%n",
+                clients, threads, rate, hotspots, viewport, churn);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Worker worker = new Worker(t);
+            Thread thread = new Thread(worker, "load-" + t);
+            thread.setDaemon(true);
+            thread.start();
+            workers.add(thread);
+        }
+
+        long start = System.nanoTime();
+        long[] latencies = new long[Histogram.BUCKETS];
+        long[] loginLatencies = new long[Histogram.BUCKETS];
+        long lastPlaced = 0, lastFrames = 0, lastBytes = 0, lastTime = start;
+        for (int elapsed = report; elapsed <= seconds; elapsed += report) {
+            Thread.sleep(Math.max(0, (start + elapsed * 1_000_000_000L - System.nanoTime()) / 1_000_000));
+            long now = System.nanoTime();
+            double interval = (now - lastTime) / 1e9;
+            long[] recent = latency.drain(latencies);
+            long[] recentLogins = loginLatency.drain(loginLatencies);
+            long placedNow = placed.sum(), framesNow = frames.sum(), bytesNow = bytesIn.sum();
+            int connected = online.get();
+            System.out.printf("%4ds %6d online %9.0f placed/s %10.0f frames/s %8.1f KB/s per client"
+                            + "  latency ms p50 %.1f p99 %.1f p99.9 %.1f  login ms p50 %.0f p99 %.0f%n",
+                    elapsed, connected, (placedNow - lastPlaced) / interval, (framesNow - lastFrames) / interval,
+                    (bytesNow - lastBytes) / interval / 1024 / Math.max(1, connected),
+                    Histogram.millis(recent, 0.5), Histogram.millis(recent, 0.99), Histogram.millis(recent, 0.999),
+                    Histogram.millis(recentLogins, 0.5), Histogram.millis(recentLogins, 0.99));
+            if (metrics != null) {
+                System.out.println("      server: " + metrics.getPlacements() + " placements, "
+                        + metrics.getRejectedPlacements() + " rejected, backlog "
+                        + metrics.getBroadcastBacklog() + ", " + metrics.getQueuedMessages()
+                        + " queued, fan out p99 " + String.format("%.1f", metrics.getFanOutMillisP99()) + " ms");
+            }
+            lastPlaced = placedNow;
+            lastFrames = framesNow;
+            lastBytes = bytesNow;
+            lastTime = now;
+        }
+
+        running = false;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double total = (System.nanoTime() - start) / 1e9;
+        long sessions = Math.max(1, logins.sum());
+        System.out.println();
+        System.out.printf("placements      %d, %.0f/s; %d stalled on full sockets, %d errors back%n",
+                placed.sum(), placed.sum() / total, stalled.sum(), errors.sum());
+        System.out.printf("latency ms      p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f  (%d changes)%n",
+                Histogram.millis(latencies, 0.5), Histogram.millis(latencies, 0.9), Histogram.millis(latencies, 0.99),
+                Histogram.millis(latencies, 0.999), Histogram.millis(latencies, 1), Histogram.count(latencies));
+        System.out.printf("login ms        p50 %.1f  p99 %.1f  max %.1f  (%d logins, %d dropped)%n",
+                Histogram.millis(loginLatencies, 0.5), Histogram.millis(loginLatencies, 0.99),
+                Histogram.millis(loginLatencies, 1), logins.sum(), dropped.sum());
+        System.out.printf("bytes per login %d in, %d out; %.1f KB/s in per client%n",
+                bytesIn.sum() / sessions, bytesOut.sum() / sessions, bytesIn.sum() / total / 1024 / clients);
+    }
+
+    /**
+     * Note a placement handed to a socket.
+     *
+     * @param row row
+     * @param col column
+     * @param time the tile's time
+     */
+    void sent(int row, int col, long time) {
+        int slot = slotOf(row, col);
+        inFlight.set(2 * slot, System.nanoTime());
+        inFlight.set(2 * slot + 1, time);
+    }
+
+    /**
+     * Note a change decoded by a sampled client, timing it if it is one of
+     * the placements remembered.
+     *
+     * @param tile the new tile
+     */
+    void arrived(PlaceTile tile) {
+        int slot = slotOf(tile.getRow(), tile.getCol());
+        if (inFlight.get(2 * slot + 1) == tile.getTime()) {
+            latency.record(System.nanoTime() - inFlight.get(2 * slot));
+        }
+    }
+
+    /**
+     * Note a client that has been sent the board.
+     *
+     * @param nanos the time from sending the login
+     */
+    void loggedIn(long nanos) {
+        loginLatency.record(nanos);
+        logins.increment();
+        online.incrementAndGet();
+    }
+
+    /**
+     * Note a logged in client leaving
+     */
+    void loggedOut() {
+        online.decrementAndGet();
+    }
+
+    /**
+     * Pick where to place a tile: around a hot spot for hotShare of the
+     * placements if there are any, or else anywhere in the client's viewport.
+     *
+     * @param random the worker's random numbers
+     * @param viewport top, left, rows and columns of the viewport, or null for the whole board
+     * @return the row and column
+     */
+    int[] pickCell(Random random, int[] viewport) {
+        if (spots.length > 0 && random.nextDouble() < hotShare) {
+            int[] spot = spots[random.nextInt(spots.length)];
+            return new int[]{near(random, spot[0]), near(random, spot[1])};
+        }
+        if (viewport == null) return new int[]{random.nextInt(dim), random.nextInt(dim)};
+        return new int[]{viewport[0] + random.nextInt(viewport[2]), viewport[1] + random.nextInt(viewport[3])};
+    }
+
+    /**
+     * Pick a viewport for a client, centered on a hot spot as often as
+     * placements are.
+     *
+     * @return top, left, rows and columns, or null if clients watch the whole board
+     */
+    private int[] pickViewport(Random random) {
+        if (viewport <= 0) return null;
+        int side = Math.min(viewport, dim);
+        int[] center = pickCell(random, null);
+        return new int[]{clamp(center[0] - side / 2, dim - side), clamp(center[1] - side / 2, dim - side), side, side};
+    }
+
+    private int near(Random random, int center) {
+        return clamp((int) Math.round(center + random.nextGaussian() * hotRadius), dim - 1);
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(max, value));
+    }
+
+    private static int slotOf(int row, int col) {
+        return (row * 31 + col) & (SLOTS - 1);
+    }
+
+    /**
+     * Drives every threads-th client: connects them at the start, places
+     * their tiles when due, reads for them and swaps some of them out for
+     * new users.
+     */
+    private class Worker implements Runnable {
+        private final Random random;
+        private final List<SimulatedClient> mine = new ArrayList<>();
+        private final List<Integer> numbers = new ArrayList<>();
+        private final PriorityQueue<SimulatedClient> due =
+                new PriorityQueue<>((a, b) -> Long.compare(a.nextPlacement, b.nextPlacement));
+        /** Number of the worker's clients connected so far */
+        private int connected;
+        /** Times clients have been swapped out, for new usernames */
+        private int generation;
+
+        Worker(int number) {
+            this.random = new Random(1000 + number);
+            for (int i = number; i < clients; i += threads) {
+                mine.add(new SimulatedClient(LoadGenerator.this, i % sample == 0));
+                numbers.add(i);
+            }
+        }
+
+        @Override
+        public void run() {
+            try (Selector selector = Selector.open()) {
+                long last = System.nanoTime();
+                double connects = 0, swaps = 0;
+                while (running) {
+                    long now = System.nanoTime();
+                    double elapsed = (now - last) / 1e9;
+                    last = now;
+
+                    connects += elapsed * connectRate / threads;
+                    for (; connects >= 1 && connected < mine.size(); connects--) {
+                        start(selector, connected, prefix + numbers.get(connected), now);
+                        connected++;
+                    }
+                    if (connected == mine.size()) connects = 0;
+
+                    swaps += elapsed * churn / threads;
+                    for (; swaps >= 1 && connected > 0; swaps--) {
+                        int i = random.nextInt(connected);
+                        due.remove(mine.get(i));
+                        start(selector, i, prefix + numbers.get(i) + "-" + ++generation, now);
+                    }
+
+                    while (!due.isEmpty() && due.peek().nextPlacement <= now) {
+                        SimulatedClient client = due.poll();
+                        if (client.isLoggedIn()) {
+                            try {
+                                client.place(random);
+                            } catch (IOException e) {
+                                drop(client);
+                            }
+                        }
+                        // A worker that fell behind skips the placements it missed rather than
+                        // making them in a burst the cooldown would turn away
+                        client.nextPlacement += interval();
+                        if (client.nextPlacement <= now) client.nextPlacement = now + interval();
+                        due.add(client);
+                    }
+
+                    long wait = due.isEmpty() ? 10 : (due.peek().nextPlacement - now) / 1_000_000;
+                    selector.select(Math.max(1, Math.min(10, wait)));
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        SimulatedClient client = (SimulatedClient) key.attachment();
+                        try {
+                            if (key.isConnectable()) client.connected();
+                            if (key.isValid() && key.isReadable()) client.read();
+                            if (key.isValid() && key.isWritable()) client.flush();
+                        } catch (IOException e) {
+                            drop(client);
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (SimulatedClient client : mine) {
+                    client.close();
+                }
+            }
+        }
+
+        /**
+         * Connect one of the worker's clients as a user, and schedule its placements.
+         */
+        private void start(Selector selector, int i, String username, long now) {
+            SimulatedClient client = mine.get(i);
+            try {
+                client.connect(selector, address, username, pickViewport(random));
+            } catch (IOException e) {
+                drop(client);
+                return;
+            }
+            if (rate > 0) {
+                client.nextPlacement = now + interval();
+                due.add(client);
+            }
+        }
+
+        private void drop(SimulatedClient client) {
+            client.close();
+            due.remove(client);
+            dropped.increment();
+        }
+
+        /**
+         * @return nanoseconds to the next placement, exponentially distributed
+         */
+        private long interval() {
+            return (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+        }
+    }
+
+    /**
+     * Counts of durations in buckets that grow with the duration, 16 to each
+     * power of two, so percentiles are within about 6% of the true value
+     * without keeping every duration.  Any thread may record.
+     */
+    private static class Histogram {
+        private static final int SUB_SHIFT = 4;
+        private static final int SUB = 1 << SUB_SHIFT;
+        static final int BUCKETS = (64 - SUB_SHIFT + 1) * SUB;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        /**
+         * @param nanos a duration
+         */
+        void record(long nanos) {
+            counts.incrementAndGet(bucketOf(Math.max(0, nanos)));
+        }
+
+        /**
+         * Take the counts recorded since the last drain.
+         *
+         * @param total counts to add them to
+         * @return the counts taken
+         */
+        long[] drain(long[] total) {
+            long[] taken = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                taken[i] = counts.getAndSet(i, 0);
+                total[i] += taken[i];
+            }
+            return taken;
+        }
+
+        static long count(long[] counts) {
+            long count = 0;
+            for (long c : counts) count += c;
+            return count;
+        }
+
+        /**
+         * @param counts drained counts
+         * @param quantile the quantile, from 0 to 1
+         * @return the duration at the quantile in milliseconds, or NaN if nothing was recorded
+         */
+        static double millis(long[] counts, double quantile) {
+            long count = count(counts);
+            if (count == 0) return Double.NaN;
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) return (lowest(i) + lowest(i + 1)) / 2e6;
+            }
+            return Double.NaN;
+        }
+
+        private static int bucketOf(long value) {
+            if (value < SUB) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return (exponent - SUB_SHIFT + 1) * SUB + (int) ((value >>> (exponent - SUB_SHIFT)) & (SUB - 1));
+        }
+
+        /**
+         * @return the smallest value in a bucket
+         */
+        private static double lowest(int bucket) {
+            if (bucket < SUB) return bucket;
+            int exponent = bucket / SUB + SUB_SHIFT - 1;
+            return (double) (SUB + bucket % SUB) * Math.pow(2, exponent - SUB_SHIFT);
+        }
+    }
+}
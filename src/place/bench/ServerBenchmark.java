@@ -0,0 +1,91 @@
+package place.bench;
+
+import place.PlaceTile;
+import place.server.PlaceServer;
+import place.server.ServerMetrics;
+import java.io.IOException;
+import java.net.ServerSocket;
+
+/**
+ * Times PlaceServer.updateTile while the server broadcasts every change to
+ * some logged in clients.  Placing waits whenever the broadcaster falls far
+ * behind, so the time per placement is what the server can keep up with
+ * rather than how fast changes can be queued.
+ *
+ * The server keeps every change in its statistics, so long runs need a
+ * large heap.  The change log is off unless place.log is set, and the
+ * connection limits are lifted so the clients can all log in.
+ *
+ * Usage: java place.bench.ServerBenchmark (see {@link Bench} for the settings)
+ *
+ * @author Michael Jansen
+ */
+public class ServerBenchmark {
+    /** Numbers of clients measured */
+    private static final int[] CLIENTS = {0, 16, 256};
+    /** Board size */
+    private static final int DIM = 1000;
+    /** Changes the broadcaster may fall behind by before placing waits */
+    private static final long BACKLOG = 4096;
+
+    public static void main(String[] args) throws Exception {
+        run();
+        Bench.finish();
+        System.exit(0);
+    }
+
+    /**
+     * Run every server benchmark
+     */
+    static void run() throws Exception {
+        int port = freePort();
+        PlaceServer server = startServer(port, DIM);
+        ServerMetrics metrics = server.getMetrics();
+        PlaceTile[] tiles = BoardBenchmark.tiles(DIM, 5);
+        for (int clients : CLIENTS) {
+            try (FakeClients fake = new FakeClients(port, clients, "bench" + clients + "-")) {
+                while (metrics.getConnectedClients() < fake.size()) {
+                    Thread.sleep(10);
+                }
+                Bench.measure("server.updateTile", "clients=" + clients, i -> {
+                    if ((i & 1023) == 0) {
+                        while (metrics.getBroadcastBacklog() > BACKLOG) Thread.yield();
+                    }
+                    return server.updateTile(tiles[(int) (i & (tiles.length - 1))]);
+                });
+            }
+            while (metrics.getConnectedClients() > 0) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * @return a port nothing is listening on
+     * @throws IOException if no port is free
+     */
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Start a server for benchmarks, without the change log unless place.log
+     * is set and without the per-address connection limits.
+     *
+     * @param port the port to listen on
+     * @param dim the board size
+     * @return the server, accepting connections
+     */
+    static PlaceServer startServer(int port, int dim) {
+        for (String limit : new String[]{"place.addressRate", "place.addressMax", "place.acceptRate"}) {
+            if (System.getProperty(limit) == null) System.setProperty(limit, "1000000");
+        }
+        PlaceServer server = new PlaceServer(port, dim);
+        Thread accepting = new Thread(server::runServer, "bench-server");
+        accepting.setDaemon(true);
+        accepting.start();
+        return server;
+    }
+}
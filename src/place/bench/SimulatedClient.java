@@ -0,0 +1,273 @@
+package place.bench;
+
+import place.PlaceColor;
+import place.PlaceTile;
+import place.UserTable;
+import place.network.FrameBuffer;
+import place.network.PlaceExchange;
+import place.network.PlaceRequest;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+/**
+ * One simulated client of a {@link LoadGenerator}: a non-blocking socket and
+ * a few counters, with no board and no thread of its own.  It logs in,
+ * subscribes to its viewport if it has one, places tiles when its worker
+ * says so and reads whatever the server sends.
+ *
+ * Most clients only split what they read into frames and look at the type
+ * of each, which is enough to count them and see the login finish.  A
+ * sample of the clients decode everything, and the tile changes they see
+ * give the broadcast latency.
+ *
+ * Owned by one worker thread.
+ *
+ * @author Michael Jansen
+ */
+class SimulatedClient {
+    private static final int BOARD = PlaceRequest.RequestType.BOARD.ordinal();
+    private static final int ERROR = PlaceRequest.RequestType.ERROR.ordinal();
+    private static final int LOGIN_SUCCESS = PlaceRequest.RequestType.LOGIN_SUCCESS.ordinal();
+
+    private final LoadGenerator generator;
+    /** Decode what arrives instead of only framing it */
+    private final boolean decodes;
+    /** Top, left and side of the part of the board this client watches, or null for all of it */
+    private int[] viewport;
+    private String username;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private PlaceExchange exchange;
+    private final FrameBuffer frame = new FrameBuffer(64);
+    /** Bytes read and not yet framed */
+    private ByteBuffer in;
+    /** Bytes that the socket would not take yet, or null */
+    private ByteBuffer unsent;
+    /** Bytes of the current frame still to be skipped without reading */
+    private int skip;
+    /** Type of the frame being skipped */
+    private int skipping;
+    /** System.nanoTime() when the login was sent */
+    private long loginSent;
+    private boolean loggedIn;
+    /** System.nanoTime() when the next tile is due */
+    long nextPlacement;
+
+    /**
+     * Create a client that has not connected yet.
+     *
+     * @param generator the generator the client reports to
+     * @param decodes whether the client decodes what it reads
+     */
+    SimulatedClient(LoadGenerator generator, boolean decodes) {
+        this.generator = generator;
+        this.decodes = decodes;
+    }
+
+    /**
+     * Start connecting as a new user, closing any earlier connection.
+     *
+     * @param selector the worker's selector
+     * @param address the server
+     * @param username the name to log in with
+     * @param viewport top, left and side of the part of the board to watch, or null for all of it
+     * @throws IOException if the connection cannot be started
+     */
+    void connect(Selector selector, InetSocketAddress address, String username, int[] viewport) throws IOException {
+        close();
+        this.username = username;
+        this.viewport = viewport;
+        this.exchange = new PlaceExchange(PlaceExchange.Codec.BINARY, new UserTable());
+        this.in = ByteBuffer.allocate(decodes ? 64 * 1024 : 8 * 1024);
+        this.unsent = null;
+        this.skip = 0;
+        this.loggedIn = false;
+        this.channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        this.key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+        if (channel.connect(address)) connected();
+    }
+
+    /**
+     * Finish connecting and send the login.
+     *
+     * @throws IOException if the connection failed
+     */
+    void connected() throws IOException {
+        if (channel.isConnectionPending()) channel.finishConnect();
+        key.interestOps(SelectionKey.OP_READ);
+        loginSent = System.nanoTime();
+        send(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, username));
+    }
+
+    /**
+     * @return whether the client has logged in and is connected
+     */
+    boolean isLoggedIn() {
+        return loggedIn && channel != null && channel.isOpen();
+    }
+
+    /**
+     * Place a tile somewhere the client is looking.  Skipped if the socket
+     * is still full from earlier.
+     *
+     * @param random the worker's random numbers
+     * @throws IOException if the connection fails
+     */
+    void place(Random random) throws IOException {
+        if (unsent != null) {
+            generator.stalled.increment();
+            return;
+        }
+        int[] cell = generator.pickCell(random, viewport);
+        long time = System.currentTimeMillis();
+        PlaceTile tile = new PlaceTile(cell[0], cell[1], username,
+                PlaceColor.fromNumber(random.nextInt(PlaceColor.TOTAL_COLORS)), time);
+        generator.sent(cell[0], cell[1], time);
+        send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE, tile));
+        generator.placed.increment();
+    }
+
+    /**
+     * Read what has arrived.
+     *
+     * @throws IOException if the connection fails or was closed by the server
+     */
+    void read() throws IOException {
+        int n;
+        while ((n = channel.read(in)) > 0) {
+            generator.bytesIn.add(n);
+            in.flip();
+            frames();
+            in.compact();
+        }
+        if (n < 0) throw new IOException("Closed by the server");
+    }
+
+    /**
+     * Split the buffer into frames, skipping or decoding each.
+     */
+    private void frames() throws IOException {
+        if (skip > 0) {
+            int skipped = Math.min(skip, in.remaining());
+            in.position(in.position() + skipped);
+            skip -= skipped;
+            if (skip == 0) received(skipping, null);
+        }
+        while (skip == 0 && in.remaining() >= PlaceExchange.HEADER_SIZE + 1) {
+            int length = in.getInt(in.position());
+            int type = in.get(in.position() + PlaceExchange.HEADER_SIZE);
+            int size = PlaceExchange.HEADER_SIZE + length;
+            if (in.remaining() >= size) {
+                byte[] payload = null;
+                if (decodes) {
+                    payload = new byte[length];
+                    in.position(in.position() + PlaceExchange.HEADER_SIZE);
+                    in.get(payload);
+                } else {
+                    in.position(in.position() + size);
+                }
+                received(type, payload);
+            } else if (decodes) {
+                if (size > in.capacity()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(size);
+                    bigger.put(in);
+                    bigger.flip();
+                    in = bigger;
+                }
+                return;
+            } else {
+                skip = size - in.remaining();
+                skipping = type;
+                in.position(in.limit());
+            }
+        }
+    }
+
+    /**
+     * Count a whole frame.
+     *
+     * @param type the request type
+     * @param payload the payload, if the client decodes
+     */
+    private void received(int type, byte[] payload) throws IOException {
+        generator.frames.increment();
+        if (type == LOGIN_SUCCESS) {
+            if (viewport != null) {
+                send(new PlaceRequest<>(PlaceRequest.RequestType.SUBSCRIBE, viewport));
+            }
+        } else if (type == BOARD) {
+            loggedIn = true;
+            generator.loggedIn(System.nanoTime() - loginSent);
+        } else if (type == ERROR) {
+            generator.errors.increment();
+        }
+        if (payload == null) return;
+
+        PlaceRequest<?> request = exchange.decode(payload);
+        switch (request.getType()) {
+            case TILE_CHANGED:
+                generator.arrived((PlaceTile) request.getData());
+                break;
+            case TILES_CHANGED:
+                for (PlaceTile tile : (PlaceTile[]) request.getData()) {
+                    generator.arrived(tile);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Write what the socket would not take before.
+     *
+     * @throws IOException if the connection fails
+     */
+    void flush() throws IOException {
+        if (unsent != null) {
+            generator.bytesOut.add(channel.write(unsent));
+            if (!unsent.hasRemaining()) unsent = null;
+        }
+        key.interestOps(unsent == null ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void send(PlaceRequest<?> request) throws IOException {
+        frame.reset();
+        exchange.encode(request, frame);
+        ByteBuffer bytes = frame.toByteBuffer();
+        if (unsent == null) {
+            generator.bytesOut.add(channel.write(bytes));
+            if (bytes.hasRemaining()) {
+                unsent = ByteBuffer.allocate(bytes.remaining()).put(bytes);
+                unsent.flip();
+            }
+        } else {
+            ByteBuffer joined = ByteBuffer.allocate(unsent.remaining() + bytes.remaining());
+            joined.put(unsent).put(bytes).flip();
+            unsent = joined;
+        }
+        if (unsent != null) key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Disconnect, if connected
+     */
+    void close() {
+        if (channel == null) return;
+        if (loggedIn) generator.loggedOut();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Going anyway
+        }
+        channel = null;
+        loggedIn = false;
+    }
+}
@@ -0,0 +1,53 @@
+package place.bench;
+
+import java.io.Writer;
+import place.PlaceTile;
+import place.server.PlaceServer;
+import place.server.ServerStatistics;
+
+/**
+ * Times ServerStatistics.changeTile and writeReport once a long history
+ * has built up.  The reports go to a writer that discards them, so no
+ * report files are written or rotated.
+ *
+ * Usage: java place.bench.StatisticsBenchmark (see {@link Bench} for the settings)
+ *
+ * @author Michael Jansen
+ */
+public class StatisticsBenchmark {
+    /** Changes in the history before measuring */
+    private static final int[] HISTORY = {1 << 20, 1 << 23};
+    /** Board size */
+    private static final int DIM = 1000;
+
+    public static void main(String[] args) throws Exception {
+        run();
+        Bench.finish();
+        System.exit(0);
+    }
+
+    /**
+     * Run every statistics benchmark
+     */
+    static void run() throws Exception {
+        PlaceServer server = ServerBenchmark.startServer(ServerBenchmark.freePort(), DIM);
+        PlaceTile[] tiles = BoardBenchmark.tiles(DIM, 6);
+        for (int history : HISTORY) {
+            ServerStatistics statistics = new ServerStatistics(server);
+            long seq = 0;
+            while (seq < history) {
+                statistics.changeTile(++seq, tiles[(int) (seq & (tiles.length - 1))]);
+            }
+            long first = seq;
+            Bench.measure("stats.changeTile", "history=" + history, i -> {
+                statistics.changeTile(first + i + 1, tiles[(int) (i & (tiles.length - 1))]);
+                return null;
+            });
+            Writer discard = Writer.nullWriter();
+            Bench.measure("stats.writeReport", "history=" + history, i -> {
+                statistics.writeReport(discard);
+                return null;
+            });
+        }
+    }
+}
@@ -13,10 +13,9 @@ import java.util.*;
  *
  * @author Tyson Levy
  */
-public class CreeperBot extends ConsoleApplication implements Observer {
+public class CreeperBot extends ConsoleApplication {
     private ClientModel model;
     private NetworkClient serverConn;
-    private boolean firstUpdate = true;
 
     private PlaceColor[][] picture;
 
@@ -68,7 +67,6 @@ public class CreeperBot extends ConsoleApplication implements Observer {
         // Create the network connection.
         try{
             this.serverConn = new NetworkClient(host, port, username, this.model);
-            this.serverConn.game.addObserver( this );
         }
         catch(PlaceException e){
             System.out.println(e);
@@ -83,14 +81,14 @@ public class CreeperBot extends ConsoleApplication implements Observer {
      * @param userOut
      */
     @Override
-    public synchronized void go(Scanner userIn, PrintWriter userOut) {
-
-        while(this.serverConn.game.isRunning()){
-            try {
-                this.wait();
-            }
-            catch( InterruptedException ie ) {}
+    public void go(Scanner userIn, PrintWriter userOut) {
+        try {
+            this.model.awaitBoard();
+        }
+        catch( InterruptedException ie ) {
+            return;
         }
+        if(this.model.isRunning()) this.run();
     }
 
     /**
@@ -101,24 +99,6 @@ public class CreeperBot extends ConsoleApplication implements Observer {
         this.serverConn.close();
     }
 
-    /**
-     * Does nothing when called because the bot has no need to "see" the board
-     *
-     * @param t
-     * @param o
-     */
-    @Override
-    public void update(Observable t, Object o ) {
-
-        assert t == this.model: "Update from non-model Observable";
-
-        if(firstUpdate){
-            firstUpdate = false;
-            Thread userIn = new Thread( () -> this.run() );
-            userIn.start();
-        }
-    }
-
     /**
      * Asks for a location to draw the picture
      * if an invalid space is given it defaults to the top left
@@ -135,12 +115,14 @@ public class CreeperBot extends ConsoleApplication implements Observer {
             System.out.println("Board to small for picture");
             System.exit(0);
         }
+        // Only changes to the picture matter to the bot
+        serverConn.subscribe(row, col, picture.length, picture[0].length);
         while (serverConn.game.isRunning()){
             for (int i=row; i<row+picture.length&&serverConn.game.isRunning(); i++){
                 for(int j=col; j<col+picture[0].length&&serverConn.game.isRunning(); j++) {
-                    if (model.getTile(i, j).getColor() != picture[i - row][j - col]) {
+                    if (model.getColor(i, j) != picture[i - row][j - col]) {
                         serverConn.sendMove(i, j, picture[i - row][j - col]);
-                        try { Thread.sleep(500); } catch (InterruptedException e) { }
+                        try { serverConn.awaitMovesSent(); } catch (InterruptedException e) { }
                     }
                 }
             }
@@ -13,10 +13,9 @@ import java.util.*;
  *
  * @author Tyson Levy
  */
-public class RainbowBot extends ConsoleApplication implements Observer {
+public class RainbowBot extends ConsoleApplication {
     private ClientModel model;
     private NetworkClient serverConn;
-    private boolean firstUpdate = true;
 
     private PlaceColor[][] picture;
 
@@ -39,7 +38,6 @@ public class RainbowBot extends ConsoleApplication implements Observer {
         // Create the network connection.
         try{
             this.serverConn = new NetworkClient(host, port, username, this.model);
-            this.serverConn.game.addObserver( this );
         }
         catch(PlaceException e){
             System.out.println(e);
@@ -54,14 +52,14 @@ public class RainbowBot extends ConsoleApplication implements Observer {
      * @param userOut
      */
     @Override
-    public synchronized void go(Scanner userIn, PrintWriter userOut) {
-
-        while(this.serverConn.game.isRunning()){
-            try {
-                this.wait();
-            }
-            catch( InterruptedException ie ) {}
+    public void go(Scanner userIn, PrintWriter userOut) {
+        try {
+            this.model.awaitBoard();
+        }
+        catch( InterruptedException ie ) {
+            return;
         }
+        if(this.model.isRunning()) this.run();
     }
 
     /**
@@ -72,24 +70,6 @@ public class RainbowBot extends ConsoleApplication implements Observer {
         this.serverConn.close();
     }
 
-    /**
-     * Does nothing when called because the bot has no need to "see" the board
-     *
-     * @param t
-     * @param o
-     */
-    @Override
-    public void update(Observable t, Object o ) {
-
-        assert t == this.model: "Update from non-model Observable";
-
-        if(firstUpdate){
-            firstUpdate = false;
-            Thread userIn = new Thread( () -> this.run() );
-            userIn.start();
-        }
-    }
-
     /**
      * Draws the rainbow across the top of the board and protects the spaces
      */
@@ -132,9 +112,9 @@ public class RainbowBot extends ConsoleApplication implements Observer {
         while (serverConn.game.isRunning()){
             for (int i=row; i<row+picture.length&&serverConn.game.isRunning(); i++){
                 for(int j=col; j<col+picture[0].length&&serverConn.game.isRunning(); j++) {
-                    if (model.getTile(i, j).getColor() != picture[i - row][j - col]) {
+                    if (model.getColor(i, j) != picture[i - row][j - col]) {
                         serverConn.sendMove(i, j, picture[i - row][j - col]);
-                        try { Thread.sleep(500); } catch (InterruptedException e) { }
+                        try { serverConn.awaitMovesSent(); } catch (InterruptedException e) { }
                     }
                 }
             }
@@ -13,10 +13,9 @@ import java.util.*;
  *
  * @author Tyson Levy
  */
-public class RandomBot extends ConsoleApplication implements Observer {
+public class RandomBot extends ConsoleApplication {
     private ClientModel model;
     private NetworkClient serverConn;
-    private boolean firstUpdate = true;
 
     /**
      * Initializes the client by starting up the connection with a Network Client
@@ -36,7 +35,6 @@ public class RandomBot extends ConsoleApplication implements Observer {
         // Create the network connection.
         try{
             this.serverConn = new NetworkClient(host, port, username, this.model);
-            this.serverConn.game.addObserver( this );
         }
         catch(PlaceException e){
             System.out.println(e);
@@ -51,14 +49,14 @@ public class RandomBot extends ConsoleApplication implements Observer {
      * @param userOut
      */
     @Override
-    public synchronized void go(Scanner userIn, PrintWriter userOut) {
-
-        while(this.serverConn.game.isRunning()){
-            try {
-                this.wait();
-            }
-            catch( InterruptedException ie ) {}
+    public void go(Scanner userIn, PrintWriter userOut) {
+        try {
+            this.model.awaitBoard();
+        }
+        catch( InterruptedException ie ) {
+            return;
         }
+        if(this.model.isRunning()) this.run();
     }
 
     /**
@@ -69,24 +67,6 @@ public class RandomBot extends ConsoleApplication implements Observer {
         this.serverConn.close();
     }
 
-    /**
-     * Does nothing when called because the bot has no need to "see" the board
-     *
-     * @param t
-     * @param o
-     */
-    @Override
-    public void update(Observable t, Object o ) {
-
-        assert t == this.model: "Update from non-model Observable";
-
-        if(firstUpdate){
-            firstUpdate = false;
-            Thread userIn = new Thread( () -> this.run() );
-            userIn.start();
-        }
-    }
-
     /**
      * Creates random tiles and send them to the NetworkClient
      */
@@ -103,6 +83,8 @@ public class RandomBot extends ConsoleApplication implements Observer {
                 }
             }
             serverConn.sendMove(random.nextInt(serverConn.game.getDim()), random.nextInt(serverConn.game.getDim()), color);
+            // Only pick the next tile once the cooldown has let this one go
+            try { serverConn.awaitMovesSent(); } catch (InterruptedException e) { }
         }
         System.out.println("Disconnected");
         System.exit(0);
@@ -2,44 +2,70 @@ package place.client.gui;
 
 import javafx.application.Application;
 import javafx.application.Platform;
+import javafx.geometry.Rectangle2D;
 import javafx.scene.Scene;
-import javafx.scene.canvas.Canvas;
-import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.*;
 import javafx.scene.control.Button;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.image.WritablePixelFormat;
 import javafx.scene.input.MouseButton;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.HBox;
-import javafx.scene.paint.Color;
 import javafx.stage.Stage;
 import place.PlaceColor;
 import place.PlaceException;
 import place.PlaceTile;
+import place.client.model.ChangeFeed;
 import place.client.model.ClientModel;
 import place.client.network.NetworkClient;
 
 import java.awt.*;
+import java.nio.IntBuffer;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Date;
 import java.util.List;
-import java.util.Observable;
-import java.util.Observer;
 
 /**
  * A GUI client that interfaces with a running place server
  *
+ * The board is an image with one pixel per tile, kept in an ARGB array that
+ * changes are written into. Only the blocks of the image holding changed
+ * tiles are copied to it, and zooming and panning only move the part of the
+ * image the view shows, which JavaFX scales up without smoothing
+ *
  * @author Michael Jansen
  * @author Tyson Levy
  * @author Leelan Carbonell
  */
-public class PlaceGUI extends Application implements Observer {
+public class PlaceGUI extends Application {
     private ClientModel model;
     private NetworkClient serverConn;
     private BorderPane mainPane;
     private PlaceColor color = PlaceColor.BLACK;
-    private boolean firstUpdate = true;
-    private Canvas canvas;
+    private ChangeFeed.Reader changes;
+    private final List<PlaceTile> batch = new ArrayList<>();
+    private ImageView view;
+    /** The board, one pixel per tile */
+    private WritableImage image;
+    /** The ARGB of every pixel of the image, row by row */
+    private int[] pixels;
+    /** Blocks of the image whose pixels have changed since they were last copied to it */
+    private final BitSet dirty = new BitSet();
     private static final double SIZE = 600;
+    /** Side of the square blocks the image is updated in, as a shift */
+    private static final int BLOCK_SHIFT = 5;
+    private static final WritablePixelFormat<IntBuffer> FORMAT = PixelFormat.getIntArgbInstance();
+    /** ARGB of each place color, by number */
+    private static final int[] PALETTE = new int[PlaceColor.TOTAL_COLORS];
+    static {
+        for (PlaceColor c : PlaceColor.values()) {
+            PALETTE[c.getNumber()] = 0xFF000000 | c.getRed() << 16 | c.getGreen() << 8 | c.getBlue();
+        }
+    }
     private Tooltip tp;
     private double scale = 1;
     private Point anchor = new Point(0, 0);
@@ -63,14 +89,11 @@ public class PlaceGUI extends Application implements Observer {
         // Create the network connection.
         try{
             this.serverConn = new NetworkClient(host, port, username, this.model);
-            this.serverConn.game.addObserver( this );
         }
         catch(PlaceException e){
             System.out.println(e);
             System.exit(-1);
         }
-
-        this.model.addObserver( this );
     }
 
     /**
@@ -85,21 +108,24 @@ public class PlaceGUI extends Application implements Observer {
     }
 
     /**
-     * Creates the GUI and sets everything up
+     * Creates the GUI and sets everything up. The stage opens straight away
+     * and the board is drawn once it arrives from the server
      *
      * @param mainStage
      */
     @Override
     public synchronized void start(Stage mainStage) {
-        while(!serverConn.isLoaded()) {}
         mainPane = new BorderPane();
         mainStage.setTitle("Place: " + serverConn.getUsername());
         tp = new Tooltip();
 
-        this.canvas = new Canvas(SIZE, SIZE);
+        this.view = new ImageView();
+        view.setFitWidth(SIZE);
+        view.setFitHeight(SIZE);
+        view.setSmooth(false);
         // Change the tile that the user clicks on
-        canvas.setOnMouseClicked((event) -> {
-            if(event.getButton() == MouseButton.PRIMARY){
+        view.setOnMouseClicked((event) -> {
+            if(event.getButton() == MouseButton.PRIMARY && image != null){
                 double size = SIZE/model.getDim();
                 int row = (int) ((event.getY()+anchor.getY())/(size*scale));
                 int col = (int) ((event.getX()+anchor.getX())/(size*scale));
@@ -107,17 +133,18 @@ public class PlaceGUI extends Application implements Observer {
             }
         });
         // Scale the board when the user scrolls over it
-        canvas.setOnScroll((event) -> {
+        view.setOnScroll((event) -> {
+            if(image == null) return;
             if(event.getDeltaY() < 0){
                 scale -= 0.001 * model.getDim()/20 * Math.abs(event.getDeltaY());
             }else{
                 scale += 0.001 * model.getDim()/20 * Math.abs(event.getDeltaY());
             }
             scale = Math.max(1, scale);
-            drawBoard();
+            placeView();
         });
         // Set the start position of a drag
-        canvas.setOnMousePressed((event) -> {
+        view.setOnMousePressed((event) -> {
             if(event.getButton() == MouseButton.SECONDARY){
                 dragStart.x = (int) event.getX();
                 dragStart.y = (int) event.getY();
@@ -125,7 +152,7 @@ public class PlaceGUI extends Application implements Observer {
             }
         });
         // Drag the board around on right click
-        canvas.setOnMouseDragged((event) -> {
+        view.setOnMouseDragged((event) -> {
             if(event.getButton() == MouseButton.SECONDARY){
                 anchor.x -= (event.getX() - dragStart.getX());
                 anchor.y -= (event.getY() - dragStart.getY());
@@ -133,13 +160,20 @@ public class PlaceGUI extends Application implements Observer {
                 anchor.y = Math.max(0, anchor.y);
                 dragStart.x = (int) event.getX();
                 dragStart.y = (int) event.getY();
-                drawBoard();
+                placeView();
             }
         });
 
         // This thread gets the location of the mouse and shows a tooltip that
         // gives the info of the tile it is hovering over
         new Thread(() -> {
+            try {
+                model.awaitBoard();
+            } catch (InterruptedException e) {
+                return;
+            }
+            // Closed before the board arrived
+            if (model.getBoard() == null) return;
             double size = SIZE / model.getDim();
             while (serverConn.goodToGo()) {
                 Point p = MouseInfo.getPointerInfo().getLocation();
@@ -169,6 +203,9 @@ public class PlaceGUI extends Application implements Observer {
                 }
             }
         }).start();
+        // Changes after this are drawn by render; everything before is on the board drawn now.
+        // If the board has not arrived yet, render draws it when the feed says it has
+        changes = model.getChanges().newReader(() -> Platform.runLater(this::render));
         drawBoard();
 
         //Buttons on the bottom for choosing the color
@@ -189,7 +226,7 @@ public class PlaceGUI extends Application implements Observer {
             bottom.getChildren().add(btn);
         }
 
-        mainPane.setCenter(canvas);
+        mainPane.setCenter(view);
         mainPane.setBottom(bottom);
         Scene scene = new Scene(mainPane, SIZE, SIZE + 25);
 
@@ -202,54 +239,71 @@ public class PlaceGUI extends Application implements Observer {
      */
     @Override
     public void stop(){
+        if(changes != null) changes.close();
         serverConn.close();
     }
 
     /**
-     * Updates the GUI
-     * Called when any change is sent to the server
-     *
-     * @param t
-     * @param o
+     * Draw every change that has arrived since the last time, or the whole
+     * board if too many did. Runs on the JavaFX thread, once for however
+     * many batches arrived while it was waiting to run
      */
-    @Override
-    public void update(Observable t, Object o) {
-        assert t == this.model: "Update from non-model Observable";
-        if(firstUpdate){firstUpdate = false;}
-        else{
-            PlaceTile tile = model.getLastTileChanged();
-            updateCanvas(tile);
+    private void render(){
+        batch.clear();
+        if(!changes.drain(batch) || image == null || model.getDim() != image.getWidth()){
+            drawBoard();
+            return;
         }
+        // The batch was drained before any newer board, so it fits the image
+        int dim = (int) image.getWidth();
+        int blocks = (dim + (1 << BLOCK_SHIFT) - 1) >> BLOCK_SHIFT;
+        for(PlaceTile tile : batch){
+            pixels[tile.getRow() * dim + tile.getCol()] = PALETTE[tile.getColor().getNumber()];
+            dirty.set((tile.getRow() >> BLOCK_SHIFT) * blocks + (tile.getCol() >> BLOCK_SHIFT));
+        }
+        for(int block = dirty.nextSetBit(0); block >= 0; block = dirty.nextSetBit(block + 1)){
+            int top = (block / blocks) << BLOCK_SHIFT;
+            int left = (block % blocks) << BLOCK_SHIFT;
+            int rows = Math.min(1 << BLOCK_SHIFT, dim - top);
+            int cols = Math.min(1 << BLOCK_SHIFT, dim - left);
+            image.getPixelWriter().setPixels(left, top, cols, rows, FORMAT, pixels, top * dim + left, dim);
+        }
+        dirty.clear();
     }
 
     /**
-     * Draw the place board on the canvas
+     * Draw the whole place board into the image, making a new image if the
+     * board is a new size. Does nothing until the board has arrived
      */
     private void drawBoard(){
-        GraphicsContext g = canvas.getGraphicsContext2D();
-        g.clearRect(0, 0, SIZE, SIZE);
-        double size = SIZE/model.getDim();
-        for(int i = 0; i < model.getDim(); i++){
-            for(int j = 0; j < model.getDim(); j++){
-                PlaceTile tile = model.getTile(i, j);
-                g.setFill(Color.valueOf(hexColor(tile.getColor())));
-                g.fillRect(size*j*scale - anchor.getX(), size*i*scale - anchor.getY(), size*scale, size*scale);
+        if(model.getBoard() == null) return;
+        int dim = model.getDim();
+        if(image == null || image.getWidth() != dim){
+            image = new WritableImage(dim, dim);
+            pixels = new int[dim * dim];
+            view.setImage(image);
+        }
+        for(int i = 0; i < dim; i++){
+            for(int j = 0; j < dim; j++){
+                pixels[i * dim + j] = PALETTE[model.getColor(i, j).getNumber()];
             }
         }
+        image.getPixelWriter().setPixels(0, 0, dim, dim, FORMAT, pixels, 0, dim);
+        dirty.clear();
+        placeView();
     }
 
     /**
-     * Redraw the area of the canvas where a tile was updated
-     * @param tile the updated tile
+     * Show the part of the board the zoom and the drag have moved to. The
+     * view scales that part of the image up to fill itself
      */
-    private void updateCanvas(PlaceTile tile){
-        try {
-            Thread.sleep(50);
-        } catch (InterruptedException e) { }
-        GraphicsContext g = canvas.getGraphicsContext2D();
-        double size = SIZE/model.getDim();
-        g.setFill(Color.valueOf(hexColor(tile.getColor())));
-        g.fillRect(tile.getCol()*size*scale - anchor.getX(), tile.getRow()*size*scale - anchor.getY(), size*scale, size*scale);
+    private void placeView(){
+        if(image == null) return;
+        double shown = SIZE * scale;
+        anchor.x = (int) Math.min(anchor.x, shown - SIZE);
+        anchor.y = (int) Math.min(anchor.y, shown - SIZE);
+        double pixel = image.getWidth() / shown;
+        view.setViewport(new Rectangle2D(anchor.x * pixel, anchor.y * pixel, SIZE * pixel, SIZE * pixel));
     }
 
     /**
@@ -0,0 +1,201 @@
+package place.client.model;
+
+import place.PlaceTile;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The tile changes made to a {@link ClientModel}, for whoever wants to see
+ * them.  The network thread writes each batch of changes into a ring and
+ * publishes it with a single volatile write; every {@link Reader} has its own
+ * place in the ring and takes all the changes that have piled up since it
+ * last looked, whenever it gets round to it.  Nobody takes a lock, so a slow
+ * reader never holds up the network thread, and a busy network thread never
+ * holds up a reader.
+ *
+ * A reader that falls so far behind that the ring has come round and written
+ * over changes it had not read yet, or that is reading when the whole board
+ * is replaced, is told to read the whole board again instead.  Either way it
+ * ends up with everything.
+ *
+ * @author Michael Jansen
+ */
+public class ChangeFeed {
+    /**
+     * One change in the ring, tagged with its position so a reader can tell
+     * when it has been written over.
+     */
+    private static class Entry {
+        final long position;
+        /** The new tile, or null if the whole board was replaced */
+        final PlaceTile tile;
+
+        Entry(long position, PlaceTile tile) {
+            this.position = position;
+            this.tile = tile;
+        }
+    }
+
+    private final Entry[] ring;
+    private final int mask;
+    /** Position after the last published change (written by the network thread only) */
+    private volatile long published;
+    private volatile boolean closed;
+    private final List<Reader> readers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Create an empty feed.
+     *
+     * @param capacity the most changes a reader can fall behind by before it
+     *                 has to read the whole board, rounded up to a power of two
+     */
+    public ChangeFeed(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.ring = new Entry[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Start reading the changes made from now on.
+     *
+     * @param onChange run on the network thread when changes arrive for a
+     *                 reader that had taken everything before, so once per
+     *                 batch the reader has not picked up yet; it must not
+     *                 block, e.g. it can hand work to another thread.  May be null
+     * @return the reader
+     */
+    public Reader newReader(Runnable onChange) {
+        Reader reader = new Reader(onChange);
+        readers.add(reader);
+        return reader;
+    }
+
+    /**
+     * Publish a batch of changes.  Network thread only.
+     *
+     * @param tiles the new tiles
+     */
+    void publish(PlaceTile[] tiles) {
+        long position = published;
+        for (PlaceTile tile : tiles) {
+            ring[(int) position & mask] = new Entry(position, tile);
+            position++;
+        }
+        published = position;
+        signal();
+    }
+
+    /**
+     * Tell every reader the whole board has been replaced.  Network thread only.
+     */
+    void reset() {
+        publish(new PlaceTile[]{null});
+    }
+
+    /**
+     * Wake every reader for good, once the model will not change again
+     */
+    void close() {
+        closed = true;
+        signal();
+    }
+
+    private void signal() {
+        for (Reader reader : readers) {
+            reader.signal();
+        }
+    }
+
+    /**
+     * One consumer's place in the feed.  Each reader must only be used by
+     * one thread at a time.
+     */
+    public class Reader {
+        private final Runnable onChange;
+        /** Position of the next change to read */
+        private long next = published;
+        /** Set when the reader has taken everything and wants to hear about more */
+        private final AtomicBoolean armed = new AtomicBoolean(true);
+        /** Thread waiting in await, or null */
+        private volatile Thread waiter;
+
+        private Reader(Runnable onChange) {
+            this.onChange = onChange;
+        }
+
+        /**
+         * Take every change published since the last call.  Changes to the
+         * same tile come in the order they were made.
+         *
+         * @param into where to add the changes
+         * @return false if the reader missed changes or the board was
+         *         replaced, in which case nothing is added and the reader must
+         *         read the whole board from the model instead
+         */
+        public boolean drain(List<PlaceTile> into) {
+            // Arm before looking, so a batch published meanwhile still signals
+            armed.set(true);
+            long end = published;
+            if (end - next > ring.length) {
+                next = end;
+                return false;
+            }
+            int start = into.size();
+            for (long position = next; position < end; position++) {
+                Entry entry = ring[(int) position & mask];
+                if (entry.position != position || entry.tile == null) {
+                    // Written over while reading, or the board was replaced
+                    into.subList(start, into.size()).clear();
+                    next = end;
+                    return false;
+                }
+                into.add(entry.tile);
+            }
+            next = end;
+            return true;
+        }
+
+        /**
+         * Wait until there are changes to take or the feed is closed, then
+         * take them.
+         *
+         * @param into where to add the changes
+         * @return as for {@link #drain(List)}
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public boolean await(List<PlaceTile> into) throws InterruptedException {
+            waiter = Thread.currentThread();
+            try {
+                while (next == published && !closed) {
+                    LockSupport.park(this);
+                    if (Thread.interrupted()) throw new InterruptedException();
+                }
+            } finally {
+                waiter = null;
+            }
+            return drain(into);
+        }
+
+        /**
+         * @return whether there are changes this reader has not taken
+         */
+        public boolean hasChanges() {
+            return next != published;
+        }
+
+        /**
+         * Stop reading; the network thread no longer signals this reader
+         */
+        public void close() {
+            readers.remove(this);
+        }
+
+        private void signal() {
+            Thread thread = waiter;
+            if (thread != null) LockSupport.unpark(thread);
+            if (onChange != null && armed.compareAndSet(true, false)) onChange.run();
+        }
+    }
+}
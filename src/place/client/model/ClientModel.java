@@ -1,25 +1,29 @@
 package place.client.model;
 
 import place.PlaceBoard;
+import place.PlaceColor;
 import place.PlaceTile;
-import java.util.Observable;
 
 /**
- * A model for the clients to connect to so whenever a change is made to the model the client is notified
+ * A model for the clients to connect to. Every change made to the model is published on
+ * a {@link ChangeFeed}, which views and bots read at their own pace
  *
  * @author Michael Jansen
  * @author Tyson Levy
  * @author Leelan Carbonell
  */
-public class ClientModel extends Observable {
+public class ClientModel {
 
-    private PlaceBoard board;
+    /** Changes a reader can fall behind by before it has to reread the board (place.feed) */
+    private static final int FEED_CAPACITY = Integer.getInteger("place.feed", 65536);
 
-    private boolean running = true;
+    private volatile PlaceBoard board;
+
+    private volatile boolean running = true;
 
     private boolean ready;
 
-    private PlaceTile lastTileChanged;
+    private final ChangeFeed changes = new ChangeFeed(FEED_CAPACITY);
 
     /**
      * Create a new board of all white tiles.
@@ -36,6 +40,26 @@ public class ClientModel extends Observable {
         return this.board;
     }
 
+    /**
+     * Get the feed of changes made to the board.
+     *
+     * @return the feed
+     */
+    public ChangeFeed getChanges() {
+        return this.changes;
+    }
+
+    /**
+     * Wait until the board has arrived from the server or the model is closed.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void awaitBoard() throws InterruptedException {
+        while (!this.ready && this.running) {
+            this.wait();
+        }
+    }
+
     /**
      * Get a tile on the board
      *
@@ -48,6 +72,18 @@ public class ClientModel extends Observable {
         return this.board.getTile(row, col);
     }
 
+    /**
+     * Get the color of a tile without making a tile object
+     *
+     * @param row row
+     * @param col column
+     * @rit.pre row and column constitute a valid board coordinate
+     * @return the color
+     */
+    public PlaceColor getColor(int row, int col){
+        return this.board.getColor(row, col);
+    }
+
     /**
      * Change a tile in the board.
      *
@@ -55,22 +91,38 @@ public class ClientModel extends Observable {
      * @rit.pre row and column constitute a valid board coordinate
      */
     public void setTile(PlaceTile tile) {
-        this.board.setTile(tile);
-        this.lastTileChanged = tile;
-        super.setChanged();
-        super.notifyObservers();
+        setTiles(new PlaceTile[]{tile});
     }
 
     /**
-     * initializes the models board to be equal to game
+     * Change a batch of tiles in the board and publish them as one batch,
+     * after all of them have been applied. Only one thread may change the
+     * model.
+     *
+     * @param tiles the new tiles
+     * @rit.pre rows and columns constitute valid board coordinates
+     */
+    public void setTiles(PlaceTile[] tiles) {
+        if (tiles.length == 0) return;
+        for (PlaceTile tile : tiles) {
+            this.board.setTile(tile);
+        }
+        this.changes.publish(tiles);
+    }
+
+    /**
+     * initializes the models board to be equal to game. Readers of the
+     * change feed are told to read the whole board again
      *
      * @param game
      */
     public void initBoard(PlaceBoard game){
         board = game;
-        this.ready = true;
-        super.setChanged();
-        super.notifyObservers();
+        this.changes.reset();
+        synchronized (this) {
+            this.ready = true;
+            this.notifyAll();
+        }
     }
 
     /**
@@ -81,10 +133,14 @@ public class ClientModel extends Observable {
     }
 
     /**
-     * Sets running to false
+     * Sets running to false and wakes everyone waiting on the model
      */
     public void close(){
         this.running = false;
+        this.changes.close();
+        synchronized (this) {
+            this.notifyAll();
+        }
     }
 
     /**
@@ -92,11 +148,6 @@ public class ClientModel extends Observable {
      */
     public int getDim(){ return board.DIM; }
 
-    /**
-     * returns the last tile changed
-     */
-    public PlaceTile getLastTileChanged(){return lastTileChanged;}
-
     /**
      * Return a string representation of the board.  It displays the tile color as
      * a single character hex value in the range 0-F.
@@ -5,13 +5,21 @@ import place.PlaceColor;
 import place.PlaceException;
 import place.PlaceTile;
 import place.client.model.ClientModel;
+import place.network.FrameBuffer;
+import place.network.PlaceExchange;
 import place.network.PlaceRequest;
 
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.Scanner;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -21,6 +29,21 @@ import java.util.Scanner;
  * triumvirate, in that part of its purpose is to forward user actions
  * to the remote server.
  *
+ * Nothing is written on the caller's thread. Requests wait in a queue for a
+ * writer thread, which writes everything that is ready and flushes once.
+ * Moves wait in a queue of their own and leave one at a time, each as soon as
+ * the server's cooldown allows, so a move made too soon is sent late instead
+ * of being turned away. A second move to a cell that is still waiting
+ * replaces the first.
+ *
+ * If the connection drops the client connects again for a while
+ * (place.reconnect milliseconds, 30000 by default, 0 to give up straight away)
+ * and picks up where it left off: the server is told the last SEQUENCE it sent
+ * and sends only the changes made since, or the whole board if it no longer
+ * has them all, which is applied as the tiles that differ. Moves waiting for
+ * the cooldown, and any that were being written when the connection
+ * dropped, wait for the new connection.
+ *
  * @author Robert St Jacques @ RIT SE
  * @author Sean Strout @ RIT CS
  * @author James Heliotis @ RIT CS
@@ -33,6 +56,30 @@ public class NetworkClient {
      */
     private static final boolean DEBUG = false;
 
+    /**
+     * Milliseconds the server makes a user wait between moves. Set with
+     * place.cooldown, the same property the server reads.
+     */
+    private static final long COOLDOWN_MILLIS = Long.getLong( "place.cooldown", 500 );
+
+    /**
+     * Milliseconds to keep trying to get back to the server after the
+     * connection drops, or 0 to close at once. Set with place.reconnect.
+     */
+    private static final long RECONNECT_MILLIS = Long.getLong( "place.reconnect", 30000 );
+
+    /**
+     * Milliseconds added to the cooldown between moves, so a move that the
+     * network delays a little does not arrive too soon after the one before
+     * and get turned down. Set with place.paceMargin.
+     */
+    private static final long PACE_MARGIN_MILLIS = Long.getLong( "place.paceMargin", Math.max( 25, COOLDOWN_MILLIS / 10 ) );
+
+    /**
+     * Longest pause between attempts to reconnect.
+     */
+    private static final long MAX_RETRY_MILLIS = 2000;
+
     /**
      * Print method that does something only if DEBUG is true
      *
@@ -44,20 +91,33 @@ public class NetworkClient {
         }
     }
 
+    /**
+     * The server's host and port, for reconnecting.
+     */
+    private final String hostname;
+    private final int port;
+
     /**
      * The {@link Socket} used to communicate with the place server.
+     * It and the streams and exchange below are replaced by the read thread
+     * when it reconnects, while holding sendLock.
      */
     private Socket sock;
 
     /**
-     * The {@link Scanner} used to read requests from the place server.
+     * The stream used to read requests from the place server.
+     */
+    private DataInputStream networkIn;
+
+    /**
+     * The stream used to write requests to the place server.
      */
-    private ObjectInputStream networkIn;
+    private OutputStream networkOut;
 
     /**
-     * The {@link PrintStream} used to write responses to the okace server.
+     * Frames requests going to and coming from the server.
      */
-    private ObjectOutputStream networkOut;
+    private PlaceExchange exchange;
 
     /**
      * The {@link ClientModel} used to keep track of the state of the game.
@@ -65,16 +125,53 @@ public class NetworkClient {
     public ClientModel game;
 
     /**
-     * Sentinel used to control the main game loop.
+     * Sentinel used to control the main game loop. Volatile, since close()
+     * clears it while holding sendLock rather than this.
      */
-    private boolean go;
+    private volatile boolean go;
     /**
      * Username for the connection. Used when sending moves.
      */
     private String username;
 
     private boolean loaded = false;
-    private long lastSendTime = 0;
+
+    /**
+     * Guards the queues below. The writer thread waits on it.
+     */
+    private final Object sendLock = new Object();
+
+    /**
+     * Requests other than moves waiting to be written, in order.
+     */
+    private final Queue<PlaceRequest<?>> outgoing = new ArrayDeque<>();
+
+    /**
+     * Moves waiting for the cooldown, oldest first, keyed by row and column.
+     */
+    private final LinkedHashMap<Long, PlaceTile> moves = new LinkedHashMap<>();
+
+    /**
+     * System.nanoTime() when the next move may leave.
+     */
+    private long nextMove = System.nanoTime();
+
+    /**
+     * Whether the writer may use the connection. Guarded by sendLock.
+     */
+    private boolean connected;
+
+    /**
+     * The rectangles last subscribed to, sent again after reconnecting, or
+     * null. Guarded by sendLock.
+     */
+    private int[] subscription;
+
+    /**
+     * Session and sequence number of the last SEQUENCE the server sent.
+     * Read thread only.
+     */
+    private long session, sequence;
 
     public synchronized boolean isLoaded(){return loaded;}
 
@@ -108,12 +205,15 @@ public class NetworkClient {
     public NetworkClient( String hostname, int port, String username, ClientModel model )
             throws PlaceException {
         try {
-            this.sock = new Socket( hostname, port );
-            this.networkOut = new ObjectOutputStream( sock.getOutputStream() );
-            this.networkIn = new ObjectInputStream( sock.getInputStream() );
+            this.hostname = hostname;
+            this.port = port;
             this.game = model;
             this.username = username;
             this.go = true;
+            this.open();
+            Thread writeThread = new Thread( () -> this.write(), "place-writer" );
+            writeThread.setDaemon( true );
+            writeThread.start();
 
             // Run rest of client in separate thread.
             // This threads stops on its own at the end of the game and
@@ -135,25 +235,251 @@ public class NetworkClient {
     }
 
     /**
-     * Sends a move to the server if its been over 500 milliseconds since the last change
-     * @param row
-     * @param col
-     * @param color
+     * Queue a move to be sent as soon as the cooldown allows. Never blocks.
+     * A move to a cell that already has one waiting replaces it.
+     * @param row the row, or -1 to close the connection
+     * @param col the column
+     * @param color the color
      */
     public void sendMove(int row, int col, PlaceColor color) {
-        if(System.currentTimeMillis() - lastSendTime >= 500) {
-            lastSendTime = System.currentTimeMillis();
-            try {
-                if (row != -1) {
-                    networkOut.writeUnshared(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE, new PlaceTile(row, col, username, color, System.currentTimeMillis())));
-                } else {
-                    this.close();
+        if (row == -1) {
+            this.close();
+            return;
+        }
+        synchronized (sendLock) {
+            // The time is set when the move leaves
+            moves.put(((long) row << 32) | col, new PlaceTile(row, col, username, color));
+            sendLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return the number of moves waiting for the cooldown
+     */
+    public int getPendingMoves() {
+        synchronized (sendLock) {
+            return moves.size();
+        }
+    }
+
+    /**
+     * Wait until every queued move has been sent, for callers that want to
+     * make moves no faster than the server takes them.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitMovesSent() throws InterruptedException {
+        synchronized (sendLock) {
+            while (!moves.isEmpty() && goodToGo()) {
+                sendLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Ask the server to only send the tile changes inside some rectangles of the
+     * board. The server answers with what is currently in them.
+     * @param rects the row, column, number of rows and number of columns of each
+     *              rectangle, or nothing to get every change again
+     */
+    public void subscribe(int... rects) {
+        synchronized (sendLock) {
+            subscription = rects.length == 0 ? null : rects.clone();
+        }
+        send(new PlaceRequest<>(PlaceRequest.RequestType.SUBSCRIBE, rects));
+    }
+
+    /**
+     * Connect to the server and queue the login, asking to resume from the
+     * last SEQUENCE if there was one, ahead of anything else waiting. Called
+     * by the constructor and then only by the read thread.
+     * @throws IOException if the server cannot be reached
+     */
+    private void open() throws IOException {
+        Socket socket = new Socket( hostname, port );
+        try {
+            socket.setTcpNoDelay( true );
+            OutputStream out = new BufferedOutputStream( socket.getOutputStream() );
+            DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+            synchronized (sendLock) {
+                this.sock = socket;
+                this.networkOut = out;
+                this.networkIn = in;
+                this.exchange = new PlaceExchange();
+                // Anything else waiting was for the old connection; only the subscription still matters
+                outgoing.clear();
+                if (RECONNECT_MILLIS > 0) {
+                    outgoing.add(new PlaceRequest<>(PlaceRequest.RequestType.RESUME, new long[]{session, sequence}));
                 }
-            }catch (SocketException e){}
+                outgoing.add(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, this.username));
+                if (subscription != null) {
+                    outgoing.add(new PlaceRequest<>(PlaceRequest.RequestType.SUBSCRIBE, subscription));
+                }
+                this.connected = true;
+                sendLock.notifyAll();
+            }
+        }
+        catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Keep trying to connect again until it works, the client is closed or
+     * place.reconnect milliseconds have gone by since the connection was
+     * lost. Read thread only.
+     * @param deadline System.nanoTime() to give up at
+     * @param again whether the last attempt connected but was not let in
+     * @return whether the client is connected again
+     */
+    private boolean reconnect(long deadline, boolean again) {
+        synchronized (sendLock) {
+            this.connected = false;
+        }
+        closeSocket();
+        if (RECONNECT_MILLIS <= 0) return false;
+        if (!again) System.out.println("Connection lost, reconnecting");
+        long pause = again ? MAX_RETRY_MILLIS : 100;
+        while (goodToGo() && System.nanoTime() - deadline < 0) {
+            try {
+                Thread.sleep(pause);
+                this.open();
+                return true;
+            }
+            catch (InterruptedException e) {
+                return false;
+            }
             catch (IOException e) {
-                e.printStackTrace();
+                pause = Math.min(pause * 2, MAX_RETRY_MILLIS);
             }
         }
+        return false;
+    }
+
+    /**
+     * Close the current socket, which ends whatever is reading or writing it.
+     */
+    private void closeSocket() {
+        Socket socket;
+        synchronized (sendLock) {
+            socket = this.sock;
+        }
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            // Going anyway
+        }
+    }
+
+    /**
+     * Queue a request to be written ahead of any moves that are waiting.
+     * @param request the request
+     */
+    private void send(PlaceRequest<?> request) {
+        synchronized (sendLock) {
+            outgoing.add(request);
+            sendLock.notifyAll();
+        }
+    }
+
+    /**
+     * Write queued requests, and each queued move when the cooldown allows,
+     * until the connection closes. Everything ready is written before one
+     * flush. Runs on the writer thread, the only one that uses the exchange
+     * for writing.
+     */
+    private void write() {
+        FrameBuffer frame = new FrameBuffer(256);
+        List<PlaceRequest<?>> ready = new ArrayList<>();
+        try {
+            while (true) {
+                Socket socket;
+                OutputStream out;
+                PlaceExchange codec;
+                synchronized (sendLock) {
+                    while (ready.isEmpty()) {
+                        if (!goodToGo()) return;
+                        if (!connected) {
+                            sendLock.wait();
+                            continue;
+                        }
+                        ready.addAll(outgoing);
+                        outgoing.clear();
+                        long now = System.nanoTime();
+                        if (!moves.isEmpty() && now - nextMove >= 0) {
+                            Iterator<PlaceTile> oldest = moves.values().iterator();
+                            PlaceTile tile = oldest.next();
+                            oldest.remove();
+                            tile.setTime(System.currentTimeMillis());
+                            ready.add(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE, tile));
+                            nextMove = now + TimeUnit.MILLISECONDS.toNanos(COOLDOWN_MILLIS + PACE_MARGIN_MILLIS);
+                            // Wake anyone waiting for the moves to go
+                            sendLock.notifyAll();
+                        }
+                        if (ready.isEmpty()) {
+                            if (moves.isEmpty()) {
+                                sendLock.wait();
+                            } else {
+                                TimeUnit.NANOSECONDS.timedWait(sendLock, nextMove - now);
+                            }
+                        }
+                    }
+                    socket = this.sock;
+                    out = this.networkOut;
+                    codec = this.exchange;
+                }
+                try {
+                    frame.reset();
+                    for (PlaceRequest<?> request : ready) {
+                        codec.encode(request, frame);
+                    }
+                    frame.writeTo(out);
+                    out.flush();
+                }
+                catch (IOException e) {
+                    // The read thread notices and reconnects; the moves go again on the new connection
+                    synchronized (sendLock) {
+                        if (socket == this.sock) this.connected = false;
+                        requeue(ready);
+                    }
+                    try {
+                        socket.close();
+                    }
+                    catch (IOException ce) {
+                        // Gone anyway
+                    }
+                }
+                catch (RuntimeException e) {
+                    // A request that cannot be encoded is dropped, not the writer
+                    e.printStackTrace();
+                }
+                ready.clear();
+            }
+        }
+        catch (InterruptedException e) {
+            // Closing
+        }
+    }
+
+    /**
+     * Put the moves among requests that may not have reached the server back
+     * at the front of the queue, unless a newer move to the same cell is
+     * waiting. Other requests are sent again by open(). Holds sendLock.
+     * @param unsent the requests
+     */
+    private void requeue(List<PlaceRequest<?>> unsent) {
+        LinkedHashMap<Long, PlaceTile> requeued = new LinkedHashMap<>();
+        for (PlaceRequest<?> request : unsent) {
+            if (request.getType() != PlaceRequest.RequestType.CHANGE_TILE) continue;
+            PlaceTile tile = (PlaceTile) request.getData();
+            long cell = ((long) tile.getRow() << 32) | tile.getCol();
+            if (!moves.containsKey(cell)) requeued.put(cell, tile);
+        }
+        if (requeued.isEmpty()) return;
+        requeued.putAll(moves);
+        moves.clear();
+        moves.putAll(requeued);
     }
 
     /**
@@ -163,10 +489,13 @@ public class NetworkClient {
     public void close() {
         try {
 
-            this.go = false;
-            this.networkIn.close();
-            this.networkOut.close();
-            this.sock.close();
+            Socket socket;
+            synchronized (sendLock) {
+                this.go = false;
+                socket = this.sock;
+                sendLock.notifyAll();
+            }
+            socket.close();
         }
         catch (SocketException e) {}
         catch( IOException ioe ) {
@@ -183,32 +512,50 @@ public class NetworkClient {
      */
     private void run() {
 
-        try {
-            this.networkOut.writeUnshared(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, this.username));
-        }
-        catch (IOException e){
-            e.printStackTrace();
-            System.exit(-1);
-        }
-
+        // Whether the current connection is a reconnect that has not been let in yet
+        boolean returning = false;
+        // System.nanoTime() to stop trying to reconnect at
+        long deadline = 0;
         while(this.goodToGo()) try {
-            PlaceRequest<?> request = (PlaceRequest<?>) networkIn.readUnshared();
+            PlaceRequest<?> request = exchange.read(networkIn);
             if (request.getType() == PlaceRequest.RequestType.LOGIN_SUCCESS) {
-                System.out.println("Login Success");
+                if (returning) {
+                    System.out.println("Reconnected");
+                    returning = false;
+                } else {
+                    System.out.println("Login Success");
+                }
             } else if (request.getType() == PlaceRequest.RequestType.ERROR) {
                 System.err.println((String) request.getData());
+                // The server may not have noticed the old connection is gone yet
+                if (returning) throw new EOFException();
             } else if (request.getType() == PlaceRequest.RequestType.BOARD) {
-                game.initBoard((PlaceBoard) request.getData());
-                System.out.println("Board received:");
-                this.loaded = true;
+                if (this.isLoaded()) {
+                    this.reload((PlaceBoard) request.getData());
+                } else {
+                    game.initBoard((PlaceBoard) request.getData());
+                    System.out.println("Board received:");
+                    this.loaded = true;
+                }
+            } else if (request.getType() == PlaceRequest.RequestType.SEQUENCE) {
+                long[] mark = (long[]) request.getData();
+                this.session = mark[0];
+                this.sequence = mark[1];
             } else if (request.getType() == PlaceRequest.RequestType.TILE_CHANGED) {
                 //System.out.println("\nTile Changed: " + request.getData());
                 game.setTile((PlaceTile) request.getData());
+            } else if (request.getType() == PlaceRequest.RequestType.TILES_CHANGED) {
+                game.setTiles((PlaceTile[]) request.getData());
+            }
+        }catch (SocketException | EOFException e) {
+            if (!this.goodToGo()) break;
+            if (!returning) deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RECONNECT_MILLIS);
+            if (this.reconnect(deadline, returning)) {
+                returning = true;
+            } else {
+                close();
+                System.out.println("SERVER CLOSED");
             }
-        }catch (SocketException e) {}
-        catch (EOFException e) {
-            close();
-            System.out.println("SERVER CLOSED");
         } catch (NoSuchElementException nse) {
             // Looks like the connection shut down.
             nse.printStackTrace();
@@ -220,4 +567,28 @@ public class NetworkClient {
         this.close();
     }
 
+    /**
+     * Bring the model up to date with a whole board sent after reconnecting,
+     * as the tiles that differ, so readers of the change feed see ordinary
+     * changes. Read thread only.
+     * @param board the board the server sent
+     */
+    private void reload(PlaceBoard board) {
+        if (board.DIM != game.getDim()) {
+            game.initBoard(board);
+            return;
+        }
+        PlaceBoard current = game.getBoard();
+        List<PlaceTile> changed = new ArrayList<>();
+        for (int row = 0; row < board.DIM; row++) {
+            for (int col = 0; col < board.DIM; col++) {
+                if (board.getColor(row, col) != current.getColor(row, col)
+                        || board.getTime(row, col) != current.getTime(row, col)) {
+                    changed.add(board.getTile(row, col));
+                }
+            }
+        }
+        game.setTiles(changed.toArray(new PlaceTile[0]));
+    }
+
 }
@@ -1,6 +1,7 @@
 package place.client.ptui;
 
 import place.*;
+import place.client.model.ChangeFeed;
 import place.client.model.ClientModel;
 import place.client.network.NetworkClient;
 import java.io.PrintWriter;
@@ -13,13 +14,12 @@ import java.util.*;
  * @author Tyson Levy
  * @author Leelan Carbonell
  */
-public class PlacePTUI extends ConsoleApplication implements Observer {
+public class PlacePTUI extends ConsoleApplication {
 
     private ClientModel model;
     private NetworkClient serverConn;
     private Scanner userIn;
     private PrintWriter userOut;
-    private boolean firstUpdate = true;
 
     /**
      * Initializes the client by starting up the connection with a Network Client
@@ -39,7 +39,6 @@ public class PlacePTUI extends ConsoleApplication implements Observer {
             // Create the network connection.
             try{
                 this.serverConn = new NetworkClient(host, port, username, this.model);
-                this.serverConn.game.addObserver( this );
             }
             catch(PlaceException e){
                 System.out.println(e);
@@ -48,22 +47,32 @@ public class PlacePTUI extends ConsoleApplication implements Observer {
     }
 
     /**
-     * Starts up the PTUI and keeps it running until the connection closes
+     * Starts up the PTUI and keeps it running until the connection closes.
+     * Prints the state of the board whenever it has changed, however many
+     * changes that took, so a busy board never holds up the network thread
      *
      * @param userIn
      * @param userOut
      */
     @Override
-    public synchronized void go(Scanner userIn, PrintWriter userOut) {
+    public void go(Scanner userIn, PrintWriter userOut) {
         this.userIn = userIn;
         this.userOut = userOut;
 
-        while(this.serverConn.game.isRunning()){
-            try {
-                this.wait();
+        ChangeFeed.Reader changes = this.model.getChanges().newReader(null);
+        List<PlaceTile> batch = new ArrayList<>();
+        try {
+            this.model.awaitBoard();
+            Thread moves = new Thread( () -> this.run() );
+            moves.start();
+            while(this.model.isRunning()){
+                System.out.println(this.model.toString()+"\n");
+                batch.clear();
+                changes.await(batch);
             }
-            catch( InterruptedException ie ) {}
         }
+        catch( InterruptedException ie ) {}
+        changes.close();
     }
 
     /**
@@ -76,27 +85,6 @@ public class PlacePTUI extends ConsoleApplication implements Observer {
         this.serverConn.close();
     }
 
-    /**
-     * Prints out the state of the board
-     * Called when ever a change is sent to the sever
-     *
-     * @param t
-     * @param o
-     */
-    @Override
-    public void update( Observable t, Object o ) {
-
-        assert t == this.model: "Update from non-model Observable";
-
-        System.out.println(serverConn.game.toString()+"\n");
-
-        if(firstUpdate){
-            firstUpdate = false;
-            Thread userIn = new Thread( () -> this.run() );
-            userIn.start();
-        }
-    }
-
     /**
      * Waits for the user to make moves and then send them to the NetworkClient
      */
@@ -0,0 +1,314 @@
+package place.network;
+
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+import place.UserTable;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+/**
+ * The compact binary encoding of PlaceRequests.  A payload starts with one
+ * byte holding the request type's ordinal, followed by:
+ * <pre>
+ *   LOGIN, LOGIN_SUCCESS, ERROR   string
+ *   CHANGE_TILE                   varint row, varint col, color (0x10 if a name
+ *                                 follows), [string owner], time
+ *   TILE_CHANGED                  varint row, varint col, owner
+ *   TILES_CHANGED                 varint count, then row, col and owner for each
+ *   BOARD                         a {@link BoardSnapshot}
+ *   SUBSCRIBE                     varint count, then count varints
+ *   PING                          zig-zag varlong
+ *   RESUME, SEQUENCE              varlong session, varlong sequence
+ *
+ *   owner   byte (color in the low 4 bits, 0x10 if a name follows),
+ *           varint user id, [string name], time
+ *   time    zig-zag varint difference from the previous time on the stream
+ *   string  varint byte count, UTF-8 bytes
+ * </pre>
+ * User ids come from a {@link UserTable}.  The first time an id goes out on
+ * a stream its name goes with it, so the receiver can build its own table.
+ * The owner of a CHANGE_TILE is only sent when it is not the user that
+ * logged in on the stream, which only a gateway placing for its users does.
+ *
+ * An instance keeps state for one stream in each direction, so it must not
+ * be shared between connections.
+ *
+ * @author Michael Jansen
+ */
+class BinaryCodec {
+    /** Flag in the color byte for an owner whose name follows */
+    private static final int NAME_FOLLOWS = 0x10;
+
+    /** Ids and names of the users */
+    private final UserTable users;
+    /** Ids whose names have already been sent */
+    private final BitSet sentNames = new BitSet();
+    /** Previous time written */
+    private long lastTimeOut;
+    /** Previous time read */
+    private long lastTimeIn;
+    /** The user that logged in on this stream */
+    private String login = "";
+
+    /** Payload being decoded */
+    private byte[] in;
+    /** Read position in the payload */
+    private int pos;
+
+    /**
+     * Create a codec for one connection.
+     *
+     * @param users the table user ids are taken from and added to
+     */
+    BinaryCodec(UserTable users) {
+        this.users = users;
+    }
+
+    /**
+     * Write the payload of a request.
+     *
+     * @param request the request
+     * @param out where to write it
+     */
+    void encode(PlaceRequest<?> request, FrameBuffer out) {
+        out.write(request.getType().ordinal());
+        switch (request.getType()) {
+            case LOGIN:
+                login = (String) request.getData();
+                writeString(login, out);
+                break;
+            case LOGIN_SUCCESS:
+            case ERROR:
+                writeString((String) request.getData(), out);
+                break;
+            case CHANGE_TILE: {
+                PlaceTile tile = (PlaceTile) request.getData();
+                writeVarint(tile.getRow(), out);
+                writeVarint(tile.getCol(), out);
+                boolean other = tile.getOwner() != null && !tile.getOwner().equals(login);
+                out.write(tile.getColor().getNumber() | (other ? NAME_FOLLOWS : 0));
+                if (other) writeString(tile.getOwner(), out);
+                writeTime(tile.getTime(), out);
+                break;
+            }
+            case TILE_CHANGED: {
+                PlaceTile tile = (PlaceTile) request.getData();
+                writeVarint(tile.getRow(), out);
+                writeVarint(tile.getCol(), out);
+                writeOwner(tile.getColor().getNumber(), users.idOf(tile.getOwner()), tile.getTime(), out);
+                break;
+            }
+            case TILES_CHANGED: {
+                PlaceTile[] tiles = (PlaceTile[]) request.getData();
+                writeVarint(tiles.length, out);
+                for (PlaceTile tile : tiles) {
+                    writeVarint(tile.getRow(), out);
+                    writeVarint(tile.getCol(), out);
+                    writeOwner(tile.getColor().getNumber(), users.idOf(tile.getOwner()), tile.getTime(), out);
+                }
+                break;
+            }
+            case SUBSCRIBE: {
+                int[] rects = (int[]) request.getData();
+                writeVarint(rects.length, out);
+                for (int value : rects) {
+                    writeVarint(value, out);
+                }
+                break;
+            }
+            case PING: {
+                long value = (Long) request.getData();
+                writeVarlong((value << 1) ^ (value >> 63), out);
+                break;
+            }
+            case RESUME:
+            case SEQUENCE: {
+                long[] mark = (long[]) request.getData();
+                writeVarlong(mark[0], out);
+                writeVarlong(mark[1], out);
+                break;
+            }
+            case BOARD: {
+                Object data = request.getData();
+                BoardSnapshot snapshot = data instanceof BoardSnapshot
+                        ? (BoardSnapshot) data : BoardSnapshot.of((PlaceBoard) data, 0);
+                if (snapshot.getUsers() != users) {
+                    // The receiver takes the snapshot's ids as this stream's ids
+                    throw new IllegalArgumentException("Board does not use this stream's user table");
+                }
+                out.write(snapshot.getBytes(), 0, snapshot.getBytes().length);
+                sentNames.set(0, snapshot.getUserCount());
+                break;
+            }
+        }
+    }
+
+    /**
+     * Read the payload of a request.
+     *
+     * @param payload the payload
+     * @return the request
+     * @throws IOException if the payload is malformed
+     */
+    PlaceRequest<?> decode(byte[] payload) throws IOException {
+        this.in = payload;
+        this.pos = 0;
+        int tag = readByte();
+        PlaceRequest.RequestType[] types = PlaceRequest.RequestType.values();
+        if (tag >= types.length) {
+            throw new IOException("Unknown request type " + tag);
+        }
+        PlaceRequest.RequestType type = types[tag];
+        switch (type) {
+            case LOGIN:
+                login = readString();
+                return new PlaceRequest<>(type, login);
+            case LOGIN_SUCCESS:
+            case ERROR:
+                return new PlaceRequest<>(type, readString());
+            case CHANGE_TILE: {
+                int row = readVarint();
+                int col = readVarint();
+                int flags = readByte();
+                String owner = (flags & NAME_FOLLOWS) != 0 ? readString() : login;
+                return new PlaceRequest<>(type, new PlaceTile(row, col, owner, color(flags & 0x0F), readTime()));
+            }
+            case TILE_CHANGED: {
+                int row = readVarint();
+                int col = readVarint();
+                return new PlaceRequest<>(type, readOwner(row, col));
+            }
+            case TILES_CHANGED: {
+                int count = readVarint();
+                if (count > in.length - pos) throw new EOFException();
+                PlaceTile[] tiles = new PlaceTile[count];
+                for (int i = 0; i < count; i++) {
+                    int row = readVarint();
+                    int col = readVarint();
+                    tiles[i] = readOwner(row, col);
+                }
+                return new PlaceRequest<>(type, tiles);
+            }
+            case SUBSCRIBE: {
+                int count = readVarint();
+                if (count > in.length - pos) throw new EOFException();
+                int[] rects = new int[count];
+                for (int i = 0; i < count; i++) {
+                    rects[i] = readVarint();
+                }
+                return new PlaceRequest<>(type, rects);
+            }
+            case PING: {
+                long zigzag = readVarlong();
+                return new PlaceRequest<>(type, (zigzag >>> 1) ^ -(zigzag & 1));
+            }
+            case RESUME:
+            case SEQUENCE:
+                return new PlaceRequest<>(type, new long[]{readVarlong(), readVarlong()});
+            default:
+                return new PlaceRequest<>(type, BoardSnapshot.decode(
+                        new ByteArrayInputStream(in, pos, in.length - pos), users));
+        }
+    }
+
+    /**
+     * Write a tile's color, owner and time.
+     */
+    private void writeOwner(int color, int id, long time, FrameBuffer out) {
+        boolean newName = !sentNames.get(id);
+        out.write(color | (newName ? NAME_FOLLOWS : 0));
+        writeVarint(id, out);
+        if (newName) {
+            writeString(users.nameOf(id), out);
+            sentNames.set(id);
+        }
+        writeTime(time, out);
+    }
+
+    /**
+     * Read a tile's color, owner and time.
+     */
+    private PlaceTile readOwner(int row, int col) throws IOException {
+        int flags = readByte();
+        int id = readVarint();
+        if ((flags & NAME_FOLLOWS) != 0) {
+            users.define(id, readString());
+        }
+        String name = users.nameOf(id);
+        if (name == null) {
+            throw new IOException("Unknown user id " + id);
+        }
+        return new PlaceTile(row, col, name, color(flags & 0x0F), readTime());
+    }
+
+    private void writeTime(long time, FrameBuffer out) {
+        long delta = time - lastTimeOut;
+        lastTimeOut = time;
+        writeVarlong((delta << 1) ^ (delta >> 63), out);
+    }
+
+    private long readTime() throws IOException {
+        long zigzag = readVarlong();
+        lastTimeIn += (zigzag >>> 1) ^ -(zigzag & 1);
+        return lastTimeIn;
+    }
+
+    private static void writeString(String s, FrameBuffer out) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length, out);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private String readString() throws IOException {
+        int length = readVarint();
+        if (length > in.length - pos) throw new EOFException();
+        String s = new String(in, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+        return s;
+    }
+
+    private static void writeVarint(int value, FrameBuffer out) {
+        writeVarlong(value & 0xFFFFFFFFL, out);
+    }
+
+    private static void writeVarlong(long value, FrameBuffer out) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private int readVarint() throws IOException {
+        long value = readVarlong();
+        if (value > Integer.MAX_VALUE) throw new IOException("Varint out of range");
+        return (int) value;
+    }
+
+    private long readVarlong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Varint too long");
+    }
+
+    private int readByte() throws IOException {
+        if (pos >= in.length) throw new EOFException();
+        return in[pos++] & 0xFF;
+    }
+
+    /**
+     * Look up a color by its number.
+     */
+    private static PlaceColor color(int number) throws IOException {
+        if (number >= PlaceColor.TOTAL_COLORS) throw new IOException("Unknown color " + number);
+        return PlaceColor.fromNumber(number);
+    }
+}
@@ -0,0 +1,277 @@
+package place.network;
+
+import place.PlaceBoard;
+import place.UserTable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A compressed copy of a board, encoded once and then sent as is to every
+ * client that logs in until the board has moved on.  The encoding is:
+ * <pre>
+ *   varint DIM, varint user count, user names in id order
+ *     (each a varint byte count plus one, or 0 for an unused id, then UTF-8),
+ *   then deflated:
+ *     colors    4 bits per cell, two cells per byte, row by row
+ *     owners    varint user id per cell
+ *     times     zig-zag varint difference from the previous cell's time
+ * </pre>
+ * The binary codec sends these bytes as the body of a BOARD request.  When a
+ * snapshot is sent with Java serialization it is replaced by the PlaceBoard it
+ * holds, so older clients still receive a PlaceBoard.
+ *
+ * @author Michael Jansen
+ */
+public class BoardSnapshot implements Serializable {
+    private static final long serialVersionUID = -6410036805740818863L;
+
+    /** Largest board a snapshot may hold, to guard against garbage sizes */
+    private static final int MAX_DIM = 1 << 14;
+
+    /** The encoded board */
+    private final transient byte[] bytes;
+    /** The table the owner ids were taken from */
+    private final transient UserTable users;
+    /** Number of user names in the snapshot */
+    private final transient int userCount;
+    /** The board version the snapshot includes every change up to */
+    private final transient long version;
+    /** When the snapshot was taken */
+    private final transient long created;
+    /** The decoded board, made the first time one is needed */
+    private transient PlaceBoard board;
+
+    private BoardSnapshot(byte[] bytes, UserTable users, int userCount, long version) {
+        this.bytes = bytes;
+        this.users = users;
+        this.userCount = userCount;
+        this.version = version;
+        this.created = System.currentTimeMillis();
+    }
+
+    /**
+     * Take a snapshot of a board.  The board may be changing while this runs;
+     * every change that finished before the call is in the snapshot.
+     *
+     * @param board the board
+     * @param version the version of the board at the time of the call
+     * @return the snapshot
+     */
+    public static BoardSnapshot of(PlaceBoard board, long version) {
+        int dim = board.DIM;
+        FrameBuffer out = new FrameBuffer((int) Math.min(1 << 24, (long) dim * dim / 4 + 256));
+        try {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            // Buffered so the single bytes of the varints do not each go through the deflater
+            DataOutputStream body = new DataOutputStream(new BufferedOutputStream(
+                    new DeflaterOutputStream(out, deflater, 64 * 1024), 64 * 1024));
+            byte[] row = new byte[(dim + 1) / 2];
+            for (int r = 0; r < dim; ++r) {
+                Arrays.fill(row, (byte) 0);
+                for (int c = 0; c < dim; ++c) {
+                    row[c >> 1] |= board.getColor(r, c).getNumber() << ((c & 1) << 2);
+                }
+                body.write(row);
+            }
+            for (int r = 0; r < dim; ++r) {
+                for (int c = 0; c < dim; ++c) {
+                    writeVarlong(board.getOwnerId(r, c), body);
+                }
+            }
+            long last = 0;
+            for (int r = 0; r < dim; ++r) {
+                for (int c = 0; c < dim; ++c) {
+                    long time = board.getTime(r, c);
+                    long delta = time - last;
+                    last = time;
+                    writeVarlong((delta << 1) ^ (delta >> 63), body);
+                }
+            }
+            body.close();
+            deflater.end();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);   // writing to memory does not fail
+        }
+
+        // Names are read last so every owner id above has one
+        UserTable users = board.getUsers();
+        int userCount = users.size();
+        FrameBuffer header = new FrameBuffer(out.size() + 16 * userCount + 16);
+        writeVarlong(dim, header);
+        writeVarlong(userCount, header);
+        for (int id = 0; id < userCount; id++) {
+            String name = users.nameOf(id);
+            if (name == null) {
+                writeVarlong(0, header);
+                continue;
+            }
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            writeVarlong(bytes.length + 1, header);
+            header.write(bytes, 0, bytes.length);
+        }
+        header.write(out.toByteBuffer().array(), 0, out.size());
+        return new BoardSnapshot(header.toByteArray(), users, userCount, version);
+    }
+
+    /**
+     * Decode a snapshot into a new board.
+     *
+     * @param in the encoded snapshot, positioned at its start
+     * @param users the table to define the snapshot's users in; the new
+     *              board's owners refer to it
+     * @return the board
+     * @throws IOException if the snapshot is malformed
+     */
+    public static PlaceBoard decode(InputStream in, UserTable users) throws IOException {
+        long size = readVarlong(in);
+        long names = readVarlong(in);
+        if (size > MAX_DIM || names > in.available()) {
+            throw new IOException("Bad board snapshot");
+        }
+        int dim = (int) size;
+        int userCount = (int) names;
+        for (int id = 0; id < userCount; id++) {
+            long length = readVarlong(in);
+            if (length == 0) continue;
+            byte[] name = new byte[(int) length - 1];
+            new DataInputStream(in).readFully(name);
+            users.define(id, new String(name, StandardCharsets.UTF_8));
+        }
+        PlaceBoard board = new PlaceBoard(dim, users);
+        Inflater inflater = new Inflater();
+        DataInputStream body = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(in, inflater, 64 * 1024), 64 * 1024));
+        // Each section is written into the board as it is read; untouched cells leave their chunks unmade
+        byte[] row = new byte[(dim + 1) / 2];
+        for (int r = 0; r < dim; ++r) {
+            body.readFully(row);
+            for (int c = 0; c < dim; ++c) {
+                board.setTile(r, c, (row[c >> 1] >> ((c & 1) << 2)) & 0x0F, UserTable.NOBODY, 0);
+            }
+        }
+        for (int r = 0; r < dim; ++r) {
+            for (int c = 0; c < dim; ++c) {
+                long owner = readVarlong(body);
+                if (owner >= userCount) throw new IOException("Unknown user id " + owner);
+                if (owner != UserTable.NOBODY) {
+                    board.setTile(r, c, board.getColor(r, c).getNumber(), (int) owner, 0);
+                }
+            }
+        }
+        long time = 0;
+        for (int r = 0; r < dim; ++r) {
+            for (int c = 0; c < dim; ++c) {
+                long zigzag = readVarlong(body);
+                time += (zigzag >>> 1) ^ -(zigzag & 1);
+                if (time != 0) {
+                    board.setTile(r, c, board.getColor(r, c).getNumber(), board.getOwnerId(r, c), time);
+                }
+            }
+        }
+        inflater.end();
+        return board;
+    }
+
+    /**
+     * @return the encoded snapshot
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the table the snapshot's owner ids come from
+     */
+    public UserTable getUsers() {
+        return users;
+    }
+
+    /**
+     * @return the number of user names in the snapshot
+     */
+    public int getUserCount() {
+        return userCount;
+    }
+
+    /**
+     * @return the board version the snapshot is up to date with
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return when the snapshot was taken, in milliseconds
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Get the board in the snapshot.  It is decoded the first time it is
+     * needed and shared after that, so it must not be changed.
+     *
+     * @return the board
+     */
+    public synchronized PlaceBoard getBoard() {
+        if (board == null) {
+            try {
+                board = decode(new ByteArrayInputStream(bytes), new UserTable());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);   // we encoded it ourselves
+            }
+        }
+        return board;
+    }
+
+    /**
+     * Send the board instead of the snapshot when Java serialization is used.
+     *
+     * @return the board
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return getBoard();
+    }
+
+    private static void writeVarlong(long value, OutputStream out) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeVarlong(long value, FrameBuffer out) {
+        try {
+            writeVarlong(value, (OutputStream) out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long readVarlong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Varint too long");
+    }
+}
@@ -0,0 +1,72 @@
+package place.network;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A growable byte buffer that frames are encoded into.  It is a
+ * ByteArrayOutputStream that also lets the encoder patch a length prefix
+ * after the payload has been written and hand the bytes to a channel
+ * without copying them.
+ *
+ * @author Michael Jansen
+ */
+public class FrameBuffer extends ByteArrayOutputStream {
+
+    /**
+     * Create an empty buffer.
+     *
+     * @param size the initial capacity in bytes
+     */
+    public FrameBuffer(int size) {
+        super(size);
+    }
+
+    /**
+     * Append a big-endian int.
+     *
+     * @param value the value to append
+     */
+    public void writeInt(int value) {
+        write(value >>> 24);
+        write(value >>> 16);
+        write(value >>> 8);
+        write(value);
+    }
+
+    /**
+     * Overwrite four bytes that were already written with a big-endian int.
+     *
+     * @param pos the offset of the first byte
+     * @param value the value to store
+     */
+    public void putInt(int pos, int value) {
+        buf[pos] = (byte) (value >>> 24);
+        buf[pos + 1] = (byte) (value >>> 16);
+        buf[pos + 2] = (byte) (value >>> 8);
+        buf[pos + 3] = (byte) value;
+    }
+
+    /**
+     * Wrap the written bytes in a ByteBuffer.  The buffer shares this object's
+     * storage, so it is only good until the next write or reset.
+     *
+     * @return the written bytes
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    /**
+     * Empty the buffer and, if one large frame made it grow past max bytes,
+     * give that memory back.
+     *
+     * @param max the largest capacity worth keeping around
+     */
+    public void reset(int max) {
+        reset();
+        if (buf.length > max) {
+            buf = new byte[max];
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package place.network;
+
+import place.UserTable;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Moves PlaceRequests between the server and clients.  Every request travels
+ * as a frame: a 4 byte big-endian length followed by that many bytes of
+ * payload.  Because the length comes first, a non-blocking reader can tell
+ * where one request ends and the next begins without understanding the
+ * payload.
+ *
+ * The payload is written with one of two codecs.  BINARY is the compact
+ * encoding described in {@link BinaryCodec}; SERIAL is a Java serialized
+ * payload inside a frame, for debugging or interop.  A bare object stream
+ * without frames is not understood.  A client picks one with the
+ * place.codec system property (binary by default).  The server answers in
+ * whatever codec a client's first frame was written in.
+ *
+ * One exchange is used per connection.
+ *
+ * @author Michael Jansen
+ */
+public class PlaceExchange {
+    /** The payload encodings */
+    public enum Codec {
+        /** Compact binary encoding */
+        BINARY,
+        /** Java serialization */
+        SERIAL
+    }
+
+    /** Size of the length prefix in front of every frame */
+    public static final int HEADER_SIZE = 4;
+
+    /** Largest frame a reader will accept, to guard against garbage lengths */
+    public static final int MAX_FRAME_SIZE = 256 * 1024 * 1024;
+
+    /** First byte of a Java serialization stream; never a binary request type */
+    private static final int SERIAL_MAGIC = 0xAC;
+
+    /** The codec in use, or null until the first frame arrives */
+    private Codec codec;
+    /** State for the binary codec */
+    private final BinaryCodec binary;
+    /** Scratch buffer used by the blocking write method */
+    private final FrameBuffer scratch = new FrameBuffer(256);
+
+    /**
+     * Create a client side exchange, using the codec named by the place.codec
+     * system property and a fresh table of user names.
+     */
+    public PlaceExchange() {
+        this(defaultCodec(), new UserTable());
+    }
+
+    /**
+     * Create an exchange.
+     *
+     * @param codec the codec to use, or null to use whatever the first frame
+     *              read was written in
+     * @param users the table user ids are taken from and added to
+     */
+    public PlaceExchange(Codec codec, UserTable users) {
+        this.codec = codec;
+        this.binary = new BinaryCodec(users);
+    }
+
+    /**
+     * Get the codec named by the place.codec system property.
+     *
+     * @return the codec, BINARY unless the property says otherwise
+     */
+    public static Codec defaultCodec() {
+        String name = System.getProperty("place.codec", "binary");
+        return name.equalsIgnoreCase("serial") ? Codec.SERIAL : Codec.BINARY;
+    }
+
+    /**
+     * @return the codec in use, or null if it is not known yet
+     */
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Append one complete frame holding a request to the end of a buffer.
+     *
+     * @param request the request to encode
+     * @param out the buffer to append to
+     * @throws IOException if the request cannot be encoded
+     */
+    public void encode(PlaceRequest<?> request, FrameBuffer out) throws IOException {
+        int start = out.size();
+        out.writeInt(0);
+        if (codec == Codec.SERIAL) {
+            ObjectOutputStream objectOut = new ObjectOutputStream(out);
+            objectOut.writeUnshared(request);
+            objectOut.flush();
+        } else {
+            binary.encode(request, out);
+        }
+        out.putInt(start, out.size() - start - HEADER_SIZE);
+    }
+
+    /**
+     * Decode the payload of a frame (without its length prefix).
+     *
+     * @param payload the frame payload
+     * @return the request it holds
+     * @throws IOException if the payload is not a valid request
+     */
+    public PlaceRequest<?> decode(byte[] payload) throws IOException {
+        if (codec == null && payload.length > 0) {
+            codec = (payload[0] & 0xFF) == SERIAL_MAGIC ? Codec.SERIAL : Codec.BINARY;
+        }
+        if (codec != Codec.SERIAL) {
+            return binary.decode(payload);
+        }
+        try {
+            ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(payload));
+            return (PlaceRequest<?>) objectIn.readUnshared();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Malformed request", e);
+        }
+    }
+
+    /**
+     * Write a request to a blocking stream and flush it.
+     *
+     * @param request the request to send
+     * @param out the stream to write to
+     * @throws IOException if the stream fails
+     */
+    public synchronized void write(PlaceRequest<?> request, OutputStream out) throws IOException {
+        scratch.reset(64 * 1024);
+        encode(request, scratch);
+        scratch.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Read the next request from a blocking stream.
+     *
+     * @param in the stream to read from
+     * @return the next request
+     * @throws IOException if the stream fails or the frame is malformed
+     */
+    public PlaceRequest<?> read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Bad frame length: " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return decode(payload);
+    }
+}
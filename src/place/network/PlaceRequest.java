@@ -14,10 +14,17 @@ import java.io.Serializable;
  *      LOGIN: String<br>
  *      LOGIN_SUCCESS: String<br>
  *      TILE_CHANGED: PlaceTile object<br>
+ *      TILES_CHANGED: PlaceTile[]<br>
+ *      SUBSCRIBE: int[]<br>
+ *      PING: Long<br>
+ *      RESUME: long[]<br>
+ *      SEQUENCE: long[]<br>
  *
  * @author Sean Strout @ RIT CS
  */
 public class PlaceRequest<E extends Serializable> implements Serializable {
+    private static final long serialVersionUID = 6908994432343544528L;
+
     public enum RequestType {
         /**
          * After a successful client login, the server will send the current
@@ -61,7 +68,49 @@ public class PlaceRequest<E extends Serializable> implements Serializable {
          * The clients should update their view of the board each time
          * a tile change arrives.
          */
-        TILE_CHANGED
+        TILE_CHANGED,
+
+        /**
+         * Used by a server that batches its broadcasts to send every tile
+         * change from one tick at once.  It will contain an array of the new
+         * Tile objects, at most one per board coordinate.  The clients should
+         * apply them all before updating their view.
+         */
+        TILES_CHANGED,
+
+        /**
+         * A client's request to only be sent the tile changes inside some
+         * rectangles of the board.  It will contain an int array holding the
+         * row, column, number of rows and number of columns of each rectangle,
+         * or an empty array to be sent every change again.  The server answers
+         * with a TILES_CHANGED holding what is currently in the rectangles.
+         */
+        SUBSCRIBE,
+
+        /**
+         * A gateway or replica asking the server it follows to send this same
+         * request back once every change published before it has been sent.
+         * It will contain a number the sender picks, usually the time it was
+         * sent, so the round trip tells how far behind the follower is.
+         */
+        PING,
+
+        /**
+         * Sent by a client before its LOGIN to say it wants to be able to
+         * pick up where it left off if the connection drops.  It will contain
+         * the session and sequence number of the last SEQUENCE the client got
+         * on its previous connection, or two zeros on the first.  If the
+         * server still has every change since then it sends only those after
+         * LOGIN_SUCCESS instead of the BOARD.
+         */
+        RESUME,
+
+        /**
+         * Sent by the server to clients that sent RESUME.  It will contain the
+         * server's session and the sequence number of a change; every change
+         * up to that one has been sent before this request.
+         */
+        SEQUENCE
     }
 
     /** The request type */
@@ -0,0 +1,158 @@
+package place.server;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides whether the server takes a new connection.  A connection is turned
+ * away when
+ * <ul>
+ *   <li>its address has opened too many connections in the last second,</li>
+ *   <li>its address already has too many connections open,</li>
+ *   <li>the server has accepted too many connections in the last second, or</li>
+ *   <li>the server already has too many connections open.</li>
+ * </ul>
+ * Rates are counted over a sliding window of one second, estimated from the
+ * counts of the current and the previous whole second, so an address costs
+ * a few fields however many connections it makes.  Addresses with nothing
+ * open are forgotten once their window has passed, and the number of
+ * addresses remembered is capped, so a flood from many hosts cannot use up
+ * memory either: when the table is full, new addresses are turned away until
+ * room is made.
+ *
+ * Only the accepting thread may call {@link #admit}; {@link #release} can be
+ * called from any thread.
+ *
+ * @author Michael Jansen
+ */
+class AdmissionController {
+    private static final long WINDOW_MILLIS = 1000;
+
+    /**
+     * A count of events over a sliding window
+     */
+    private static class Window {
+        /** The whole window the current count belongs to */
+        long window;
+        int current, previous;
+
+        /**
+         * Estimate the events in the second up to now.
+         *
+         * @param now the time in milliseconds
+         * @return the estimate
+         */
+        double rate(long now) {
+            roll(now);
+            double previousShare = 1.0 - (double) (now % WINDOW_MILLIS) / WINDOW_MILLIS;
+            return previous * previousShare + current;
+        }
+
+        void roll(long now) {
+            long window = now / WINDOW_MILLIS;
+            if (window != this.window) {
+                previous = window == this.window + 1 ? current : 0;
+                current = 0;
+                this.window = window;
+            }
+        }
+    }
+
+    /**
+     * What is remembered about one address
+     */
+    private static class Entry extends Window {
+        /** Connections from the address that are open */
+        final AtomicInteger open = new AtomicInteger();
+    }
+
+    private final ServerConfig config;
+    private final Map<InetAddress, Entry> addresses = new ConcurrentHashMap<>();
+    /** Every accepted connection (accepting thread only) */
+    private final Window accepted = new Window();
+    /** Connections open on the whole server */
+    private final AtomicInteger open = new AtomicInteger();
+    /** When idle addresses were last forgotten (accepting thread only) */
+    private long lastSweep;
+
+    /**
+     * Create a controller.
+     *
+     * @param config the limits to apply
+     */
+    AdmissionController(ServerConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Decide whether to take a new connection, and count it if so.  A
+     * connection that is taken must be released when it closes.
+     *
+     * @param address the address it comes from
+     * @return null if the connection is taken, otherwise why it is not
+     */
+    String admit(InetAddress address) {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep >= WINDOW_MILLIS) {
+            sweep(now);
+        }
+        if (open.get() >= config.maxConnections) return "the server is full";
+        if (accepted.rate(now) >= config.acceptRate) return "too many connections to the server";
+
+        Entry entry = addresses.get(address);
+        if (entry == null) {
+            if (addresses.size() >= config.maxAddresses) {
+                sweep(now);
+                if (addresses.size() >= config.maxAddresses) return "too many addresses";
+            }
+            entry = new Entry();
+            addresses.put(address, entry);
+        }
+        if (entry.open.get() >= config.maxPerAddress) return "too many open connections from that address";
+        if (entry.rate(now) >= config.addressRate) return "too many connections from that address";
+
+        entry.current++;
+        entry.open.incrementAndGet();
+        accepted.current++;
+        open.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Count a connection that was taken as closed.
+     *
+     * @param address the address it came from
+     */
+    void release(InetAddress address) {
+        open.decrementAndGet();
+        Entry entry = addresses.get(address);
+        if (entry != null) entry.open.decrementAndGet();
+    }
+
+    /**
+     * @return the number of addresses remembered
+     */
+    int getAddresses() {
+        return addresses.size();
+    }
+
+    /**
+     * Forget the addresses that have nothing open and have not connected in
+     * the last window.
+     *
+     * @param now the time in milliseconds
+     */
+    private void sweep(long now) {
+        lastSweep = now;
+        for (Iterator<Entry> entries = addresses.values().iterator(); entries.hasNext(); ) {
+            Entry entry = entries.next();
+            // Only the accepting thread raises open, so a zero here stays zero
+            if (entry.open.get() == 0 && entry.rate(now) == 0) {
+                entries.remove();
+            }
+        }
+    }
+}
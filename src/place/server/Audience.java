@@ -0,0 +1,211 @@
+package place.server;
+
+import place.PlaceTile;
+import place.network.PlaceRequest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The clients that tile changes are sent to, and which parts of the board
+ * each of them wants.  A client sees the whole board until it subscribes to
+ * some rectangles; after that it only gets changes inside them.
+ *
+ * Each client has a slot number.  The board is divided into square chunks,
+ * and every chunk has a set of the slots subscribed to something inside it,
+ * so finding who wants a change looks at one bit set instead of every
+ * client.  Clients that see the whole board are in a set of their own.
+ *
+ * Broadcaster thread only.
+ *
+ * @author Michael Jansen
+ */
+class Audience {
+    /** Side of a chunk, as a shift */
+    private static final int CHUNK_SHIFT = 5;
+
+    /** Chunks along one side of the board */
+    private final int chunks;
+    /** Slots subscribed to each chunk, made when first needed */
+    private final BitSet[] grid;
+    /** The client in each slot, or null */
+    private ClientConnection[] clients = new ClientConnection[64];
+    /** The rectangles each slot subscribed to, or null for the whole board */
+    private int[][] regions = new int[64][];
+    /** Slots that see the whole board */
+    private final BitSet everyone = new BitSet();
+    /** Slots with a client in them */
+    private final BitSet used = new BitSet();
+    private final Map<ClientConnection, Integer> slots = new HashMap<>();
+
+    /**
+     * Create an empty audience.
+     *
+     * @param dim the dimension of the board
+     */
+    Audience(int dim) {
+        this.chunks = (dim + (1 << CHUNK_SHIFT) - 1) >> CHUNK_SHIFT;
+        this.grid = new BitSet[chunks * chunks];
+    }
+
+    /**
+     * Add a client that sees the whole board.
+     *
+     * @param client the client
+     */
+    void add(ClientConnection client) {
+        int slot = used.nextClearBit(0);
+        if (slot >= clients.length) {
+            sweep();
+            slot = used.nextClearBit(0);
+            if (slot >= clients.length) {
+                clients = Arrays.copyOf(clients, clients.length * 2);
+                regions = Arrays.copyOf(regions, regions.length * 2);
+            }
+        }
+        clients[slot] = client;
+        used.set(slot);
+        everyone.set(slot);
+        slots.put(client, slot);
+    }
+
+    /**
+     * Change the part of the board a client sees.
+     *
+     * @param client the client
+     * @param rects row, col, rows and cols of each rectangle, already clipped
+     *              to the board; empty for the whole board
+     * @return whether the client saw the whole board before
+     */
+    boolean subscribe(ClientConnection client, int[] rects) {
+        Integer slot = slots.get(client);
+        if (slot == null) return false;
+        boolean wasEveryone = everyone.get(slot);
+        unlink(slot);
+        if (rects.length == 0) {
+            everyone.set(slot);
+            regions[slot] = null;
+            return wasEveryone;
+        }
+        everyone.clear(slot);
+        regions[slot] = rects;
+        for (int r = 0; r < rects.length; r += 4) {
+            for (int cr = rects[r] >> CHUNK_SHIFT; cr <= (rects[r] + rects[r + 2] - 1) >> CHUNK_SHIFT; cr++) {
+                for (int cc = rects[r + 1] >> CHUNK_SHIFT; cc <= (rects[r + 1] + rects[r + 3] - 1) >> CHUNK_SHIFT; cc++) {
+                    BitSet chunk = grid[cr * chunks + cc];
+                    if (chunk == null) chunk = grid[cr * chunks + cc] = new BitSet();
+                    chunk.set(slot);
+                }
+            }
+        }
+        return wasEveryone;
+    }
+
+    /**
+     * Send one change to everyone who wants it, dropping clients that have gone.
+     *
+     * @param tile the new tile
+     * @param changed the TILE_CHANGED request for it
+     */
+    void send(PlaceTile tile, PlaceRequest<?> changed) {
+        for (int slot = everyone.nextSetBit(0); slot >= 0; slot = everyone.nextSetBit(slot + 1)) {
+            deliver(slot, changed);
+        }
+        BitSet chunk = grid[chunkOf(tile)];
+        if (chunk == null) return;
+        for (int slot = chunk.nextSetBit(0); slot >= 0; slot = chunk.nextSetBit(slot + 1)) {
+            if (contains(regions[slot], tile)) deliver(slot, changed);
+        }
+    }
+
+    /**
+     * Send a batch of changes as TILES_CHANGED.  Clients that see the whole
+     * board all get the same request; subscribers get only their tiles.
+     *
+     * @param tiles the new tiles
+     */
+    void sendAll(PlaceTile[] tiles) {
+        PlaceRequest<?> changed = new PlaceRequest<>(PlaceRequest.RequestType.TILES_CHANGED, tiles);
+        for (int slot = everyone.nextSetBit(0); slot >= 0; slot = everyone.nextSetBit(slot + 1)) {
+            deliver(slot, changed);
+        }
+        Map<Integer, List<PlaceTile>> wanted = new HashMap<>();
+        for (PlaceTile tile : tiles) {
+            BitSet chunk = grid[chunkOf(tile)];
+            if (chunk == null) continue;
+            for (int slot = chunk.nextSetBit(0); slot >= 0; slot = chunk.nextSetBit(slot + 1)) {
+                if (contains(regions[slot], tile)) {
+                    wanted.computeIfAbsent(slot, s -> new ArrayList<>()).add(tile);
+                }
+            }
+        }
+        for (Map.Entry<Integer, List<PlaceTile>> entry : wanted.entrySet()) {
+            deliver(entry.getKey(), new PlaceRequest<>(PlaceRequest.RequestType.TILES_CHANGED,
+                    entry.getValue().toArray(new PlaceTile[0])));
+        }
+    }
+
+    /**
+     * Hand a request to the client in a slot, or empty the slot if the
+     * client has gone.
+     */
+    private void deliver(int slot, PlaceRequest<?> changed) {
+        ClientConnection client = clients[slot];
+        if (client.isClosed()) {
+            remove(slot);
+        } else {
+            client.sendTiles(changed);
+        }
+    }
+
+    /**
+     * Empty the slots of clients that have gone.
+     */
+    private void sweep() {
+        for (int slot = used.nextSetBit(0); slot >= 0; slot = used.nextSetBit(slot + 1)) {
+            if (clients[slot].isClosed()) remove(slot);
+        }
+    }
+
+    private void remove(int slot) {
+        unlink(slot);
+        slots.remove(clients[slot]);
+        clients[slot] = null;
+        regions[slot] = null;
+        used.clear(slot);
+        everyone.clear(slot);
+    }
+
+    /**
+     * Take a slot out of the chunks its rectangles cover.
+     */
+    private void unlink(int slot) {
+        int[] rects = regions[slot];
+        if (rects == null) return;
+        for (int r = 0; r < rects.length; r += 4) {
+            for (int cr = rects[r] >> CHUNK_SHIFT; cr <= (rects[r] + rects[r + 2] - 1) >> CHUNK_SHIFT; cr++) {
+                for (int cc = rects[r + 1] >> CHUNK_SHIFT; cc <= (rects[r + 1] + rects[r + 3] - 1) >> CHUNK_SHIFT; cc++) {
+                    BitSet chunk = grid[cr * chunks + cc];
+                    if (chunk != null) chunk.clear(slot);
+                }
+            }
+        }
+    }
+
+    private int chunkOf(PlaceTile tile) {
+        return (tile.getRow() >> CHUNK_SHIFT) * chunks + (tile.getCol() >> CHUNK_SHIFT);
+    }
+
+    private static boolean contains(int[] rects, PlaceTile tile) {
+        for (int r = 0; r < rects.length; r += 4) {
+            if (tile.getRow() >= rects[r] && tile.getRow() < rects[r] + rects[r + 2]
+                    && tile.getCol() >= rects[r + 1] && tile.getCol() < rects[r + 1] + rects[r + 3]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
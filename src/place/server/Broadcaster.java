@@ -0,0 +1,442 @@
+package place.server;
+
+import place.PlaceTile;
+import place.network.BoardSnapshot;
+import place.network.PlaceRequest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends committed tile changes to every connected client on its own thread,
+ * so that committing a change only costs a lock-free queue insert.  Changes
+ * are sent in the order they were published, and they are handed to the
+ * server statistics from here too, keeping the statistics out of the commit
+ * path.
+ *
+ * Logins go through the same queue, so a new client gets the board and then
+ * exactly the changes published after it joined.  The board is sent as a
+ * compressed {@link BoardSnapshot} that is encoded once and shared by every
+ * login until too many changes have piled up on top of it; a client joining
+ * in between gets the snapshot plus the changes made since.
+ *
+ * Clients that subscribed to parts of the board only get the changes inside
+ * them; see {@link Audience}.  Subscriptions go through the queue as well, and
+ * so do the PINGs of gateways and replicas, which are sent back once every
+ * change published before them has been sent.
+ *
+ * Every change handed to the clients is also kept in a {@link ReplayBuffer}.
+ * Clients that asked to be able to resume are sent a SEQUENCE now and then
+ * saying how far they have got, and when such a client logs in again it is
+ * sent only the changes it missed, or the board if it missed too many.
+ *
+ * With a tick configured, changes are collected for one tick, only the last
+ * change to each cell is kept, and every client gets the whole tick as one
+ * TILES_CHANGED.  The tick grows when a lot is changing, so that more changes
+ * are merged, and shrinks back when things are quiet, so that changes show
+ * up sooner.
+ *
+ * @author Michael Jansen
+ */
+class Broadcaster implements Runnable {
+    /** A tick with at least this many changes makes the next tick longer */
+    private static final int BUSY_TICK = 256;
+    /** A tick with at most this many changes makes the next tick shorter */
+    private static final int QUIET_TICK = 16;
+    /** Most changes sent on top of a snapshot before a new one is taken */
+    private static final int MAX_CATCH_UP = 4096;
+    /** Most changes sent on their own before clients that can resume are told how far they have got */
+    private static final int MARK_EVERY = 256;
+
+    private final PlaceServer server;
+    /** TileChanges and joining ClientConnections, in publication order */
+    private final Queue<Object> events = new ConcurrentLinkedQueue<>();
+    /** Is the broadcaster parked waiting for events? */
+    private volatile boolean waiting;
+    private final Thread thread;
+    /** Shortest and longest tick in milliseconds, 0 if not ticking */
+    private final long minTick, maxTick;
+    /** The clients that get changes (broadcaster thread only) */
+    private final Audience audience;
+    /** The snapshot new clients get, or null (broadcaster thread only) */
+    private BoardSnapshot snapshot;
+    /** Changes sent since the snapshot was taken (broadcaster thread only) */
+    private final List<PlaceTile> sinceSnapshot = new ArrayList<>();
+    /** The latest changes, for clients that come back (broadcaster thread only) */
+    private final ReplayBuffer replay;
+    /** Clients that are sent SEQUENCE requests (broadcaster thread only) */
+    private final List<ClientConnection> resumable = new ArrayList<>();
+    /** Sequence number in the last SEQUENCE sent (broadcaster thread only) */
+    private long marked;
+    /** Highest sequence number handed to the clients */
+    private volatile long sentSequence;
+
+    /**
+     * Create a broadcaster.  It does nothing until started.
+     *
+     * @param server the server whose clients get the changes
+     * @param tickMillis the tick length, or 0 to send every change on its own
+     */
+    Broadcaster(PlaceServer server, int tickMillis) {
+        this.server = server;
+        this.audience = new Audience(server.board.DIM);
+        this.replay = new ReplayBuffer(server.getConfig().replayCapacity, server.getSequence());
+        this.marked = replay.getComplete();
+        this.minTick = Math.max(1, tickMillis / 5);
+        this.maxTick = tickMillis * 4L;
+        this.thread = new Thread(this, "broadcaster");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Start the broadcaster thread
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * @return the highest sequence number that has been handed to the clients
+     */
+    long getSentSequence() {
+        return sentSequence;
+    }
+
+    /**
+     * Queue a committed change to be sent to every client.  Can be called
+     * from any thread.
+     *
+     * @param change the change
+     */
+    void publish(TileChange change) {
+        offer(change);
+    }
+
+    /**
+     * Queue a logged in client to be sent the board, or the changes it missed
+     * if it is resuming, and then every change published after this call.
+     *
+     * @param client the client
+     */
+    void join(ClientConnection client) {
+        offer(client);
+    }
+
+    /**
+     * Queue a change to the part of the board a client sees.  If it grows, the
+     * client is sent what is on the board in its new rectangles.
+     *
+     * @param client the client
+     * @param rects row, col, rows and cols of each rectangle, clipped to the
+     *              board; empty for the whole board
+     */
+    void subscribe(ClientConnection client, int[] rects) {
+        offer(new Subscription(client, rects));
+    }
+
+    /**
+     * Queue a PING to be sent back to a client after every change published
+     * before this call.
+     *
+     * @param client the client, a gateway or replica
+     * @param ping the PING request
+     */
+    void echo(ClientConnection client, PlaceRequest<?> ping) {
+        offer(new Echo(client, ping));
+    }
+
+    private void offer(Object event) {
+        events.add(event);
+        if (waiting) LockSupport.unpark(thread);
+    }
+
+    /**
+     * Take the next event, waiting for at most the given time.
+     *
+     * @param nanos how long to wait, or a negative number to wait forever
+     * @return the event, or null if none came in time
+     */
+    private Object next(long nanos) {
+        Object event = events.poll();
+        if (event != null || nanos == 0) return event;
+        long deadline = System.nanoTime() + nanos;
+        waiting = true;
+        try {
+            while ((event = events.poll()) == null) {
+                if (nanos < 0) {
+                    LockSupport.park(this);
+                } else {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) break;
+                    LockSupport.parkNanos(this, left);
+                }
+            }
+        } finally {
+            waiting = false;
+        }
+        return event;
+    }
+
+    @Override
+    public void run() {
+        if (maxTick > 0) {
+            runTicks();
+        } else {
+            runEach();
+        }
+    }
+
+    /**
+     * Send every change as its own TILE_CHANGED.
+     */
+    private void runEach() {
+        int unmarked = 0;
+        while (true) {
+            Object event = next(-1);
+            if (event instanceof ClientConnection) {
+                welcome((ClientConnection) event);
+            } else if (event instanceof Subscription) {
+                subscribe((Subscription) event);
+            } else if (event instanceof Echo) {
+                ((Echo) event).send();
+            } else {
+                TileChange change = (TileChange) event;
+                PlaceTile tile = record(change);
+                audience.send(tile, new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED, tile));
+                sent(change.seq, change.committed);
+                if (++unmarked >= MARK_EVERY || events.isEmpty()) {
+                    mark();
+                    unmarked = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Send the changes of each tick as one TILES_CHANGED.
+     */
+    private void runTicks() {
+        Map<Long, PlaceTile> latest = new LinkedHashMap<>();
+        List<Echo> echoes = new ArrayList<>();
+        long tick = Math.max(minTick, maxTick / 4);
+        while (true) {
+            // Wait for an event before starting the clock, so an idle server sleeps
+            Object event = next(-1);
+            int received = 0;
+            long highest = 0, oldest = 0;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(tick);
+            while (event != null) {
+                if (event instanceof ClientConnection) {
+                    // Changes already collected are on the board it gets; resending them is harmless
+                    welcome((ClientConnection) event);
+                } else if (event instanceof Subscription) {
+                    subscribe((Subscription) event);
+                } else if (event instanceof Echo) {
+                    // Sent after the tick, which holds changes published before it
+                    echoes.add((Echo) event);
+                } else {
+                    TileChange change = (TileChange) event;
+                    PlaceTile tile = record(change);
+                    latest.put(((long) tile.getRow() << 32) | tile.getCol(), tile);
+                    if (received++ == 0) oldest = change.committed;
+                    highest = Math.max(highest, change.seq);
+                }
+                long left = deadline - System.nanoTime();
+                event = left > 0 ? next(left) : null;
+            }
+            if (!latest.isEmpty()) {
+                audience.sendAll(latest.values().toArray(new PlaceTile[0]));
+                latest.clear();
+            }
+            if (received > 0) sent(highest, oldest);
+            for (Echo echo : echoes) {
+                echo.send();
+            }
+            echoes.clear();
+            mark();
+
+            if (received >= BUSY_TICK) {
+                tick = Math.min(maxTick, tick * 2);
+            } else if (received <= QUIET_TICK) {
+                tick = Math.max(minTick, tick / 2);
+            }
+        }
+    }
+
+    /**
+     * Account for a change that is about to go out.
+     *
+     * @param change the change
+     * @return the new tile
+     */
+    private PlaceTile record(TileChange change) {
+        server.getStatistics().changeTile(change.seq, change.tile);
+        replay.record(change);
+        if (snapshot != null) {
+            if (sinceSnapshot.size() < MAX_CATCH_UP) {
+                sinceSnapshot.add(change.tile);
+            } else {
+                snapshot = null;
+                sinceSnapshot.clear();
+            }
+        }
+        return change.tile;
+    }
+
+    /**
+     * Account for changes that have been handed to every client.
+     *
+     * @param seq the highest sequence number among them
+     * @param committed when the oldest of them was committed
+     */
+    private void sent(long seq, long committed) {
+        server.getMetrics().fanOut.record(System.nanoTime() - committed);
+        if (seq > sentSequence) sentSequence = seq;
+    }
+
+    /**
+     * Tell the clients that can resume how far they have got, if further
+     * than last time.
+     */
+    private void mark() {
+        long complete = replay.getComplete();
+        if (complete == marked) return;
+        marked = complete;
+        PlaceRequest<?> mark = sequence();
+        for (int i = resumable.size() - 1; i >= 0; i--) {
+            ClientConnection client = resumable.get(i);
+            if (client.isClosed()) {
+                resumable.set(i, resumable.get(resumable.size() - 1));
+                resumable.remove(resumable.size() - 1);
+            } else {
+                client.sendMark(mark);
+            }
+        }
+    }
+
+    /**
+     * @return a SEQUENCE for every change recorded so far
+     */
+    private PlaceRequest<?> sequence() {
+        return new PlaceRequest<>(PlaceRequest.RequestType.SEQUENCE,
+                new long[]{server.getSession(), replay.getComplete()});
+    }
+
+    /**
+     * Send a new client the board, or a resuming client the changes it
+     * missed, and add it to the audience.
+     *
+     * @param client the client
+     */
+    private void welcome(ClientConnection client) {
+        long[] resume = client.getResume();
+        PlaceTile[] missed = null;
+        if (resume != null && resume[0] == server.getSession()) {
+            missed = replay.since(resume[1]);
+            if (missed != null) server.getMetrics().resumed(); else server.getMetrics().reloaded();
+        }
+        if (missed != null) {
+            if (missed.length > 0) {
+                client.sendMessage(new PlaceRequest<>(PlaceRequest.RequestType.TILES_CHANGED, missed));
+            }
+        } else {
+            if (snapshot == null) {
+                snapshot = BoardSnapshot.of(server.board, server.getSequence());
+            }
+            client.sendMessage(new PlaceRequest<>(PlaceRequest.RequestType.BOARD, snapshot));
+            if (!sinceSnapshot.isEmpty()) {
+                client.sendMessage(new PlaceRequest<>(PlaceRequest.RequestType.TILES_CHANGED,
+                        sinceSnapshot.toArray(new PlaceTile[0])));
+            }
+        }
+        audience.add(client);
+        if (resume != null) {
+            // Everything recorded so far is on the board it got or among the changes it missed
+            resumable.add(client);
+            client.sendMark(sequence());
+        }
+        server.getMetrics().login.record(System.nanoTime() - client.getLoginNanos());
+    }
+
+    /**
+     * Change what part of the board a client sees, and bring the client up
+     * to date on its new rectangles unless it was seeing everything anyway.
+     * Tiles where rectangles overlap are sent once.
+     *
+     * @param subscription the client and its rectangles
+     */
+    private void subscribe(Subscription subscription) {
+        int[] rects = subscription.rects;
+        if (audience.subscribe(subscription.client, rects) || rects.length == 0) return;
+        List<PlaceTile> tiles = new ArrayList<>();
+        // Columns of the current row covered by the rectangles before the current one
+        int[] covered = new int[rects.length / 2];
+        for (int r = 0; r < rects.length; r += 4) {
+            for (int row = rects[r]; row < rects[r] + rects[r + 2]; row++) {
+                int spans = 0;
+                for (int e = 0; e < r; e += 4) {
+                    if (row >= rects[e] && row < rects[e] + rects[e + 2]) {
+                        covered[spans++] = rects[e + 1];
+                        covered[spans++] = rects[e + 1] + rects[e + 3];
+                    }
+                }
+                int col = rects[r + 1], end = col + rects[r + 3];
+                while (col < end) {
+                    // Jump past the spans covering col, or send up to the next one
+                    int past = col, next = end;
+                    for (int s = 0; s < spans; s += 2) {
+                        if (covered[s] <= col && col < covered[s + 1]) {
+                            past = Math.max(past, covered[s + 1]);
+                        } else if (covered[s] > col) {
+                            next = Math.min(next, covered[s]);
+                        }
+                    }
+                    if (past > col) {
+                        col = past;
+                        continue;
+                    }
+                    for (; col < next; col++) {
+                        tiles.add(server.board.getTile(row, col));
+                    }
+                }
+            }
+        }
+        subscription.client.sendMessage(new PlaceRequest<>(PlaceRequest.RequestType.TILES_CHANGED,
+                tiles.toArray(new PlaceTile[0])));
+    }
+
+    /**
+     * A PING to send back
+     */
+    private static class Echo {
+        final ClientConnection client;
+        final PlaceRequest<?> ping;
+
+        Echo(ClientConnection client, PlaceRequest<?> ping) {
+            this.client = client;
+            this.ping = ping;
+        }
+
+        void send() {
+            client.sendMessage(ping);
+        }
+    }
+
+    /**
+     * A client asking to see only some rectangles of the board
+     */
+    private static class Subscription {
+        final ClientConnection client;
+        final int[] rects;
+
+        Subscription(ClientConnection client, int[] rects) {
+            this.client = client;
+            this.rects = rects;
+        }
+    }
+}
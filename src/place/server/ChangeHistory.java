@@ -0,0 +1,410 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+import place.UserTable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Every tile change the server has made, kept as columns of ints instead of
+ * PlaceTile objects so that a change costs about 20 bytes.  Changes are
+ * numbered from 0 in the order they were added and stored in fixed size
+ * segments, so the store grows without copying what it already holds.  Each
+ * change is:
+ * <pre>
+ *   cell      row * DIM + col
+ *   owner     user id in the server's {@link UserTable}, shifted left 4,
+ *             or'd with the color number
+ *   previous  number of the cell's change before this one, or -1
+ *   seq       sequence number, as a difference from the segment's first
+ *   time      time, as a difference from the segment's first
+ * </pre>
+ * A time too far from the segment's first to fit in an int is kept whole in
+ * a small map on the side.  Each cell also remembers its latest change, so
+ * its history can be walked backwards through the previous column.  Those
+ * are kept in the same chunks as the board's, made the first time a cell in
+ * them changes, so cells nobody has touched cost nothing.
+ *
+ * After every KEYFRAME changes to a chunk, the chunk keeps a copy of its
+ * cells' latest changes.  The latest changes to a chunk as of any earlier
+ * point are then the first keyframe after that point, or the cells' latest
+ * changes if there is none yet, with each cell walked back through the
+ * previous column.  That looks at little more than KEYFRAME changes, which is
+ * what {@link TimeMachine} rebuilds old boards from, and the keyframes add
+ * only about 2 bytes per change.
+ *
+ * There is one writer; any thread may read the changes that have been added.
+ *
+ * @author Michael Jansen
+ */
+class ChangeHistory {
+    /** Changes per segment, as a shift */
+    private static final int SEGMENT_SHIFT = 16;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    /** Stored in the time column when the time is in the wide map */
+    private static final int WIDE = Integer.MIN_VALUE;
+    /** Bytes of columns per change */
+    private static final int BYTES_PER_CHANGE = 5 * 4;
+    /** Changes to a chunk between keyframes */
+    static final int KEYFRAME = 8192;
+    private static final int CHUNK_CELLS = PlaceBoard.CHUNK_SIZE * PlaceBoard.CHUNK_SIZE;
+
+    /**
+     * SEGMENT_SIZE consecutive changes
+     */
+    private static class Segment {
+        final int[] cells = new int[SEGMENT_SIZE];
+        final int[] owners = new int[SEGMENT_SIZE];
+        final int[] previous = new int[SEGMENT_SIZE];
+        final int[] seqs = new int[SEGMENT_SIZE];
+        final int[] times = new int[SEGMENT_SIZE];
+        final long baseSeq;
+        final long baseTime;
+        /** Lowest sequence number in the segment; changes may be added a little out of order */
+        volatile long minSeq;
+        /** Times that did not fit in the times column, by index in the segment */
+        final Map<Integer, Long> wideTimes = new ConcurrentHashMap<>();
+
+        Segment(long baseSeq, long baseTime) {
+            this.baseSeq = baseSeq;
+            this.baseTime = baseTime;
+            this.minSeq = baseSeq;
+        }
+    }
+
+    /**
+     * The changes to one chunk of the board
+     */
+    private static class Chunk {
+        /** Number of the latest change to each cell, or -1 */
+        final int[] latest = new int[CHUNK_CELLS];
+        /** Keyframe k is latest as it was after the chunk's first k * KEYFRAME changes; 0 is unused */
+        volatile int[][] keyframes = new int[4][];
+        /** Number of changes in the history when each keyframe was taken */
+        volatile int[] keyframeAt = new int[4];
+        /** Number of changes to the chunk */
+        volatile int count;
+
+        Chunk() {
+            Arrays.fill(latest, -1);
+        }
+    }
+
+    private final int dim;
+    private final UserTable users;
+    /** Chunks along one side of the board */
+    private final int chunks;
+    /** The changes to each board chunk, or null */
+    private final Chunk[] byChunk;
+    private volatile Segment[] segments = new Segment[16];
+    /** Number of changes added */
+    private volatile int size;
+
+    /**
+     * Create an empty history.
+     *
+     * @param dim the dimension of the board
+     * @param users the table owner ids are taken from
+     * @throws IllegalArgumentException if the board does not {@link #fits fit}
+     */
+    ChangeHistory(int dim, UserTable users) {
+        if (!fits(dim)) {
+            throw new IllegalArgumentException("Board too big for a change history: " + dim);
+        }
+        this.dim = dim;
+        this.users = users;
+        this.chunks = (dim + PlaceBoard.CHUNK_SIZE - 1) >> PlaceBoard.CHUNK_SHIFT;
+        this.byChunk = new Chunk[chunks * chunks];
+    }
+
+    /**
+     * @param dim the dimension of a board
+     * @return whether the board's cells can be numbered with an int, which a
+     *         history needs; true up to a dimension of 46340
+     */
+    static boolean fits(int dim) {
+        return (long) dim * dim <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Add a change.  Only one thread may add changes.
+     *
+     * @param seq the change's sequence number
+     * @param tile the new tile
+     * @param owner the id of the tile's owner
+     */
+    void add(long seq, PlaceTile tile, int owner) {
+        int n = size;
+        if (n == Integer.MAX_VALUE) {
+            throw new IllegalStateException("Change history is full");
+        }
+        int index = n & (SEGMENT_SIZE - 1);
+        Segment[] segments = this.segments;
+        if (index == 0) {
+            if ((n >>> SEGMENT_SHIFT) == segments.length) {
+                segments = Arrays.copyOf(segments, segments.length * 2);
+            }
+            segments[n >>> SEGMENT_SHIFT] = new Segment(seq, tile.getTime());
+            this.segments = segments;
+        }
+        Segment segment = segments[n >>> SEGMENT_SHIFT];
+
+        Chunk chunk = byChunk[chunkOf(tile.getRow(), tile.getCol())];
+        if (chunk == null) {
+            chunk = byChunk[chunkOf(tile.getRow(), tile.getCol())] = new Chunk();
+        }
+        int cell = cellOf(tile.getRow(), tile.getCol());
+        segment.cells[index] = tile.getRow() * dim + tile.getCol();
+        segment.owners[index] = (owner << 4) | tile.getColor().getNumber();
+        segment.previous[index] = chunk.latest[cell];
+        segment.seqs[index] = (int) (seq - segment.baseSeq);
+        if (seq < segment.minSeq) segment.minSeq = seq;
+        long time = tile.getTime() - segment.baseTime;
+        if (time > Integer.MIN_VALUE && time <= Integer.MAX_VALUE) {
+            segment.times[index] = (int) time;
+        } else {
+            segment.times[index] = WIDE;
+            segment.wideTimes.put(index, tile.getTime());
+        }
+        chunk.latest[cell] = n;
+        size = n + 1;
+        counted(chunk, n);
+    }
+
+    /**
+     * Count a change to a chunk, keeping a keyframe when it is due.
+     */
+    private static void counted(Chunk chunk, int change) {
+        int count = chunk.count;
+        if ((count + 1) % KEYFRAME == 0) {
+            int[][] keyframes = chunk.keyframes;
+            int[] keyframeAt = chunk.keyframeAt;
+            int k = (count + 1) / KEYFRAME;
+            if (k == keyframes.length) {
+                keyframes = Arrays.copyOf(keyframes, k * 2);
+                keyframeAt = Arrays.copyOf(keyframeAt, k * 2);
+            }
+            keyframes[k] = chunk.latest.clone();
+            keyframeAt[k] = change + 1;
+            chunk.keyframes = keyframes;
+            chunk.keyframeAt = keyframeAt;
+        }
+        // Readers look at the count first, so the keyframes are theirs to see
+        chunk.count = count + 1;
+    }
+
+    /**
+     * @return the number of changes
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of the latest change to a cell.
+     *
+     * @param row row
+     * @param col column
+     * @return the change number, or -1 if the cell has never changed
+     */
+    int latest(int row, int col) {
+        if (size == 0) return -1;
+        Chunk chunk = byChunk[chunkOf(row, col)];
+        return chunk == null ? -1 : added(chunk.latest[cellOf(row, col)]);
+    }
+
+    /**
+     * Get the latest change to each cell of a chunk of the board among the
+     * first changes.  This is the chunk's first keyframe after that point,
+     * or its cells' latest changes, walked back.
+     *
+     * @param chunkRow the row of the chunk, counted in board chunks
+     * @param chunkCol the column of the chunk, counted in board chunks
+     * @param changes the number of changes to look at, from the first
+     * @return the change numbers by cell, row by row within the chunk, with -1
+     *         for cells those changes did not touch; or null if they did not
+     *         touch the chunk at all
+     */
+    int[] latestAmong(int chunkRow, int chunkCol, int changes) {
+        return latestAmong(chunkRow, chunkCol, changes, Long.MAX_VALUE);
+    }
+
+    /**
+     * Get the latest change to each cell of a chunk of the board among the
+     * first changes, leaving out those with higher sequence numbers.  A
+     * cell's changes are added in sequence number order, since they are
+     * committed under the same lock, so each cell is walked back until its
+     * change is early enough on both counts.
+     *
+     * @param chunkRow the row of the chunk, counted in board chunks
+     * @param chunkCol the column of the chunk, counted in board chunks
+     * @param changes the number of changes to look at, from the first
+     * @param seq the highest sequence number to look at
+     * @return the change numbers by cell, row by row within the chunk, with -1
+     *         for cells those changes did not touch; or null if they did not
+     *         touch the chunk at all
+     */
+    int[] latestAmong(int chunkRow, int chunkCol, int changes, long seq) {
+        if (size == 0) return null;
+        Chunk chunk = byChunk[chunkRow * chunks + chunkCol];
+        if (chunk == null) return null;
+        int k = chunk.count / KEYFRAME;
+        int[][] keyframes = chunk.keyframes;
+        int[] keyframeAt = chunk.keyframeAt;
+        // The first keyframe that has all of the first changes
+        int low = 1, high = k + 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keyframeAt[mid] < changes) low = mid + 1; else high = mid;
+        }
+        int[] latest;
+        if (low <= k) {
+            latest = keyframes[low].clone();
+        } else {
+            // The writer may be changing them; each is still some change to its cell
+            latest = chunk.latest.clone();
+            for (int cell = 0; cell < CHUNK_CELLS; cell++) {
+                added(latest[cell]);
+            }
+        }
+        Segment[] segments = this.segments;
+        boolean touched = false;
+        for (int cell = 0; cell < CHUNK_CELLS; cell++) {
+            int change = latest[cell];
+            while (change >= changes || (change >= 0 && seq != Long.MAX_VALUE && getSequence(change) > seq)) {
+                change = segments[change >>> SEGMENT_SHIFT].previous[change & (SEGMENT_SIZE - 1)];
+            }
+            latest[cell] = change;
+            touched |= change >= 0;
+        }
+        return touched ? latest : null;
+    }
+
+    /**
+     * Get a number of first changes that holds every change up to a sequence
+     * number.  Changes are added in nearly but not exactly sequence number
+     * order, so this is the end of the last segment that has one, which may
+     * take in some later changes as well.
+     *
+     * @param seq the sequence number
+     * @return the number of changes, at most the size
+     */
+    int changesThrough(long seq) {
+        int n = size;
+        Segment[] segments = this.segments;
+        int last = n == 0 ? -1 : (n - 1) >>> SEGMENT_SHIFT;
+        while (last >= 0 && segments[last].minSeq > seq) last--;
+        return (int) Math.min(n, (long) (last + 1) << SEGMENT_SHIFT);
+    }
+
+    /**
+     * Get the number of the change to the same cell before a change.
+     *
+     * @param change the change number
+     * @return the earlier change number, or -1 if there is none
+     */
+    int previous(int change) {
+        return segment(change).previous[change & (SEGMENT_SIZE - 1)];
+    }
+
+    /**
+     * @param change the change number
+     * @return the change's sequence number
+     */
+    long getSequence(int change) {
+        Segment segment = segment(change);
+        return segment.baseSeq + segment.seqs[change & (SEGMENT_SIZE - 1)];
+    }
+
+    /**
+     * @param change the change number
+     * @return the time of the change
+     */
+    long getTime(int change) {
+        Segment segment = segment(change);
+        int index = change & (SEGMENT_SIZE - 1);
+        int time = segment.times[index];
+        return time != WIDE ? segment.baseTime + time : segment.wideTimes.get(index);
+    }
+
+    /**
+     * Write the new tile of a change into a board without making a tile object.
+     *
+     * @param change the change number
+     * @param board a board of the same size whose owners are ids in the history's user table
+     */
+    void applyTo(int change, PlaceBoard board) {
+        Segment segment = segment(change);
+        int index = change & (SEGMENT_SIZE - 1);
+        int cell = segment.cells[index];
+        int time = segment.times[index];
+        board.setTile(cell / dim, cell % dim, segment.owners[index] & 0x0F, segment.owners[index] >>> 4,
+                time != WIDE ? segment.baseTime + time : segment.wideTimes.get(index));
+    }
+
+    /**
+     * Make a tile out of a change.
+     *
+     * @param change the change number
+     * @return the new tile of the change
+     */
+    PlaceTile getTile(int change) {
+        Segment segment = segment(change);
+        int index = change & (SEGMENT_SIZE - 1);
+        int cell = segment.cells[index];
+        return new PlaceTile(cell / dim, cell % dim, users.nameOf(segment.owners[index] >>> 4),
+                PlaceColor.fromNumber(segment.owners[index] & 0x0F), getTime(change));
+    }
+
+    /**
+     * Get the memory the changes take, including the keyframes but not the
+     * latest change of each cell.
+     *
+     * @return the bytes in use per change, or 0 if there are none
+     */
+    double bytesPerChange() {
+        int n = size;
+        if (n == 0) return 0;
+        long segmentCount = ((long) n + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT;
+        long bytes = segmentCount * SEGMENT_SIZE * BYTES_PER_CHANGE + segments.length * 8L;
+        for (int i = 0; i < segmentCount; i++) {
+            bytes += segments[i].wideTimes.size() * 64L;   // rough cost of a boxed map entry
+        }
+        for (Chunk chunk : byChunk) {
+            if (chunk == null) continue;
+            bytes += chunk.keyframeAt.length * 4L + (chunk.count / KEYFRAME) * CHUNK_CELLS * 4L;
+        }
+        return (double) bytes / n;
+    }
+
+    /**
+     * Wait for a change number read from a cell's latest to be counted in the
+     * size, so that its columns can be read.  The writer sets a cell's latest
+     * just before the size.
+     */
+    private int added(int change) {
+        while (change >= size) {
+            Thread.onSpinWait();
+        }
+        return change;
+    }
+
+    private int chunkOf(int row, int col) {
+        return (row >> PlaceBoard.CHUNK_SHIFT) * chunks + (col >> PlaceBoard.CHUNK_SHIFT);
+    }
+
+    private static int cellOf(int row, int col) {
+        int mask = PlaceBoard.CHUNK_SIZE - 1;
+        return ((row & mask) << PlaceBoard.CHUNK_SHIFT) | (col & mask);
+    }
+
+    private Segment segment(int change) {
+        if (change < 0 || change >= size) {
+            throw new IndexOutOfBoundsException("No change " + change);
+        }
+        return segments[change >>> SEGMENT_SHIFT];
+    }
+}
@@ -0,0 +1,397 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.PlaceTile;
+import place.UserTable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of every committed tile change, so the board survives
+ * the server going down.  Committing a change only queues it; a dedicated
+ * thread writes whatever has queued up as one batch and forces the file to
+ * disk at most once per fsync interval, so placements never wait on the
+ * disk.  A crash loses at most the changes of the last interval.
+ *
+ * The file is a header followed by batches:
+ * <pre>
+ *   header  int MAGIC, int DIM
+ *   batch   int payload length, int CRC32 of the payload, payload
+ *   payload records, each starting with a type byte:
+ *     NAME  int user id, int byte count, UTF-8 name
+ *     TILE  long sequence, int row, int col, byte color, int owner id, long time
+ * </pre>
+ * A user's name is logged before the first tile they own.  A batch that is
+ * cut short or fails its checksum is where the last run died; it and
+ * anything after it are thrown away when the log is opened.  When the board
+ * was loaded from a {@link Checkpointer} checkpoint, only the batches from
+ * the checkpoint's log offset on are read, and changes the checkpoint
+ * already has are skipped.
+ *
+ * @author Michael Jansen
+ */
+class ChangeLog implements Runnable {
+    /** First four bytes of a log file, "PLOG" */
+    private static final int MAGIC = 0x504C4F47;
+    private static final int HEADER_SIZE = 8;
+    private static final int BATCH_HEADER_SIZE = 8;
+    /** Payload bytes collected before a batch is written out early */
+    private static final int BATCH_SIZE = 1 << 20;
+    private static final byte NAME = 1;
+    private static final byte TILE = 2;
+    private static final int TILE_SIZE = 1 + 8 + 4 + 4 + 1 + 4 + 8;
+
+    private final FileChannel channel;
+    private final UserTable users;
+    private final long fsyncNanos;
+    /** Changes waiting to be written, in commit order for each cell */
+    private final Queue<TileChange> changes = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    /** Is the log thread parked waiting for changes? */
+    private volatile boolean waiting;
+    private volatile boolean running = true;
+    /** Set when the file cannot be written any more */
+    private volatile boolean failed;
+    /** Ids whose names are already in the log (log thread only) */
+    private final BitSet loggedNames = new BitSet();
+    /** The batch being filled, with room for its header at the front (log thread only) */
+    private ByteBuffer batch = ByteBuffer.allocate(BATCH_HEADER_SIZE + BATCH_SIZE);
+    private final CRC32 crc = new CRC32();
+    /** Sequence number of the last change replayed from the file */
+    private long lastSequence;
+    /** Number of changes replayed from the file */
+    private long replayed;
+    /** Length of the file up to the end of the last batch written */
+    private volatile long written;
+    /** Highest sequence number added to a batch */
+    private volatile long loggedSequence;
+
+    private ChangeLog(FileChannel channel, UserTable users, int fsyncMillis) {
+        this.channel = channel;
+        this.users = users;
+        this.fsyncNanos = TimeUnit.MILLISECONDS.toNanos(fsyncMillis);
+        this.thread = new Thread(this, "change-log");
+        this.thread.setDaemon(true);
+        this.batch.position(BATCH_HEADER_SIZE);
+    }
+
+    /**
+     * Open a log, creating it if it does not exist, and replay every change
+     * in it onto a board.  Logging does not start until the log is started.
+     *
+     * @param path the log file
+     * @param board the board to replay onto; its user table gets the logged names
+     * @param fsyncMillis the longest time a written change waits to be forced to disk
+     * @return the log
+     * @throws IOException if the file cannot be read or is for another board
+     */
+    static ChangeLog open(Path path, PlaceBoard board, int fsyncMillis) throws IOException {
+        return open(path, board, fsyncMillis, 0, 0);
+    }
+
+    /**
+     * Open a log, creating it if it does not exist, and replay the changes
+     * a checkpointed board is missing.  Logging does not start until the log
+     * is started.
+     *
+     * @param path the log file
+     * @param board the board to replay onto; its user table gets the logged names
+     * @param fsyncMillis the longest time a written change waits to be forced to disk
+     * @param afterSequence the last change already on the board
+     * @param fromOffset where in the file the first change after afterSequence
+     *                   may be, as returned by {@link #getWritten()}
+     * @return the log
+     * @throws IOException if the file cannot be read or is for another board
+     */
+    static ChangeLog open(Path path, PlaceBoard board, int fsyncMillis, long afterSequence, long fromOffset)
+            throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ChangeLog log = new ChangeLog(channel, board.getUsers(), fsyncMillis);
+        log.lastSequence = afterSequence;
+        log.loggedSequence = afterSequence;
+        try {
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(board.DIM);
+                header.flip();
+                while (header.hasRemaining()) channel.write(header, header.position());
+                channel.force(true);
+                channel.position(HEADER_SIZE);
+                log.written = HEADER_SIZE;
+            } else {
+                log.replay(board, afterSequence, fromOffset);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return log;
+    }
+
+    /**
+     * Start the log thread
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * @return the sequence number of the last change in the file when it was opened
+     */
+    long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * @return the number of changes replayed when the file was opened
+     */
+    long getReplayed() {
+        return replayed;
+    }
+
+    /**
+     * @return the highest sequence number that has been logged
+     */
+    long getLoggedSequence() {
+        return loggedSequence;
+    }
+
+    /**
+     * Get the length of the file up to the end of the last batch written.
+     * Every change appended after this call is written beyond it.
+     *
+     * @return the offset
+     */
+    long getWritten() {
+        return written;
+    }
+
+    /**
+     * Queue a committed change to be logged.  Can be called from any thread;
+     * changes to one cell must be appended in the order they were committed.
+     *
+     * @param change the change
+     */
+    void append(TileChange change) {
+        if (failed) return;
+        changes.add(change);
+        if (waiting) LockSupport.unpark(thread);
+    }
+
+    /**
+     * Write and force everything appended so far, then close the file.
+     */
+    void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            long lastForce = System.nanoTime();
+            boolean dirty = false;
+            while (running || !changes.isEmpty()) {
+                TileChange change = changes.poll();
+                if (change != null) {
+                    write(change);
+                    continue;
+                }
+                if (batch.position() > BATCH_HEADER_SIZE) {
+                    writeBatch();
+                    dirty = true;
+                }
+                long left = lastForce + fsyncNanos - System.nanoTime();
+                if (dirty && left <= 0) {
+                    channel.force(false);
+                    dirty = false;
+                    lastForce = System.nanoTime();
+                    continue;
+                }
+                waiting = true;
+                if (changes.isEmpty() && running) {
+                    if (dirty) {
+                        LockSupport.parkNanos(this, left);
+                    } else {
+                        LockSupport.park(this);
+                    }
+                }
+                waiting = false;
+            }
+            writeBatch();
+            channel.force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Change log stopped; tile changes are no longer saved");
+            failed = true;
+            changes.clear();
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Add a change to the batch, logging its owner's name first if needed.
+     *
+     * @param change the change
+     */
+    private void write(TileChange change) throws IOException {
+        PlaceTile tile = change.tile;
+        int owner = users.idOf(tile.getOwner());
+        if (!loggedNames.get(owner)) {
+            byte[] name = users.nameOf(owner).getBytes(StandardCharsets.UTF_8);
+            reserve(1 + 4 + 4 + name.length);
+            batch.put(NAME).putInt(owner).putInt(name.length).put(name);
+            loggedNames.set(owner);
+        }
+        reserve(TILE_SIZE);
+        batch.put(TILE).putLong(change.seq).putInt(tile.getRow()).putInt(tile.getCol())
+                .put((byte) tile.getColor().getNumber()).putInt(owner).putLong(tile.getTime());
+        if (change.seq > loggedSequence) loggedSequence = change.seq;
+    }
+
+    /**
+     * Make room in the batch for a record, writing the batch out if it is full.
+     *
+     * @param size the size of the record
+     */
+    private void reserve(int size) throws IOException {
+        if (batch.remaining() >= size) return;
+        writeBatch();
+        if (batch.remaining() < size) {
+            batch = ByteBuffer.allocate(BATCH_HEADER_SIZE + size);
+            batch.position(BATCH_HEADER_SIZE);
+        }
+    }
+
+    /**
+     * Write the batch to the end of the file, if it holds anything.
+     */
+    private void writeBatch() throws IOException {
+        int length = batch.position() - BATCH_HEADER_SIZE;
+        if (length == 0) return;
+        crc.reset();
+        crc.update(batch.array(), BATCH_HEADER_SIZE, length);
+        batch.putInt(0, length).putInt(4, (int) crc.getValue());
+        batch.flip();
+        while (batch.hasRemaining()) channel.write(batch);
+        written = channel.position();
+        if (batch.capacity() > BATCH_HEADER_SIZE + BATCH_SIZE) {
+            batch = ByteBuffer.allocate(BATCH_HEADER_SIZE + BATCH_SIZE);
+        }
+        batch.clear().position(BATCH_HEADER_SIZE);
+    }
+
+    /**
+     * Apply the whole batches in the file to a board, drop anything after
+     * the last whole batch, and leave the file positioned for appending.
+     *
+     * @param board the board
+     * @param afterSequence the last change already on the board
+     * @param fromOffset the offset of the first batch to read, if it is in the file
+     */
+    private void replay(PlaceBoard board, long afterSequence, long fromOffset) throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(Math.max(HEADER_SIZE, BATCH_HEADER_SIZE));
+        if (!readFully(header.limit(HEADER_SIZE), 0) || header.getInt(0) != MAGIC) {
+            throw new IOException("Not a change log");
+        }
+        if (header.getInt(4) != board.DIM) {
+            throw new IOException("The change log is for a board of size " + header.getInt(4));
+        }
+
+        long pos = fromOffset >= HEADER_SIZE && fromOffset <= size ? fromOffset : HEADER_SIZE;
+        ByteBuffer payload = ByteBuffer.allocate(BATCH_SIZE);
+        while (true) {
+            header.clear().limit(BATCH_HEADER_SIZE);
+            if (!readFully(header, pos)) break;
+            int length = header.getInt(0);
+            if (length <= 0 || length > size - pos - BATCH_HEADER_SIZE) break;
+            if (payload.capacity() < length) payload = ByteBuffer.allocate(length);
+            payload.clear().limit(length);
+            if (!readFully(payload, pos + BATCH_HEADER_SIZE)) break;
+            crc.reset();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != header.getInt(4)) break;
+            payload.flip();
+            apply(payload, board, afterSequence);
+            pos += BATCH_HEADER_SIZE + length;
+        }
+
+        if (pos < size) {
+            System.err.println("Discarding " + (size - pos) + " bytes at the end of the change log");
+            channel.truncate(pos);
+        }
+        channel.position(pos);
+        written = pos;
+    }
+
+    /**
+     * Apply the records of one batch to a board.
+     *
+     * @param payload the batch payload
+     * @param board the board
+     * @param afterSequence the last change already on the board
+     */
+    private void apply(ByteBuffer payload, PlaceBoard board, long afterSequence) throws IOException {
+        while (payload.hasRemaining()) {
+            byte type = payload.get();
+            if (type == TILE) {
+                long seq = payload.getLong();
+                int row = payload.getInt();
+                int col = payload.getInt();
+                int color = payload.get();
+                int owner = payload.getInt();
+                long time = payload.getLong();
+                if (seq <= afterSequence) continue;
+                board.setTile(row, col, color, owner, time);
+                lastSequence = Math.max(lastSequence, seq);
+                loggedSequence = lastSequence;
+                replayed++;
+            } else if (type == NAME) {
+                int id = payload.getInt();
+                byte[] name = new byte[payload.getInt()];
+                payload.get(name);
+                users.define(id, new String(name, StandardCharsets.UTF_8));
+                loggedNames.set(id);
+            } else {
+                throw new IOException("Corrupt change log");
+            }
+        }
+    }
+
+    /**
+     * Fill a buffer from the file.
+     *
+     * @param buffer the buffer
+     * @param pos where in the file to start reading
+     * @return false if the file ended first
+     */
+    private boolean readFully(ByteBuffer buffer, long pos) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, pos);
+            if (read < 0) return false;
+            pos += read;
+        }
+        return true;
+    }
+}
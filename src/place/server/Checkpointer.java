@@ -0,0 +1,449 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.UserTable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes a copy of the board to a memory-mapped file every so often, so that
+ * starting the server only has to replay the part of the {@link ChangeLog}
+ * written since the last checkpoint.  A file is:
+ * <pre>
+ *   header  int MAGIC, int DIM, long sequence, long log offset, int user count,
+ *           int generation
+ *   colors  byte per cell, row by row
+ *   owners  int per cell
+ *   times   long per cell
+ *   names   for each user id, int byte count (-1 for an unused id), UTF-8 name
+ * </pre>
+ * The board is copied one chunk at a time while holding the stripe lock of
+ * every region in the chunk, so placements elsewhere carry on and a placement
+ * in the chunk being copied waits for at most one chunk.  The copy has every
+ * change up to the header's sequence number and possibly some later ones;
+ * replaying the log from the header's offset puts those later ones back in
+ * the same order.
+ *
+ * There are two files, .a and .b, and each checkpoint is written over the
+ * older one, so the newer one is always whole.  A file is marked as not a
+ * checkpoint before it is written, and its header is only put back once
+ * everything else has been forced to disk.  Starting up loads the file with
+ * the newest generation.
+ *
+ * Each checkpoint writes only the chunks that have changed since the one it
+ * writes over, found by noting the generation of the checkpoint that first
+ * saw each chunk dirty, so a big board where little has changed is cheap to
+ * checkpoint.  Each file's first checkpoint, the first into the older file
+ * after starting up, and the one after a checkpoint that failed write every
+ * chunk.
+ *
+ * A mapped buffer holds at most 2 GB, so each section is mapped in windows
+ * of WINDOW bytes.  A board as big as {@link PlaceBoard} allows can be
+ * checkpointed, given the disk space: 13 bytes a cell.
+ *
+ * @author Michael Jansen
+ */
+class Checkpointer implements Runnable {
+    /** First four bytes of a checkpoint file, "PCKP" */
+    private static final int MAGIC = 0x50434B50;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4;
+    /** Bytes of a section mapped at once, as a shift; a multiple of every cell field's size */
+    private static final int WINDOW_SHIFT = 30;
+    private static final long WINDOW = 1L << WINDOW_SHIFT;
+
+    private final PlaceServer server;
+    /** The two checkpoint files, each written over in turn */
+    private final Path[] files;
+    private final long intervalMillis;
+    private final Thread thread;
+    private volatile boolean running = true;
+    /** Sequence number of the last checkpoint taken or loaded */
+    private long sequence;
+    /** Log offset of the last checkpoint taken or loaded */
+    private long logOffset;
+    /** Generation of the last checkpoint taken or loaded */
+    private int generation;
+    /** Generation of the checkpoint in each file, or -1 if the next one there writes every chunk */
+    private final int[] fileGeneration = {-1, -1};
+    /** Generation of the checkpoint that last found each chunk dirty, by chunk; made when first needed */
+    private int[] changedAt;
+
+    /**
+     * Create a checkpointer.  It does nothing until started.
+     *
+     * @param server the server whose board is saved
+     * @param path where the checkpoint files go; .a and .b are added to it
+     * @param intervalMillis the time between checkpoints
+     */
+    Checkpointer(PlaceServer server, Path path, int intervalMillis) {
+        this.server = server;
+        this.files = new Path[]{path.resolveSibling(path.getFileName() + ".a"),
+                path.resolveSibling(path.getFileName() + ".b")};
+        this.intervalMillis = intervalMillis;
+        this.thread = new Thread(this, "checkpointer");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Start taking checkpoints
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stop taking checkpoints, waiting for one that is being written
+     */
+    void shutdown() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the sequence number of the last checkpoint taken or loaded
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return where in the change log the changes after the last checkpoint start
+     */
+    long getLogOffset() {
+        return logOffset;
+    }
+
+    /**
+     * Copy the newest whole checkpoint file, if there is one, onto an empty board.
+     *
+     * @param board the board; its user table gets the checkpoint's names
+     * @return false if there is no whole checkpoint
+     * @throws IOException if the checkpoint cannot be read or is for another board
+     */
+    boolean load(PlaceBoard board) throws IOException {
+        int dim = board.DIM;
+        long cells = cells(dim);
+        int newest = -1;
+        for (int f = 0; f < files.length; f++) {
+            fileGeneration[f] = generationOf(files[f], dim);
+            if (fileGeneration[f] >= 0 && (newest < 0 || fileGeneration[f] > fileGeneration[newest])) newest = f;
+        }
+        if (newest < 0) return false;
+        // Which chunks the older file is missing is not known
+        fileGeneration[1 - newest] = -1;
+        try (FileChannel channel = FileChannel.open(files[newest], StandardOpenOption.READ)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+
+            long namesAt = HEADER_SIZE + cells * 13;
+            ByteBuffer names = channel.map(FileChannel.MapMode.READ_ONLY, namesAt, channel.size() - namesAt);
+            UserTable users = board.getUsers();
+            int userCount = header.getInt(24);
+            for (int id = 0; id < userCount; id++) {
+                int length = names.getInt();
+                if (length < 0) continue;
+                byte[] name = new byte[length];
+                names.get(name);
+                users.define(id, new String(name, StandardCharsets.UTF_8));
+            }
+
+            Section colors = new Section(channel, FileChannel.MapMode.READ_ONLY, HEADER_SIZE, cells, 0);
+            Section owners = new Section(channel, FileChannel.MapMode.READ_ONLY, HEADER_SIZE + cells, cells, 2);
+            Section times = new Section(channel, FileChannel.MapMode.READ_ONLY, HEADER_SIZE + cells * 5, cells, 3);
+            for (int row = 0; row < dim; row++) {
+                for (int col = 0; col < dim; col++) {
+                    long cell = board.indexOf(row, col);
+                    board.setTile(row, col, colors.getByte(cell), owners.getInt(cell), times.getLong(cell));
+                }
+            }
+            // The file now matches the board, so only later changes need writing to it
+            for (int chunkRow = 0; chunkRow < board.getChunks(); chunkRow++) {
+                for (int chunkCol = 0; chunkCol < board.getChunks(); chunkCol++) {
+                    board.clearDirty(chunkRow, chunkCol);
+                }
+            }
+            this.sequence = header.getLong(8);
+            this.logOffset = header.getLong(16);
+            this.generation = fileGeneration[newest];
+        }
+        return true;
+    }
+
+    /**
+     * Read the generation of a checkpoint file.
+     *
+     * @param file the file
+     * @param dim the size of the board
+     * @return the generation, or -1 if there is no file or it is not a whole checkpoint
+     * @throws IOException if the file cannot be read or is for another board
+     */
+    private static int generationOf(Path file, int dim) throws IOException {
+        if (!Files.exists(file)) return -1;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE + cells(dim) * 13) return -1;
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            // A checkpoint cut short by a crash has no magic number
+            if (header.getInt(0) != MAGIC) return -1;
+            if (header.getInt(4) != dim) {
+                throw new IOException("The checkpoint " + file + " is for a board of size " + header.getInt(4));
+            }
+            return header.getInt(28);
+        }
+    }
+
+    /**
+     * Write a checkpoint of the server's board now.  Placements carry on
+     * while it is being written.
+     *
+     * @throws IOException if the checkpoint cannot be written
+     */
+    void checkpoint() throws IOException {
+        // The offset is read first, so every change after the sequence number is logged beyond it
+        long offset = server.getLog().getWritten();
+        long seq = server.getSequence();
+        PlaceBoard board = server.board;
+        int dim = board.DIM;
+        long cells = cells(dim);
+        if (changedAt == null) changedAt = new int[board.getChunks() * board.getChunks()];
+
+        int next = generation + 1;
+        // Write over the older file; the newer one stays whole until this one is
+        int file = fileGeneration[0] <= fileGeneration[1] ? 0 : 1;
+        int since = fileGeneration[file];
+        fileGeneration[file] = -1;
+        try (FileChannel channel = FileChannel.open(files[file], StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (since < 0) channel.truncate(0);
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.putInt(0, 0);
+            header.force();
+            Section colors = new Section(channel, FileChannel.MapMode.READ_WRITE, HEADER_SIZE, cells, 0);
+            Section owners = new Section(channel, FileChannel.MapMode.READ_WRITE, HEADER_SIZE + cells, cells, 2);
+            Section times = new Section(channel, FileChannel.MapMode.READ_WRITE, HEADER_SIZE + cells * 5, cells, 3);
+
+            ChunkCopier copier = new ChunkCopier(board, colors, owners, times, next, since);
+            for (int chunkRow = 0; chunkRow < board.getChunks(); chunkRow++) {
+                for (int chunkCol = 0; chunkCol < board.getChunks(); chunkCol++) {
+                    copier.copy(chunkRow, chunkCol, 0);
+                }
+            }
+
+            // Names are read last so every owner id above has one
+            UserTable users = board.getUsers();
+            int userCount = users.size();
+            long namesAt = HEADER_SIZE + cells * 13;
+            for (int id = 0; id < userCount; id++) {
+                String name = users.nameOf(id);
+                byte[] bytes = name == null ? null : name.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer entry = ByteBuffer.allocate(4 + (bytes == null ? 0 : bytes.length));
+                entry.putInt(bytes == null ? -1 : bytes.length);
+                if (bytes != null) entry.put(bytes);
+                entry.flip();
+                while (entry.hasRemaining()) namesAt += channel.write(entry, namesAt);
+            }
+            channel.truncate(namesAt);
+
+            colors.force();
+            owners.force();
+            times.force();
+            channel.force(true);
+            // Everything else is on disk, so the header makes it a checkpoint again
+            header.putInt(4, dim).putLong(8, seq).putLong(16, offset).putInt(24, userCount).putInt(28, next);
+            header.putInt(0, MAGIC);
+            header.force();
+            if (since >= 0) {
+                System.out.println("Checkpoint wrote " + copier.copied + " of "
+                        + board.getAllocatedChunks() + " chunks");
+            }
+        }
+        fileGeneration[file] = next;
+        this.generation = next;
+        this.sequence = seq;
+        this.logOffset = offset;
+    }
+
+    /**
+     * Copies the chunks of the board into the mapped sections of a checkpoint
+     */
+    private class ChunkCopier {
+        /** Regions along one side of a chunk */
+        private final int regions = 1 << (PlaceBoard.CHUNK_SHIFT - PlaceServer.REGION_SHIFT);
+        private final PlaceBoard board;
+        private final Section colors;
+        private final Section owners;
+        private final Section times;
+        /** Generation of the checkpoint being written */
+        private final int generation;
+        /** Generation of the checkpoint being written over, or -1 to copy every chunk */
+        private final int since;
+        private final byte[] rowColors = new byte[PlaceBoard.CHUNK_SIZE];
+        private final int[] rowOwners = new int[PlaceBoard.CHUNK_SIZE];
+        private final long[] rowTimes = new long[PlaceBoard.CHUNK_SIZE];
+        /** The number of chunks copied */
+        int copied;
+
+        ChunkCopier(PlaceBoard board, Section colors, Section owners, Section times, int generation, int since) {
+            this.board = board;
+            this.colors = colors;
+            this.owners = owners;
+            this.times = times;
+            this.generation = generation;
+            this.since = since;
+        }
+
+        /**
+         * Copy a chunk if it needs it, taking the stripe lock of each of its
+         * regions from the given one on before doing so.
+         *
+         * @param chunkRow the row of the chunk, counted in chunks
+         * @param chunkCol the column of the chunk, counted in chunks
+         * @param region the first region, numbered row by row, whose lock is not held yet
+         */
+        void copy(int chunkRow, int chunkCol, int region) {
+            if (region < regions * regions) {
+                int row = (chunkRow << PlaceBoard.CHUNK_SHIFT) + ((region / regions) << PlaceServer.REGION_SHIFT);
+                int col = (chunkCol << PlaceBoard.CHUNK_SHIFT) + ((region % regions) << PlaceServer.REGION_SHIFT);
+                if (row >= board.DIM || col >= board.DIM) {
+                    copy(chunkRow, chunkCol, region + 1);
+                    return;
+                }
+                synchronized (server.stripeFor(row, col)) {
+                    copy(chunkRow, chunkCol, region + 1);
+                }
+                return;
+            }
+            int index = chunkRow * board.getChunks() + chunkCol;
+            if (board.clearDirty(chunkRow, chunkCol)) changedAt[index] = generation;
+            // Unchanged since the file last had it
+            if (changedAt[index] <= since) return;
+            int top = chunkRow << PlaceBoard.CHUNK_SHIFT;
+            int left = chunkCol << PlaceBoard.CHUNK_SHIFT;
+            int width = Math.min(PlaceBoard.CHUNK_SIZE, board.DIM - left);
+            for (int row = 0; row < Math.min(PlaceBoard.CHUNK_SIZE, board.DIM - top); row++) {
+                board.copyChunkRow(chunkRow, chunkCol, row, rowColors, rowOwners, rowTimes);
+                long cell = board.indexOf(top + row, left);
+                for (int col = 0; col < width; col++) {
+                    colors.putByte(cell + col, rowColors[col]);
+                    owners.putInt(cell + col, rowOwners[col]);
+                    times.putLong(cell + col, rowTimes[col]);
+                }
+            }
+            copied++;
+        }
+    }
+
+    /**
+     * One field of every cell, mapped in windows.  Cells are counted from
+     * the start of the section, and a field never straddles two windows.
+     */
+    private static class Section {
+        private final MappedByteBuffer[] windows;
+        /** The size of the field, as a shift */
+        private final int shift;
+
+        /**
+         * Map a section of a checkpoint file.
+         *
+         * @param channel the file
+         * @param mode how to map it
+         * @param start where the section starts in the file
+         * @param cells the cells in the section
+         * @param shift the size of the field, as a shift
+         * @throws IOException if the section cannot be mapped
+         */
+        Section(FileChannel channel, FileChannel.MapMode mode, long start, long cells, int shift) throws IOException {
+            long bytes = cells << shift;
+            this.windows = new MappedByteBuffer[(int) ((bytes + WINDOW - 1) >>> WINDOW_SHIFT)];
+            this.shift = shift;
+            for (int w = 0; w < windows.length; w++) {
+                long from = (long) w << WINDOW_SHIFT;
+                windows[w] = channel.map(mode, start + from, Math.min(WINDOW, bytes - from));
+            }
+        }
+
+        private MappedByteBuffer window(long cell) {
+            return windows[(int) ((cell << shift) >>> WINDOW_SHIFT)];
+        }
+
+        private int offset(long cell) {
+            return (int) ((cell << shift) & (WINDOW - 1));
+        }
+
+        byte getByte(long cell) {
+            return window(cell).get(offset(cell));
+        }
+
+        int getInt(long cell) {
+            return window(cell).getInt(offset(cell));
+        }
+
+        long getLong(long cell) {
+            return window(cell).getLong(offset(cell));
+        }
+
+        void putByte(long cell, byte value) {
+            window(cell).put(offset(cell), value);
+        }
+
+        void putInt(long cell, int value) {
+            window(cell).putInt(offset(cell), value);
+        }
+
+        void putLong(long cell, long value) {
+            window(cell).putLong(offset(cell), value);
+        }
+
+        /**
+         * Force every window to disk
+         */
+        void force() {
+            for (MappedByteBuffer window : windows) {
+                window.force();
+            }
+        }
+    }
+
+    /**
+     * @return the cells of a board
+     */
+    private static long cells(int dim) {
+        return (long) dim * dim;
+    }
+
+    /**
+     * Take a checkpoint every interval while the board is changing.
+     */
+    @Override
+    public void run() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        while (running) {
+            long left = deadline - System.nanoTime();
+            if (left > 0) {
+                LockSupport.parkNanos(this, left);
+                continue;
+            }
+            deadline += TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+            if (server.getSequence() == sequence) continue;
+            try {
+                long start = System.currentTimeMillis();
+                checkpoint();
+                System.out.println("Checkpoint at change " + sequence + " took "
+                        + (System.currentTimeMillis() - start) + " ms");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package place.server;
+
+import place.PlaceTile;
+import place.network.FrameBuffer;
+import place.network.PlaceExchange;
+import place.network.PlaceRequest;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The server side of a connection to one client.  A connection does no
+ * blocking I/O and owns no thread: its {@link Reactor} hands it bytes as they
+ * arrive and asks it to flush when the socket can take more.  Requests are
+ * handled on the server's worker pool, one at a time and in the order they
+ * arrived.
+ *
+ * Outgoing messages wait in a bounded queue that the reactor drains as fast
+ * as the client reads.  When a client falls so far behind that the queue is
+ * full, tile changes for it are handled by the server's {@link OverflowPolicy}
+ * and nobody else is slowed down.
+ *
+ * A client that sent RESUME before logging in is told how far it has got with
+ * SEQUENCE requests.  A SEQUENCE never overtakes the changes it vouches for,
+ * even the ones held back by the COALESCE policy.  Once the DROP policy has
+ * thrown a change away the client is sent no more of them, so that on
+ * resuming it is sent everything after the last SEQUENCE it got.
+ *
+ * @author Michael Jansen
+ * @author Tyson Levy
+ * @author Leelan Carbonell
+ */
+class ClientConnection {
+    /** Most requests handled in one go before the worker goes back to the pool */
+    private static final int DRAIN_BATCH = 64;
+    /** Clients only send small requests, anything bigger is garbage */
+    private static final int MAX_INBOUND_FRAME = 64 * 1024;
+
+    private final PlaceServer server;
+    private final Reactor reactor;
+    private final SocketChannel channel;
+    private final InetAddress address;
+    private final PlaceExchange exchange;
+    private SelectionKey key;
+
+    /** Start of a frame that has not fully arrived yet (reactor thread only) */
+    private ByteBuffer partial;
+    /** Frames waiting to be handled */
+    private final Queue<byte[]> inbox = new ConcurrentLinkedQueue<>();
+    /** Is a worker currently draining the inbox? */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /** Messages waiting to be written */
+    private final Queue<PlaceRequest<?>> outbox = new ConcurrentLinkedQueue<>();
+    /** Number of messages in the outbox */
+    private final AtomicInteger queued = new AtomicInteger();
+    /** Newest change to each cell while coalescing, keyed by row and column */
+    private final Map<Long, PlaceRequest<?>> coalesced = new LinkedHashMap<>();
+    /** SEQUENCE waiting for the coalesced changes to go, or null (guarded by coalesced) */
+    private PlaceRequest<?> pendingMark;
+    /** Has a change been dropped for the client, so it can no longer be told how far it has got? (guarded by coalesced) */
+    private boolean dropped;
+    /** Has the reactor already been asked to flush? */
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    /** Encoded bytes the socket would not take yet (reactor thread only) */
+    private ByteBuffer unsent;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile String username = "";
+    /** The user's id in the server's user table, set at login */
+    private volatile int userId;
+    /** System.nanoTime() when the client's login arrived */
+    private volatile long loginNanos;
+    /** Is the client a {@link Gateway} placing tiles for its own users? */
+    private volatile boolean gateway;
+    /** Session and sequence number the client sent RESUME with, or null */
+    private volatile long[] resume;
+
+    /**
+     * Construct a connection
+     * @param server The server the client connected to
+     * @param reactor The reactor that will do this connection's I/O
+     * @param channel The non-blocking channel connected to the client
+     * @param address The address the client connected from
+     */
+    ClientConnection(PlaceServer server, Reactor reactor, SocketChannel channel, InetAddress address){
+        this.server = server;
+        this.reactor = reactor;
+        this.channel = channel;
+        this.address = address;
+        this.exchange = new PlaceExchange(null, server.getUsers());
+    }
+
+    /**
+     * @return the channel connected to the client
+     */
+    SocketChannel getChannel(){
+        return channel;
+    }
+
+    /**
+     * @return the address the client connected from
+     */
+    InetAddress getAddress(){
+        return address;
+    }
+
+    /**
+     * @return the name the client logged in with, or "" before login
+     */
+    String getUsername(){
+        return username;
+    }
+
+    /**
+     * @return System.nanoTime() when the client's login arrived
+     */
+    long getLoginNanos(){
+        return loginNanos;
+    }
+
+    /**
+     * @return the session and sequence number the client resumes from, or null
+     *         if it did not ask to be able to resume
+     */
+    long[] getResume(){
+        return resume;
+    }
+
+    /**
+     * @return the number of messages waiting to be written
+     */
+    int getQueued(){
+        return queued.get();
+    }
+
+    /**
+     * @return whether the connection has been closed
+     */
+    boolean isClosed(){
+        return closed.get();
+    }
+
+    /**
+     * Called by the reactor once the channel is registered with its selector
+     * @param key The channel's selection key
+     */
+    void attach(SelectionKey key){
+        this.key = key;
+    }
+
+    /**
+     * Send a message to the client. The message is queued and written by the
+     * reactor, so this never blocks.
+     * @param request The request to send
+     */
+    public void sendMessage(PlaceRequest<?> request){
+        if(closed.get()) return;
+        queued.incrementAndGet();
+        outbox.add(request);
+        requestFlush();
+    }
+
+    /**
+     * Send tile changes to the client, applying the overflow policy if the
+     * client is too far behind to queue them. Broadcaster thread only.
+     * @param changed A TILE_CHANGED or TILES_CHANGED request
+     */
+    void sendTiles(PlaceRequest<?> changed){
+        if(closed.get()) return;
+        synchronized (coalesced){
+            if(coalesced.isEmpty() && queued.get() < server.getConfig().queueCapacity){
+                queued.incrementAndGet();
+                outbox.add(changed);
+            }else{
+                // A gateway's board is a copy of the shard's, so it may fall behind but never skip
+                OverflowPolicy policy = gateway ? OverflowPolicy.COALESCE : server.getConfig().overflow;
+                switch (policy){
+                    case DROP:
+                        // A later mark would vouch for this change, so send none
+                        dropped = true;
+                        pendingMark = null;
+                        return;
+                    case DISCONNECT:
+                        System.out.println("User: " + username + " fell too far behind");
+                        close();
+                        return;
+                    default:
+                        if(changed.getType() == PlaceRequest.RequestType.TILE_CHANGED){
+                            coalesce((PlaceTile) changed.getData(), changed);
+                        }else{
+                            for(PlaceTile tile : (PlaceTile[]) changed.getData()){
+                                coalesce(tile, new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED, tile));
+                            }
+                        }
+                }
+            }
+        }
+        requestFlush();
+    }
+
+    /**
+     * Tell the client how far it has got, after any changes that are still
+     * held back for it. Does nothing once a change has been dropped for the
+     * client. Broadcaster thread only.
+     * @param mark A SEQUENCE request
+     */
+    void sendMark(PlaceRequest<?> mark){
+        if(closed.get()) return;
+        synchronized (coalesced){
+            if(dropped){
+                return;
+            }else if(coalesced.isEmpty()){
+                queued.incrementAndGet();
+                outbox.add(mark);
+            }else{
+                pendingMark = mark;
+            }
+        }
+        requestFlush();
+    }
+
+    /**
+     * Remember a change as the newest one for its cell
+     * @param tile The new tile
+     * @param changed The TILE_CHANGED request for it
+     */
+    private void coalesce(PlaceTile tile, PlaceRequest<?> changed){
+        coalesced.put(((long) tile.getRow() << 32) | tile.getCol(), changed);
+    }
+
+    /**
+     * Ask the reactor to flush unless it has been asked already
+     */
+    private void requestFlush(){
+        if(flushRequested.compareAndSet(false, true)){
+            reactor.requestFlush(this);
+        }
+    }
+
+    /**
+     * Read whatever the client has sent and queue every complete frame for
+     * handling. Reactor thread only.
+     * @param buffer A scratch buffer shared by the reactor's connections
+     * @throws IOException If the connection is closed or the client sends garbage
+     */
+    void read(ByteBuffer buffer) throws IOException{
+        buffer.clear();
+        if(channel.read(buffer) < 0) throw new EOFException();
+        buffer.flip();
+
+        ByteBuffer in = buffer;
+        if(partial != null){
+            partial = ensureRemaining(partial, buffer.remaining());
+            partial.put(buffer);
+            partial.flip();
+            in = partial;
+        }
+        boolean queued = false;
+        while(in.remaining() >= PlaceExchange.HEADER_SIZE){
+            int length = in.getInt(in.position());
+            if(length < 0 || length > MAX_INBOUND_FRAME){
+                throw new IOException("Bad frame length " + length + " from " + channel);
+            }
+            if(in.remaining() < PlaceExchange.HEADER_SIZE + length) break;
+            in.position(in.position() + PlaceExchange.HEADER_SIZE);
+            byte[] frame = new byte[length];
+            in.get(frame);
+            inbox.add(frame);
+            queued = true;
+        }
+        if(!in.hasRemaining()){
+            partial = null;
+        }else if(in == partial){
+            partial.compact();
+        }else{
+            partial = ByteBuffer.allocate(Math.max(256, in.remaining()));
+            partial.put(in);
+        }
+        if(queued) schedule();
+    }
+
+    /**
+     * Make sure a buffer in write mode has room for more bytes, growing it if not
+     * @param buffer The buffer
+     * @param extra How many more bytes must fit
+     * @return The buffer, or a larger copy of it
+     */
+    private static ByteBuffer ensureRemaining(ByteBuffer buffer, int extra){
+        if(buffer.remaining() >= extra) return buffer;
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + extra));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    /**
+     * Write as much of the queued output as the socket will take. Reactor thread only.
+     * @param scratch A buffer shared by the reactor's connections to encode into
+     * @throws IOException If the connection is closed
+     */
+    void flush(FrameBuffer scratch) throws IOException{
+        if(key == null || closed.get()) return;
+        flushRequested.set(false);
+        while(true){
+            ByteBuffer out = unsent;
+            if(out == null){
+                scratch.reset(Reactor.BUFFER_SIZE);
+                PlaceRequest<?> request;
+                while(scratch.size() < Reactor.BUFFER_SIZE && (request = outbox.poll()) != null){
+                    queued.decrementAndGet();
+                    exchange.encode(request, scratch);
+                }
+                if(scratch.size() < Reactor.BUFFER_SIZE && outbox.isEmpty()){
+                    // The queue has drained, so the coalesced changes can go now
+                    synchronized (coalesced){
+                        Iterator<PlaceRequest<?>> changes = coalesced.values().iterator();
+                        while(scratch.size() < Reactor.BUFFER_SIZE && changes.hasNext()){
+                            exchange.encode(changes.next(), scratch);
+                            changes.remove();
+                        }
+                        if(coalesced.isEmpty() && pendingMark != null){
+                            exchange.encode(pendingMark, scratch);
+                            pendingMark = null;
+                        }
+                    }
+                }
+                if(scratch.size() == 0) break;
+                out = scratch.toByteBuffer();
+            }
+            channel.write(out);
+            if(out.hasRemaining()){
+                // Keep the leftovers; the shared scratch buffer belongs to everyone
+                if(out != unsent){
+                    unsent = ByteBuffer.allocate(out.remaining());
+                    unsent.put(out).flip();
+                }
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            unsent = null;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Have a worker handle the queued requests unless one already is
+     */
+    private void schedule(){
+        if(scheduled.compareAndSet(false, true)){
+            server.getWorkers().execute(this::drain);
+        }
+    }
+
+    /**
+     * Handle queued requests in order. Runs on a worker thread.
+     */
+    private void drain(){
+        try{
+            for(int i = 0; i < DRAIN_BATCH && !closed.get(); i++){
+                byte[] frame = inbox.poll();
+                if(frame == null) break;
+                handleMessage(exchange.decode(frame));
+            }
+        }catch (IOException | RuntimeException e){
+            // A frame that does not decode, or decodes to nonsense, ends the connection
+            e.printStackTrace();
+            close();
+        }finally {
+            scheduled.set(false);
+        }
+        if(!inbox.isEmpty() && !closed.get()) schedule();
+    }
+
+    /**
+     * Handle a message received from the client
+     * @param request The request from the client
+     * @throws IOException
+     */
+    public void handleMessage(PlaceRequest<?> request) throws IOException{
+        if(request.getType() == PlaceRequest.RequestType.RESUME){
+            if(username.isEmpty()) resume = (long[]) request.getData();
+        }else if(request.getType() == PlaceRequest.RequestType.LOGIN){
+            if(!username.isEmpty()) return;
+            String name = (String) request.getData();
+            loginNanos = System.nanoTime();
+            String key = server.getConfig().shardKey;
+            boolean isGateway = key != null && name.equals(Gateway.LOGIN_PREFIX + key);
+            if(isGateway){
+                // Never print the key; a gateway is known by where it connected from
+                name = "@gateway " + channel.socket().getRemoteSocketAddress();
+            }
+            // Set before the connection is registered, so the first changes sent to it already
+            // see a gateway
+            this.gateway = isGateway;
+            if(server.addClient(name, this)){
+                this.userId = server.getUsers().idOf(name);
+                this.username = name;
+                System.out.println("User: " + username + " connected");
+            }else{
+                this.gateway = false;
+                System.out.println("Username already exists: " + name);
+                sendMessage(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Username already taken!"));
+            }
+        }else if(request.getType() == PlaceRequest.RequestType.CHANGE_TILE){
+            PlaceTile tile = (PlaceTile) request.getData();
+            if(gateway){
+                // The gateway has already held its user to the cooldown
+                server.updateTile(tile);
+            }else if(!username.isEmpty() && server.getRateLimiter().tryAcquire(userId)) {
+                // The limit belongs to the user, so reconnecting does not reset it.
+                // Only a gateway may place tiles for someone else
+                tile.setOwner(username);
+                server.updateTile(tile);
+            }else{
+                server.getMetrics().rejected();
+            }
+        }else if(request.getType() == PlaceRequest.RequestType.SUBSCRIBE){
+            // Each change sends the client its new rectangles, so like placing it has a cooldown
+            if(!username.isEmpty() && server.getSubscribeLimiter().tryAcquire(userId)){
+                server.subscribe(this, (int[]) request.getData());
+            }
+        }else if(request.getType() == PlaceRequest.RequestType.PING){
+            if(gateway) server.getBroadcaster().echo(this, request);
+        }
+    }
+
+    /**
+     * Close the connection. Safe to call more than once and from any thread.
+     */
+    public void close(){
+        if(!closed.compareAndSet(false, true)) return;
+        try {
+            if(key != null) key.cancel();
+            channel.close();
+        }catch (IOException e){
+            e.printStackTrace();
+        }
+        System.out.println("User: " + username + " disconnected");
+        server.removeClient(this);
+    }
+}
@@ -0,0 +1,134 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.PlaceTile;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * The part of a PlaceServer that makes it a gateway in front of shards.  The
+ * board is cut into horizontal bands, one per shard, and each shard is a
+ * PlaceServer of its own that only takes placements inside its band.  The
+ * gateway keeps the client connections: it sends each placement to the shard
+ * that owns the tile over a {@link ShardLink}, and commits the changes the
+ * shards send back to its own copy of the board, from where they go to the
+ * clients like any other change.
+ *
+ * A replica is a gateway with a single shard, the primary, that owns the
+ * whole board.  The primary sends it every change in the order it sent them
+ * to its own clients, and the replica sends them on to its clients, so
+ * spectators can be spread over as many replicas as it takes.
+ *
+ * Every node can run on one host, e.g. for two shards:
+ * <pre>
+ *   java -Dplace.shard=0/2 -Dplace.shardKey=k -Dplace.log=shard0.log place.server.PlaceServer 5556 1000
+ *   java -Dplace.shard=1/2 -Dplace.shardKey=k -Dplace.log=shard1.log place.server.PlaceServer 5557 1000
+ *   java -Dplace.shards=localhost:5556,localhost:5557 -Dplace.shardKey=k place.server.PlaceServer 5555 1000
+ * </pre>
+ * or for a primary and a replica:
+ * <pre>
+ *   java -Dplace.shardKey=k place.server.PlaceServer 5555 1000
+ *   java -Dplace.primary=localhost:5555 -Dplace.shardKey=k place.server.PlaceServer 5556 1000
+ * </pre>
+ *
+ * @author Michael Jansen
+ */
+class Gateway {
+    /** Start of the username a gateway logs in to its shards with, followed by the shard key */
+    static final String LOGIN_PREFIX = "@gateway:";
+
+    private final ShardLink[] links;
+    /** First row of each band, and the board size after the last */
+    private final int[] tops;
+
+    /**
+     * Set up links to the shards without connecting.
+     *
+     * @param server the gateway server
+     * @param dim the dimension of the board
+     * @param shards the shards, in band order
+     * @param key the shard key
+     */
+    Gateway(PlaceServer server, int dim, List<InetSocketAddress> shards, String key) {
+        this.links = new ShardLink[shards.size()];
+        this.tops = new int[shards.size() + 1];
+        for (int i = 0; i < links.length; i++) {
+            int[] band = band(dim, i, links.length);
+            tops[i] = band[0];
+            links[i] = new ShardLink(server, shards.get(i), LOGIN_PREFIX + key, band);
+        }
+        tops[links.length] = dim;
+    }
+
+    /**
+     * Get the rows of a band of the board.
+     *
+     * @param dim the dimension of the board
+     * @param index the band, counting from 0
+     * @param count the number of bands
+     * @return the first row of the band and the row after its last
+     */
+    static int[] band(int dim, int index, int count) {
+        return new int[]{(int) ((long) dim * index / count), (int) ((long) dim * (index + 1) / count)};
+    }
+
+    /**
+     * Fill the board from the shards, waiting for any that are not up yet.
+     *
+     * @param board the gateway's board, not yet shared with anyone
+     * @throws IOException if a shard's board is not the gateway's size
+     */
+    void load(PlaceBoard board) throws IOException {
+        for (ShardLink link : links) {
+            link.load(board);
+        }
+    }
+
+    /**
+     * Start following the shards' changes and sending them placements
+     */
+    void start() {
+        for (ShardLink link : links) {
+            link.start();
+        }
+    }
+
+    /**
+     * Send a placement to the shard that owns its tile.
+     *
+     * @param tile the tile, already checked to be on the board
+     * @return whether the placement was sent on
+     */
+    boolean forward(PlaceTile tile) {
+        int low = 0, high = links.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (tops[mid] <= tile.getRow()) low = mid; else high = mid - 1;
+        }
+        return links[low].offer(tile);
+    }
+
+    /**
+     * @return how far the board is behind the shard that is furthest behind, in milliseconds
+     */
+    double getLagMillis() {
+        double lag = 0;
+        for (ShardLink link : links) {
+            lag = Math.max(lag, link.getLagMillis());
+        }
+        return lag;
+    }
+
+    /**
+     * @return a line about each shard
+     */
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        for (ShardLink link : links) {
+            out.append(link).append(System.lineSeparator());
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,70 @@
+package place.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations in power of two buckets of nanoseconds, so recording one
+ * is a couple of atomic adds and never takes a lock.  Percentiles are only
+ * good to within a factor of two, which is plenty to tell a millisecond from
+ * a second.
+ *
+ * @author Michael Jansen
+ */
+class LatencyHistogram {
+    /** Number of durations whose highest set bit is each bit */
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+
+    /**
+     * Record a duration.  Can be called from any thread.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    void record(long nanos) {
+        nanos = Math.max(1, nanos);
+        buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos));
+        count.increment();
+        total.add(nanos);
+    }
+
+    /**
+     * @return the number of durations recorded
+     */
+    long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the mean duration in milliseconds, or 0 if none were recorded
+     */
+    double getMeanMillis() {
+        long n = count.sum();
+        return n == 0 ? 0 : total.sum() / 1e6 / n;
+    }
+
+    /**
+     * Get a duration that a given share of the recorded durations are
+     * shorter than.
+     *
+     * @param fraction the share, e.g. 0.99
+     * @return the duration in milliseconds, rounded up to a power of two
+     *         nanoseconds, or 0 if none were recorded
+     */
+    double getPercentileMillis(double fraction) {
+        long[] counts = new long[buckets.length()];
+        long n = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+            n += counts[i];
+        }
+        long wanted = (long) Math.ceil(n * fraction);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (n > 0 && seen >= wanted) return Math.scalb(1.0, i + 1) / 1e6;
+        }
+        return 0;
+    }
+}
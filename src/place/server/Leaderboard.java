@@ -0,0 +1,172 @@
+package place.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts the changes each user has made and always knows who has made the
+ * most and the fewest, without sorting or scanning anybody.  Users with the
+ * same count are kept together in a bucket, and the buckets are kept in a
+ * list ordered by count.  Counting a change moves one user from their bucket
+ * to the next one up, so it costs the same however many users there are,
+ * and the ends of the list are the most and least active users.
+ *
+ * Users are the ids of a {@link place.UserTable}.  The users in a bucket are
+ * linked through arrays indexed by id, so counting allocates nothing except
+ * the occasional new bucket.
+ *
+ * @author Michael Jansen
+ */
+class Leaderboard {
+    /**
+     * The users that have made the same number of changes
+     */
+    private static class Bucket {
+        final long count;
+        Bucket lower, higher;
+        /** First user in the bucket, or -1 */
+        int first = -1;
+        int size;
+
+        Bucket(long count) {
+            this.count = count;
+        }
+    }
+
+    /**
+     * Some users and how many changes each of them made
+     */
+    static class Standing {
+        /** The number of changes */
+        final long count;
+        /** Ids of at most the asked for number of users with that count */
+        final List<Integer> users;
+        /** The number of users with that count, listed or not */
+        final int total;
+
+        Standing(long count, List<Integer> users, int total) {
+            this.count = count;
+            this.users = users;
+            this.total = total;
+        }
+    }
+
+    /** Bucket of each user, or null for users with no changes */
+    private Bucket[] buckets = new Bucket[64];
+    /** Next and previous user in the same bucket, or -1 */
+    private int[] next = new int[64], previous = new int[64];
+    /** Bucket with the fewest and the most changes, or null */
+    private Bucket lowest, highest;
+    private long changes;
+    private int users;
+
+    /**
+     * Count one change made by a user.
+     *
+     * @param user the user's id
+     */
+    synchronized void increment(int user) {
+        if (user >= buckets.length) {
+            int length = Math.max(buckets.length * 2, user + 1);
+            buckets = Arrays.copyOf(buckets, length);
+            next = Arrays.copyOf(next, length);
+            previous = Arrays.copyOf(previous, length);
+        }
+        changes++;
+        Bucket from = buckets[user];
+        long count = from == null ? 1 : from.count + 1;
+        Bucket to = from == null ? lowest : from.higher;
+        if (to == null || to.count != count) {
+            // Goes just above the user's old bucket, or at the bottom for a new user
+            to = new Bucket(count);
+            to.lower = from;
+            to.higher = from == null ? lowest : from.higher;
+            if (to.lower != null) to.lower.higher = to; else lowest = to;
+            if (to.higher != null) to.higher.lower = to; else highest = to;
+        }
+        if (from != null) {
+            remove(from, user);
+        } else {
+            users++;
+        }
+        add(to, user);
+    }
+
+    /**
+     * @return the number of changes counted
+     */
+    synchronized long getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return the number of users with at least one change
+     */
+    synchronized int getUsers() {
+        return users;
+    }
+
+    /**
+     * Get the users with the most changes.
+     *
+     * @param limit the most users to list
+     * @return the users, or null if nobody has made a change
+     */
+    synchronized Standing most(int limit) {
+        return standing(highest, limit);
+    }
+
+    /**
+     * Get the users with the fewest changes.
+     *
+     * @param limit the most users to list
+     * @return the users, or null if nobody has made a change
+     */
+    synchronized Standing least(int limit) {
+        return standing(lowest, limit);
+    }
+
+    /**
+     * Get the most active users, most active first.
+     *
+     * @param k the number of users
+     * @return their ids and change counts, as {id, count} pairs
+     */
+    synchronized List<long[]> top(int k) {
+        List<long[]> top = new ArrayList<>(k);
+        for (Bucket bucket = highest; bucket != null && top.size() < k; bucket = bucket.lower) {
+            for (int user = bucket.first; user >= 0 && top.size() < k; user = next[user]) {
+                top.add(new long[]{user, bucket.count});
+            }
+        }
+        return top;
+    }
+
+    private Standing standing(Bucket bucket, int limit) {
+        if (bucket == null) return null;
+        List<Integer> listed = new ArrayList<>(Math.min(limit, bucket.size));
+        for (int user = bucket.first; user >= 0 && listed.size() < limit; user = next[user]) {
+            listed.add(user);
+        }
+        return new Standing(bucket.count, listed, bucket.size);
+    }
+
+    private void add(Bucket bucket, int user) {
+        buckets[user] = bucket;
+        previous[user] = -1;
+        next[user] = bucket.first;
+        if (bucket.first >= 0) previous[bucket.first] = user;
+        bucket.first = user;
+        bucket.size++;
+    }
+
+    private void remove(Bucket bucket, int user) {
+        if (previous[user] >= 0) next[previous[user]] = next[user]; else bucket.first = next[user];
+        if (next[user] >= 0) previous[next[user]] = previous[user];
+        if (--bucket.size == 0) {
+            if (bucket.lower != null) bucket.lower.higher = bucket.higher; else lowest = bucket.higher;
+            if (bucket.higher != null) bucket.higher.lower = bucket.lower; else highest = bucket.lower;
+        }
+    }
+}
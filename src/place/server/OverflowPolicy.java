@@ -0,0 +1,16 @@
+package place.server;
+
+/**
+ * What a connection does with a tile change when its outbound queue is full,
+ * i.e. when the client is reading more slowly than tiles are changing.
+ *
+ * @author Michael Jansen
+ */
+public enum OverflowPolicy {
+    /** Throw the change away; the client's board goes stale, and a client that can resume is no longer told how far it has got */
+    DROP,
+    /** Keep only the newest change to each cell until the client catches up */
+    COALESCE,
+    /** Close the connection */
+    DISCONNECT
+}
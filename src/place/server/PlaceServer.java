@@ -2,51 +2,166 @@ package place.server;
 
 import place.PlaceBoard;
 import place.PlaceTile;
+import place.UserTable;
+import place.network.BoardSnapshot;
 import place.network.PlaceRequest;
-import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.util.HashMap;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Implementation of a Place Server. This is a multi-threaded server that
- * spawns a new thread to handle every client that connects
+ * Implementation of a Place Server. Connections are served by a small number
+ * of non-blocking reactor threads and requests are handled by a fixed pool of
+ * worker threads, so the number of threads does not grow with the number of
+ * connected clients. If place.log names a file, every change is written to a {@link ChangeLog}
+ * and the board is checkpointed now and then by a {@link Checkpointer}; when the server starts
+ * again the board is rebuilt from the last checkpoint and the changes logged after it
+ *
+ * A server can also be one of several shards that each own a band of the board, or the
+ * {@link Gateway} in front of them that the clients connect to. A replica is a gateway
+ * for a single primary that owns the whole board, so that the primary's changes reach
+ * many more clients than it could send to itself. A gateway keeps no log of its own:
+ * its board is loaded from the shards or primary, which log their own changes
+ *
+ * A client whose connection drops can log in again and be sent only the changes it
+ * missed, as long as the server has not restarted and still keeps them; see
+ * {@link ReplayBuffer}
  *
  * @author Michael Jansen
  * @author Tyson Levy
  * @author Leelan Carbonell
  */
 public class PlaceServer{
+    /** Number of locks guarding regions of the board, a power of two */
+    private static final int STRIPES = 256;
+    /** Side of the square region of the board a single lock guards, as a shift */
+    static final int REGION_SHIFT = 4;
+    /** Most rectangles one client can subscribe to */
+    private static final int MAX_SUBSCRIPTIONS = 64;
+    /** Subscription changes a user can save up while idle */
+    private static final int SUBSCRIBE_BURST = 8;
+
     public static PlaceServer instance;
-    private ServerSocket server;
+    private ServerSocketChannel server;
     protected PlaceBoard board;
     private volatile boolean running = true;
-    private HashMap<String, ClientThread> clients;
-    private InetAddress lastConnect = null;
-    private long lastConnectTime = 0;
+    private Map<String, ClientConnection> clients;
+    private final UserTable users = new UserTable();
+    private Reactor[] reactors;
+    private int nextReactor = 0;
+    private ExecutorService workers;
+    private Broadcaster broadcaster;
+    private RateLimiter rateLimiter;
+    private RateLimiter subscribeLimiter;
+    private ChangeLog log;
+    private Checkpointer checkpointer;
+    private Object[] stripes;
+    private final AtomicLong sequence = new AtomicLong();
+    /** Tells this run of the server from earlier ones, whose sequence numbers may mean other changes */
+    private final long session = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+    private ServerConfig config;
+    private AdmissionController admission;
     private ServerStatistics serverStatistics;
+    private ServerMetrics metrics;
+    /** First row this server takes placements in and the row after the last, or null for all */
+    private int[] band;
+    /** The shards placements are sent to, or null if this server keeps the board itself */
+    private Gateway gateway;
     protected long startTime;
     protected long endTime;
 
+    /**
+     * Constructs a place server with the default configuration
+     * @param port The port to run the server on
+     * @param dim The dimension of the place board
+     */
+    public PlaceServer(int port, int dim){
+        this(port, dim, new ServerConfig());
+    }
+
     /**
      * Constructs a place server. Starts running a server socket
      * and prepares everything
      * @param port The port to run the server on
      * @param dim The dimension of the place board
+     * @param config The server configuration
      */
-    public PlaceServer(int port, int dim){
+    public PlaceServer(int port, int dim, ServerConfig config){
         try {
-            this.server = new ServerSocket(port);
+            this.config = config;
+            this.metrics = new ServerMetrics(this);
+            this.server = ServerSocketChannel.open();
+            this.server.bind(new InetSocketAddress(port), 1024);
             this.startTime = System.currentTimeMillis();
-            this.board = new PlaceBoard(dim);
-            this.clients = new HashMap<>();
+            this.board = new PlaceBoard(dim, users);
+            if(config.shardCount > 0){
+                this.band = Gateway.band(dim, config.shardIndex, config.shardCount);
+                System.out.println("Shard " + config.shardIndex + " of " + config.shardCount
+                        + ", taking placements in rows " + band[0] + " to " + (band[1] - 1));
+            }
+            if(!config.shards.isEmpty()){
+                if(config.shardKey == null){
+                    System.err.println("A gateway or replica needs place.shardKey, set the same on the servers it follows");
+                    System.exit(1);
+                }
+                this.gateway = new Gateway(this, dim, config.shards, config.shardKey);
+                gateway.load(board);
+            }else if(config.logPath != null){
+                long replayStart = System.currentTimeMillis();
+                this.checkpointer = new Checkpointer(this, Paths.get(config.logPath + ".checkpoint"),
+                        config.checkpointMillis);
+                if(checkpointer.load(board)){
+                    System.out.println("Loaded checkpoint at change " + checkpointer.getSequence());
+                }
+                this.log = ChangeLog.open(Paths.get(config.logPath), board, config.fsyncMillis,
+                        checkpointer.getSequence(), checkpointer.getLogOffset());
+                this.sequence.set(log.getLastSequence());
+                System.out.println("Replayed " + log.getReplayed() + " changes from " + config.logPath
+                        + " in " + (System.currentTimeMillis() - replayStart) + " ms");
+                this.log.start();
+                this.checkpointer.start();
+            }
+            this.stripes = new Object[STRIPES];
+            for(int i = 0; i < STRIPES; i++){
+                stripes[i] = new Object();
+            }
+            this.clients = new ConcurrentHashMap<>();
+            this.workers = Executors.newFixedThreadPool(config.workers);
+            this.reactors = new Reactor[config.reactors];
+            for(int i = 0; i < reactors.length; i++){
+                reactors[i] = new Reactor("reactor-" + i);
+                reactors[i].start();
+            }
+            this.rateLimiter = new RateLimiter(config.cooldownMillis, config.burst);
+            this.subscribeLimiter = new RateLimiter(config.subscribeMillis, SUBSCRIBE_BURST);
+            this.admission = new AdmissionController(config);
+            this.broadcaster = new Broadcaster(this, config.tickMillis);
+            this.broadcaster.start();
             this.serverStatistics = new ServerStatistics(this);
+            this.serverStatistics.start();
+            this.metrics.register();
+            if(gateway != null) gateway.start();
             instance = this;
         }catch (IOException e){
             e.printStackTrace();
@@ -55,48 +170,244 @@ public class PlaceServer{
     }
 
     /**
-     * Updates a tile on the place board and then sends that update to all connected clients
+     * @return the ids of every user the server has seen
+     */
+    UserTable getUsers(){
+        return users;
+    }
+
+    /**
+     * @return the server configuration
+     */
+    ServerConfig getConfig(){
+        return config;
+    }
+
+    /**
+     * @return the log of tile changes, or null if changes are not logged
+     */
+    ChangeLog getLog(){
+        return log;
+    }
+
+    /**
+     * @return the clients that are logged in
+     */
+    Collection<ClientConnection> getClients(){
+        return clients.values();
+    }
+
+    /**
+     * @return the pool that handles client requests
+     */
+    ExecutorService getWorkers(){
+        return workers;
+    }
+
+    /**
+     * @return the statistics being gathered
+     */
+    ServerStatistics getStatistics(){
+        return serverStatistics;
+    }
+
+    /**
+     * @return the live metrics of the server
+     */
+    public ServerMetrics getMetrics(){
+        return metrics;
+    }
+
+    /**
+     * @return the limit on how often each user may place a tile
+     */
+    RateLimiter getRateLimiter(){
+        return rateLimiter;
+    }
+
+    /**
+     * @return the limit on how often each user may change what they subscribe to
+     */
+    RateLimiter getSubscribeLimiter(){
+        return subscribeLimiter;
+    }
+
+    /**
+     * @return the shards or primary this server follows, or null if it keeps the board itself
+     */
+    Gateway getGateway(){
+        return gateway;
+    }
+
+    /**
+     * @return the thread that sends changes to the clients
+     */
+    Broadcaster getBroadcaster(){
+        return broadcaster;
+    }
+
+    /**
+     * @return the sequence number of the latest committed change
+     */
+    public long getSequence(){
+        return sequence.get();
+    }
+
+    /**
+     * @return the number telling this run of the server from others
+     */
+    long getSession(){
+        return session;
+    }
+
+    /**
+     * Takes a placement from a client. A shard turns down tiles outside its band, and a
+     * gateway sends the tile on to the shard that owns it and commits it when the shard
+     * sends the change back; otherwise the tile is committed straight away
      * @param tile The tile that should be updated
-     * @throws IOException
+     * @return whether the placement was committed or sent on
      */
-    public synchronized void updateTile(PlaceTile tile) throws IOException{
-        synchronized (board) {
-            if (board.isValid(tile)) {
-                board.setTile(tile);
-                serverStatistics.changeTile(tile);
-                for (ClientThread client : clients.values()) {
-                    client.sendMessage(new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED, tile));
-                }
-            }
+    public boolean updateTile(PlaceTile tile){
+        if (!board.isValid(tile) || (band != null && (tile.getRow() < band[0] || tile.getRow() >= band[1]))) {
+            metrics.rejected();
+            return false;
+        }
+        if (gateway != null) {
+            if (gateway.forward(tile)) return true;
+            metrics.rejected();
+            return false;
         }
+        return commit(tile);
+    }
+
+    /**
+     * Commits a tile to the place board and then queues that update to be sent to all
+     * connected clients. Only the lock for the tile's region of the board is held, so
+     * changes to different regions commit in parallel; every change still gets a place
+     * in one global order from the sequence counter. The change is logged without waiting
+     * for the disk
+     * @param tile The tile that should be updated
+     * @return whether the change was committed
+     */
+    boolean commit(PlaceTile tile){
+        synchronized (stripeFor(tile.getRow(), tile.getCol())) {
+            board.setTile(tile);
+            TileChange change = new TileChange(sequence.incrementAndGet(), tile);
+            if(log != null) log.append(change);
+            broadcaster.publish(change);
+        }
+        metrics.placed();
+        return true;
+    }
+
+    /**
+     * Get the lock guarding a cell
+     * @param row The cell's row
+     * @param col The cell's column
+     * @return The lock for the cell's region
+     */
+    Object stripeFor(int row, int col){
+        int region = (row >> REGION_SHIFT) * 31 + (col >> REGION_SHIFT);
+        return stripes[region & (STRIPES - 1)];
     }
 
     /**
-     * Adds a client to the list of connected clients and sends them the current state of
-     * the board
+     * Adds a client to the list of connected clients. The broadcaster sends them the
+     * current state of the board, or the changes they missed if they are resuming,
+     * followed by every later change. A resuming client takes the name over from a
+     * connection from the same address, which is most likely its own old connection
+     * that has died without the server noticing
      * @param username The username of the client
-     * @param thread The thread that the client is running on
-     * @throws IOException
+     * @param client The connection to the client
+     * @return false if the username is already taken
+     */
+    public boolean addClient(String username, ClientConnection client){
+        ClientConnection old;
+        while((old = clients.putIfAbsent(username, client)) != null){
+            if(client.getResume() == null || !old.getAddress().equals(client.getAddress())) return false;
+            System.out.println("User: " + username + " came back on a new connection");
+            old.close();
+            clients.remove(username, old);
+        }
+        client.sendMessage(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN_SUCCESS, username));
+        broadcaster.join(client);
+        return true;
+    }
+
+    /**
+     * Limit the tile changes a client is sent to some rectangles of the board. The
+     * rectangles are clipped to the board and empty ones are dropped. Once they add
+     * up to the configured area the rectangle that goes over is cut short and the
+     * rest are dropped
+     * @param client The client
+     * @param rects The row, column, rows and columns of each rectangle, or nothing
+     *              for the whole board
+     */
+    void subscribe(ClientConnection client, int[] rects){
+        int count = Math.min(rects.length / 4, MAX_SUBSCRIPTIONS);
+        int[] clipped = new int[count * 4];
+        int n = 0;
+        long area = 0;
+        for(int r = 0; r < count * 4; r += 4){
+            long top = Math.max(0, rects[r]), left = Math.max(0, rects[r + 1]);
+            long bottom = Math.min(board.DIM, (long) rects[r] + rects[r + 2]);
+            long right = Math.min(board.DIM, (long) rects[r + 1] + rects[r + 3]);
+            if(top >= bottom || left >= right) continue;
+            long rows = Math.min(bottom - top, (config.subscribeArea - area) / (right - left));
+            if(rows <= 0) break;
+            area += rows * (right - left);
+            clipped[n++] = (int) top;
+            clipped[n++] = (int) left;
+            clipped[n++] = (int) rows;
+            clipped[n++] = (int) (right - left);
+        }
+        // Rectangles that were all off the board mean nothing, not the whole board
+        if(n == 0 && count > 0) n = 4;
+        broadcaster.subscribe(client, Arrays.copyOf(clipped, n));
+    }
+
+    /**
+     * Removes a client from the list of connected clients and stops counting its
+     * connection against the connection limits
+     * @param client The connection that closed
      */
-    public void addClient(String username, ClientThread thread) throws IOException{
-        clients.put(username, thread);
-        thread.sendMessage(new PlaceRequest<>(PlaceRequest.RequestType.BOARD, board));
+    void removeClient(ClientConnection client){
+        clients.remove(client.getUsername(), client);
+        admission.release(client.getAddress());
     }
 
     /**
-     * Stop the server cleanly if the user types STOP
+     * Stop the server cleanly if the user types STOP, print the live metrics if
+     * the user types STATS, and save the board as it was earlier if the user types
+     * AT followed by a time of day (HH:mm or HH:mm:ss today), milliseconds since the
+     * epoch, or # and a sequence number
      */
     public void check(){
         Scanner in = new Scanner(System.in);
         while(running){
-            if(in.nextLine().equals("STOP")){
+            String line = in.nextLine();
+            if(line.equals("STATS")){
+                System.out.println(metrics);
+                if(gateway != null) System.out.print(gateway);
+            }else if(line.startsWith("AT ")){
+                travel(line.substring(3).trim());
+            }else if(line.equals("STOP")){
                 System.out.println("SERVER CLOSING");
                 running = false;
-                for(ClientThread client:clients.values()){
-                    client.closeAll();
+                for(ClientConnection client:clients.values()){
+                    client.close();
                 }
                 try {
                     server.close();
+                    for(Reactor reactor : reactors){
+                        reactor.shutdown();
+                    }
+                    workers.shutdown();
+                    if(log != null){
+                        log.close();
+                        checkpointer.shutdown();
+                        checkpointer.checkpoint();
+                    }
                     this.endTime = System.currentTimeMillis();
                     this.serverStatistics.generateReport();
                     System.exit(0);
@@ -109,132 +420,76 @@ public class PlaceServer{
     }
 
     /**
-     * The main loop of the server. This loop waits for a connection to the server then spawns
-     * a thread to handle that client
+     * Rebuild the board as it was at a time or sequence number and save it as a
+     * board snapshot file that clients and tools can decode
+     * @param when The time of day, epoch milliseconds or # and a sequence number
      */
-    public void runServer(){
-        while (running){
-            try {
-                System.out.println("Waiting for connection...");
-                Socket socket = server.accept();
-                System.out.println("Incoming connection from " + socket);
-                if(lastConnect != null){
-                    if(lastConnect.equals(socket.getInetAddress()) && System.currentTimeMillis() - lastConnectTime < 100){
-                        System.out.println("Prevented connection from " + socket + " for too many connections from that address in a row");
-                        socket.close();
-                        continue;
-                    }
-                }
-                lastConnect = socket.getInetAddress();
-                lastConnectTime = System.currentTimeMillis();
-                new Thread(new ClientThread(socket)).start();
-            }catch (IOException e){
-                //e.printStackTrace();
+    private void travel(String when){
+        TimeMachine timeMachine = serverStatistics.getTimeMachine();
+        if(timeMachine == null){
+            System.out.println("No change history is kept, so earlier boards cannot be rebuilt");
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            PlaceBoard past;
+            String name;
+            if(when.startsWith("#")){
+                past = timeMachine.boardAtSequence(Long.parseLong(when.substring(1)));
+                name = "board-" + when.substring(1);
+            }else{
+                long time = when.contains(":")
+                        ? LocalDate.now().atTime(LocalTime.parse(when)).atZone(ZoneId.systemDefault())
+                                .toInstant().toEpochMilli()
+                        : Long.parseLong(when);
+                past = timeMachine.boardAt(time);
+                name = "board-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(time));
             }
+            long rebuilt = System.nanoTime() - start;
+            Path file = Paths.get(name + ".snapshot");
+            Files.write(file, BoardSnapshot.of(past, 0).getBytes());
+            System.out.printf("Rebuilt the board in %.1f ms and saved it to %s%n", rebuilt / 1e6, file);
+        }catch (NumberFormatException | DateTimeParseException e){
+            System.out.println("Not a time or sequence number: " + when);
+        }catch (IllegalArgumentException | IOException e){
+            System.out.println(e.getMessage());
         }
     }
 
     /**
-     * This subclass is a thread used to handle communication with a client
+     * The main loop of the server. This loop waits for a connection to the server, turns it
+     * away if the {@link AdmissionController} says so, and otherwise hands it to one of the
+     * reactors
      */
-    private class ClientThread implements Runnable{
-        private Socket socket;
-        private ObjectInputStream in;
-        private ObjectOutputStream out;
-        private String username = "";
-        private long lastChangeTime = 0;
-
-        /**
-         * Construct the client thread
-         * @param socket The socket representing the connection to a client
-         */
-        public ClientThread(Socket socket){
-            this.socket = socket;
+    public void runServer(){
+        System.out.println("Waiting for connections...");
+        while (running){
             try {
-                this.in = new ObjectInputStream(this.socket.getInputStream());
-                this.out = new ObjectOutputStream(this.socket.getOutputStream());
-
-            }catch (IOException e){
-                e.printStackTrace();
-                closeAll();
-            }
-        }
-
-        /**
-         * Send a message to the client
-         * @param request The request to send
-         * @throws IOException
-         */
-        public void sendMessage(PlaceRequest request) throws IOException{
-            out.writeUnshared(request);
-            out.flush();
-        }
-
-        /**
-         * Handle a message received from the client
-         * @param request The request from the client
-         * @throws IOException
-         */
-        public void handleMessage(PlaceRequest request) throws IOException{
-            if(request.getType() == PlaceRequest.RequestType.LOGIN){
-                this.username = (String) request.getData();
-                if(clients.containsKey(username)){
-                    System.out.println("Username already exists: " + username);
-                    sendMessage(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Username already taken!"));
-                }else{
-                    sendMessage(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN_SUCCESS, username));
-                    PlaceServer.instance.addClient(username, this);
-                    System.out.println("User: " + username + " connected");
-
+                SocketChannel socket = server.accept();
+                System.out.println("Incoming connection from " + socket);
+                InetAddress address = ((InetSocketAddress) socket.getRemoteAddress()).getAddress();
+                String refusal = admission.admit(address);
+                if(refusal != null){
+                    System.out.println("Prevented connection from " + socket + ": " + refusal);
+                    socket.close();
+                    metrics.refused();
+                    continue;
                 }
-            }else if(request.getType() == PlaceRequest.RequestType.CHANGE_TILE){
-                if(System.currentTimeMillis() - lastChangeTime >= 500) {
-                    PlaceTile tile = (PlaceTile) request.getData();
-                    PlaceServer.instance.updateTile(tile);
-                    lastChangeTime = System.currentTimeMillis();
+                Reactor reactor = reactors[nextReactor];
+                nextReactor = (nextReactor + 1) % reactors.length;
+                ClientConnection client = new ClientConnection(this, reactor, socket, address);
+                try{
+                    socket.configureBlocking(false);
+                    socket.socket().setTcpNoDelay(true);
+                }catch (IOException e){
+                    client.close();
+                    continue;
                 }
-            }
-        }
-
-        /**
-         * Close the socket and input/output streams
-         */
-        public void closeAll(){
-            try {
-                if(socket != null) socket.close();
-                if(in != null) in.close();
-                if(out != null) out.close();
+                reactor.register(client);
+            }catch (ClosedChannelException e){
+                break;
             }catch (IOException e){
-                e.printStackTrace();
-            }
-        }
-
-        @Override
-        public void run(){
-            if(socket == null) return;
-            try{
-                while (socket.isConnected() && running){
-                    PlaceRequest<?> request = (PlaceRequest<?>) in.readUnshared();
-                    Thread handle = new Thread(() -> {
-                        try {
-                            handleMessage(request);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    });
-                    handle.start();
-                    Thread.sleep(10);
-                }
-            }
-            catch (SocketException e){}
-            catch (EOFException e){}
-            catch (Exception e){
-                e.printStackTrace();
-            }
-            finally {
-                System.out.println("User: " + username + " disconnected");
-                clients.remove(username);
-                closeAll();
+                //e.printStackTrace();
             }
         }
     }
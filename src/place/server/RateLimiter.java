@@ -0,0 +1,85 @@
+package place.server;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Limits how often each user may place a tile, however many connections
+ * they use.  Each user gets a token bucket that refills at one token per
+ * cooldown and holds at most burst tokens.  The bucket is not refilled by a
+ * timer; it is kept as the single time at which it would next be full
+ * (the "theoretical arrival time" of the generic cell rate algorithm), and
+ * taking a token is one compare-and-set on that time.  So checking a
+ * placement takes no lock and allocates nothing.
+ *
+ * Users are the ids of the server's {@link place.UserTable}.  The times are
+ * kept in fixed size segments of a long per user, so millions of users cost
+ * 8 bytes each and the table grows without copying.
+ *
+ * @author Michael Jansen
+ */
+class RateLimiter {
+    /** Users per segment, as a shift */
+    private static final int SEGMENT_SHIFT = 16;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+    /** Nanoseconds to earn one token */
+    private final long interval;
+    /** Nanoseconds of tokens a full bucket holds beyond the one being taken */
+    private final long tolerance;
+    /** When each user's bucket would next hold a token, as System.nanoTime() */
+    private volatile AtomicLongArray[] segments = new AtomicLongArray[16];
+    /** Added to System.nanoTime() so that 0, a new user's time, means long ago */
+    private final long origin = TimeUnit.DAYS.toNanos(1) - System.nanoTime();
+
+    /**
+     * Create a limiter.
+     *
+     * @param cooldownMillis the time to earn one placement
+     * @param burst the most placements a user can save up
+     */
+    RateLimiter(int cooldownMillis, int burst) {
+        this.interval = TimeUnit.MILLISECONDS.toNanos(cooldownMillis);
+        this.tolerance = interval * (Math.max(1, burst) - 1);
+    }
+
+    /**
+     * Take a placement token for a user if they have one.  Can be called from
+     * any thread.
+     *
+     * @param user the user's id
+     * @return whether the user may place a tile now
+     */
+    boolean tryAcquire(int user) {
+        AtomicLongArray segment = segment(user);
+        int index = user & (SEGMENT_SIZE - 1);
+        long now = System.nanoTime() + origin;
+        while (true) {
+            long due = segment.get(index);
+            long start = Math.max(due, now - tolerance);
+            if (start > now) return false;
+            if (segment.compareAndSet(index, due, start + interval)) return true;
+        }
+    }
+
+    /**
+     * Get the segment holding a user, adding segments if the id is new.
+     */
+    private AtomicLongArray segment(int user) {
+        int s = user >>> SEGMENT_SHIFT;
+        AtomicLongArray[] segments = this.segments;
+        if (s < segments.length && segments[s] != null) return segments[s];
+        synchronized (this) {
+            segments = this.segments;
+            if (s >= segments.length) {
+                segments = Arrays.copyOf(segments, Math.max(segments.length * 2, s + 1));
+            }
+            for (int i = 0; i <= s; i++) {
+                if (segments[i] == null) segments[i] = new AtomicLongArray(SEGMENT_SIZE);
+            }
+            this.segments = segments;
+            return segments[s];
+        }
+    }
+}
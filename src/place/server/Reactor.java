@@ -0,0 +1,124 @@
+package place.server;
+
+import place.network.FrameBuffer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A selector thread that does the socket I/O for a share of the server's
+ * connections.  It never handles requests itself; it only moves bytes between
+ * the sockets and the {@link ClientConnection}s, so one reactor can serve
+ * thousands of clients.
+ *
+ * @author Michael Jansen
+ */
+class Reactor implements Runnable {
+    /** Size of the buffers shared by all connections on this reactor */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<ClientConnection> registrations = new ConcurrentLinkedQueue<>();
+    private final Queue<ClientConnection> flushes = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final FrameBuffer writeBuffer = new FrameBuffer(BUFFER_SIZE);
+    private volatile boolean running = true;
+
+    /**
+     * Create a reactor.  It does nothing until started.
+     *
+     * @param name the name of the reactor thread
+     * @throws IOException if the selector cannot be opened
+     */
+    Reactor(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    /**
+     * Start the reactor thread
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stop the reactor thread and close its selector
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Hand a new connection to this reactor.  Can be called from any thread.
+     *
+     * @param connection the connection
+     */
+    void register(ClientConnection connection) {
+        registrations.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Ask the reactor to write a connection's queued messages.  Can be called
+     * from any thread.
+     *
+     * @param connection the connection with something to send
+     */
+    void requestFlush(ClientConnection connection) {
+        flushes.add(connection);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+            ClientConnection connection;
+            while ((connection = registrations.poll()) != null) {
+                try {
+                    connection.attach(connection.getChannel().register(selector, SelectionKey.OP_READ, connection));
+                } catch (ClosedChannelException e) {
+                    connection.close();
+                }
+            }
+            while ((connection = flushes.poll()) != null) {
+                try {
+                    connection.flush(writeBuffer);
+                } catch (IOException | CancelledKeyException e) {
+                    connection.close();
+                }
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                connection = (ClientConnection) key.attachment();
+                try {
+                    if (key.isReadable()) connection.read(readBuffer);
+                    if (key.isValid() && key.isWritable()) connection.flush(writeBuffer);
+                } catch (IOException | CancelledKeyException e) {
+                    connection.close();
+                }
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
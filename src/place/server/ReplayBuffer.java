@@ -0,0 +1,100 @@
+package place.server;
+
+import place.PlaceTile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * The latest changes handed to the clients, kept so that a client whose
+ * connection dropped can be sent only what it missed instead of the whole
+ * board.  Changes sit in a ring indexed by their sequence number, so finding
+ * where a client left off costs nothing.
+ *
+ * Commits to different regions of the board race each other to the
+ * broadcaster, so changes can arrive slightly out of sequence.  The buffer
+ * keeps track of the highest sequence number below which every change has
+ * arrived; only that number is ever promised to a client.
+ *
+ * Broadcaster thread only.
+ *
+ * @author Michael Jansen
+ */
+class ReplayBuffer {
+    private final TileChange[] ring;
+    private final int mask;
+    /** Every change up to this one has been recorded */
+    private long complete;
+    /** Highest sequence number recorded */
+    private long highest;
+    /** Sequence number of the first change recorded since the server started */
+    private final long first;
+    /** Recorded changes above complete, waiting for the ones before them */
+    private final PriorityQueue<Long> ahead = new PriorityQueue<>();
+
+    /**
+     * Create an empty buffer.
+     *
+     * @param capacity the most changes kept, rounded up to a power of two
+     * @param sequence the sequence number of the last change made before the buffer
+     */
+    ReplayBuffer(int capacity, long sequence) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.ring = new TileChange[size];
+        this.mask = size - 1;
+        this.complete = sequence;
+        this.highest = sequence;
+        this.first = sequence + 1;
+    }
+
+    /**
+     * @return the highest sequence number below which every change has been recorded
+     */
+    long getComplete() {
+        return complete;
+    }
+
+    /**
+     * Keep a change that has been handed to the clients.
+     *
+     * @param change the change
+     */
+    void record(TileChange change) {
+        ring[(int) change.seq & mask] = change;
+        highest = Math.max(highest, change.seq);
+        if (change.seq != complete + 1) {
+            ahead.add(change.seq);
+            return;
+        }
+        complete++;
+        while (!ahead.isEmpty() && ahead.peek() == complete + 1) {
+            ahead.poll();
+            complete++;
+        }
+    }
+
+    /**
+     * Get every change recorded after a sequence number, only the last to
+     * each cell, in sequence order.
+     *
+     * @param sequence the last change the client has
+     * @return the changes, or null if some of them are no longer kept or the
+     *         client's number is not one this buffer handed out
+     */
+    PlaceTile[] since(long sequence) {
+        if (sequence > complete || sequence + 1 < first || highest - sequence > ring.length) {
+            return null;
+        }
+        Map<Long, PlaceTile> latest = new LinkedHashMap<>();
+        for (long seq = sequence + 1; seq <= highest; seq++) {
+            TileChange change = ring[(int) seq & mask];
+            // Changes above complete that have not arrived yet are sent when they do
+            if (change == null || change.seq != seq) continue;
+            PlaceTile tile = change.tile;
+            long cell = ((long) tile.getRow() << 32) | tile.getCol();
+            latest.remove(cell);
+            latest.put(cell, tile);
+        }
+        return latest.values().toArray(new PlaceTile[0]);
+    }
+}
@@ -0,0 +1,201 @@
+package place.server;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tuning knobs for a PlaceServer.  Every setting has a sensible default and can
+ * be overridden with a system property, e.g.
+ * <pre>java -Dplace.workers=8 place.server.PlaceServer 5555 100</pre>
+ *
+ * @author Michael Jansen
+ */
+public class ServerConfig {
+    /** Threads in the pool that handles client requests (place.workers) */
+    public final int workers;
+    /** Selector threads that do the socket I/O (place.reactors) */
+    public final int reactors;
+    /** Messages queued for one client before the overflow policy kicks in (place.queue) */
+    public final int queueCapacity;
+    /** What to do with changes for a client whose queue is full (place.overflow) */
+    public final OverflowPolicy overflow;
+    /**
+     * Milliseconds of tile changes batched into one TILES_CHANGED, or 0 to send
+     * every change on its own (place.tick).  The broadcaster stretches or
+     * shrinks the tick with the load.
+     */
+    public final int tickMillis;
+    /**
+     * Latest changes kept so that a client that reconnects is sent only what it
+     * missed; one that missed more gets the whole board (place.replay)
+     */
+    public final int replayCapacity;
+    /**
+     * Most tiles one client can subscribe to, adding up its rectangles
+     * (place.subscribeArea).  Each is sent to the client when it subscribes
+     */
+    public final int subscribeArea;
+    /** Milliseconds a user waits to earn one change of subscription (place.subscribeCooldown) */
+    public final int subscribeMillis;
+    /** Milliseconds a user waits to earn one placement (place.cooldown) */
+    public final int cooldownMillis;
+    /** Placements a user can save up while idle (place.burst) */
+    public final int burst;
+    /** Connections one address may open per second (place.addressRate) */
+    public final int addressRate;
+    /** Connections one address may have open at once (place.addressMax) */
+    public final int maxPerAddress;
+    /** Connections the server accepts per second from everyone (place.acceptRate) */
+    public final int acceptRate;
+    /** Connections the server keeps open at once (place.connections) */
+    public final int maxConnections;
+    /** Addresses remembered for the connection limits (place.addresses) */
+    public final int maxAddresses;
+    /** File every tile change is logged to, or null (the default) to keep the board in memory only (place.log) */
+    public final String logPath;
+    /** Longest time a logged change waits to be forced to disk, in milliseconds (place.fsync) */
+    public final int fsyncMillis;
+    /** Milliseconds between checkpoints of the board next to the log (place.checkpoint) */
+    public final int checkpointMillis;
+    /**
+     * Keep every change made since the server started, so that earlier boards
+     * can be rebuilt (place.history).  Boards too big to number their cells
+     * with an int never keep one
+     */
+    public final boolean history;
+    /** Milliseconds between statistics reports (place.report) */
+    public final int reportMillis;
+    /** Statistics reports kept, counting the newest (place.reports) */
+    public final int reportsKept;
+    /**
+     * Band of the board this server owns as a shard, counting from 0, and the
+     * number of bands, or 0 and 0 to own the whole board (place.shard, e.g. 1/4)
+     */
+    public final int shardIndex;
+    public final int shardCount;
+    /**
+     * Shards this server is a gateway for, in band order, or empty if it keeps
+     * the board itself (place.shards, e.g. localhost:5556,localhost:5557).  A
+     * replica follows a single primary that owns the whole board (place.primary)
+     */
+    public final List<InetSocketAddress> shards;
+    /** Secret a gateway logs in to its shards with, or null to accept no gateway (place.shardKey) */
+    public final String shardKey;
+
+    /**
+     * Create a configuration from the system properties, falling back to the
+     * defaults for anything that is not set.
+     */
+    public ServerConfig() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        this.workers = intProperty("place.workers", cores);
+        this.reactors = intProperty("place.reactors", Math.max(1, Math.min(cores, 4)));
+        this.queueCapacity = intProperty("place.queue", 4096);
+        this.overflow = enumProperty("place.overflow", OverflowPolicy.COALESCE);
+        this.tickMillis = intProperty("place.tick", 0);
+        this.replayCapacity = intProperty("place.replay", 65536);
+        this.subscribeArea = intProperty("place.subscribeArea", 1 << 20);
+        this.subscribeMillis = intProperty("place.subscribeCooldown", 250);
+        this.cooldownMillis = intProperty("place.cooldown", 500);
+        this.burst = intProperty("place.burst", 1);
+        this.addressRate = intProperty("place.addressRate", 10);
+        this.maxPerAddress = intProperty("place.addressMax", 64);
+        this.acceptRate = intProperty("place.acceptRate", 1000);
+        this.maxConnections = intProperty("place.connections", 20000);
+        this.maxAddresses = intProperty("place.addresses", 100000);
+        String log = System.getProperty("place.log", "");
+        this.logPath = log.isEmpty() ? null : log;
+        this.fsyncMillis = intProperty("place.fsync", 50);
+        this.checkpointMillis = intProperty("place.checkpoint", 60000);
+        this.history = Boolean.parseBoolean(System.getProperty("place.history", "true"));
+        this.reportMillis = intProperty("place.report", 60000);
+        this.reportsKept = intProperty("place.reports", 24);
+        int[] shard = shardProperty("place.shard");
+        this.shardIndex = shard[0];
+        this.shardCount = shard[1];
+        List<InetSocketAddress> shards = addressesProperty("place.shards");
+        this.shards = shards.isEmpty() ? addressesProperty("place.primary") : shards;
+        this.shardKey = System.getProperty("place.shardKey");
+    }
+
+    /**
+     * Read a system property naming one band out of some, as index/count.
+     *
+     * @param name the property name
+     * @return the index and the count, or 0 and 0 if the property is missing or invalid
+     */
+    static int[] shardProperty(String name) {
+        String value = System.getProperty(name);
+        if (value == null) return new int[2];
+        try {
+            String[] parts = value.split("/");
+            int index = Integer.parseInt(parts[0].trim());
+            int count = Integer.parseInt(parts[1].trim());
+            if (parts.length == 2 && index >= 0 && index < count) return new int[]{index, count};
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            // Reported below
+        }
+        System.err.println("Ignoring bad value for " + name);
+        return new int[2];
+    }
+
+    /**
+     * Read a system property listing host:port addresses separated by commas.
+     *
+     * @param name the property name
+     * @return the addresses, or an empty list if the property is missing or invalid
+     */
+    static List<InetSocketAddress> addressesProperty(String name) {
+        String value = System.getProperty(name);
+        if (value == null || value.trim().isEmpty()) return Collections.emptyList();
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        try {
+            for (String address : value.split(",")) {
+                int colon = address.lastIndexOf(':');
+                addresses.add(InetSocketAddress.createUnresolved(address.substring(0, colon).trim(),
+                        Integer.parseInt(address.substring(colon + 1).trim())));
+            }
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            System.err.println("Ignoring bad value for " + name);
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(addresses);
+    }
+
+    /**
+     * Read a system property naming an enum constant, ignoring case.
+     *
+     * @param name the property name
+     * @param def the value to use if the property is missing or invalid
+     * @return the property value
+     */
+    static <E extends Enum<E>> E enumProperty(String name, E def) {
+        String value = System.getProperty(name);
+        if (value == null) return def;
+        try {
+            return Enum.valueOf(def.getDeclaringClass(), value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ignoring bad value for " + name);
+            return def;
+        }
+    }
+
+    /**
+     * Read a positive integer system property.
+     *
+     * @param name the property name
+     * @param def the value to use if the property is missing or invalid
+     * @return the property value
+     */
+    static int intProperty(String name, int def) {
+        try {
+            int value = Integer.parseInt(System.getProperty(name, Integer.toString(def)));
+            return value > 0 ? value : def;
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring bad value for " + name);
+            return def;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package place.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Live numbers about a running server.  The counters on the placement path
+ * are LongAdders, so threads committing changes in different regions do not
+ * fight over one counter; everything else is worked out when someone asks.
+ * The metrics are published through JMX and printed when STATS is typed at
+ * the server console.
+ *
+ * @author Michael Jansen
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    /** The name the metrics are registered under */
+    public static final String OBJECT_NAME = "place.server:type=ServerMetrics";
+
+    private final PlaceServer server;
+    private final LongAdder placements = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder reloaded = new LongAdder();
+    /** Commit to hand-off to every client */
+    final LatencyHistogram fanOut = new LatencyHistogram();
+    /** Login arriving to its board being queued */
+    final LatencyHistogram login = new LatencyHistogram();
+
+    /** Placement count and time when the rate was last worked out */
+    private long rateCount, rateNanos = System.nanoTime();
+    private double rate;
+
+    /**
+     * Create the metrics for a server.
+     *
+     * @param server the server
+     */
+    ServerMetrics(PlaceServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Publish the metrics through the platform MBean server.  A failure is
+     * reported and otherwise ignored; the server runs fine without JMX.
+     */
+    void register() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            System.err.println("Metrics are not available through JMX: " + e);
+        }
+    }
+
+    /**
+     * Count a committed change
+     */
+    void placed() {
+        placements.increment();
+    }
+
+    /**
+     * Count a refused change
+     */
+    void rejected() {
+        rejected.increment();
+    }
+
+    /**
+     * Count a connection that was turned away
+     */
+    void refused() {
+        refused.increment();
+    }
+
+    /**
+     * Count a reconnecting client that was sent only the changes it missed
+     */
+    void resumed() {
+        resumed.increment();
+    }
+
+    /**
+     * Count a reconnecting client that had missed too much and was sent the board
+     */
+    void reloaded() {
+        reloaded.increment();
+    }
+
+    @Override
+    public long getResumedSessions() {
+        return resumed.sum();
+    }
+
+    @Override
+    public long getReloadedSessions() {
+        return reloaded.sum();
+    }
+
+    @Override
+    public long getRefusedConnections() {
+        return refused.sum();
+    }
+
+    @Override
+    public long getPlacements() {
+        return placements.sum();
+    }
+
+    @Override
+    public long getRejectedPlacements() {
+        return rejected.sum();
+    }
+
+    @Override
+    public synchronized double getPlacementsPerSecond() {
+        long now = System.nanoTime();
+        if (now - rateNanos >= TimeUnit.SECONDS.toNanos(1)) {
+            long count = placements.sum();
+            rate = (count - rateCount) * 1e9 / (now - rateNanos);
+            rateCount = count;
+            rateNanos = now;
+        }
+        return rate;
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return server.getClients().size();
+    }
+
+    @Override
+    public long getBroadcastBacklog() {
+        return Math.max(0, server.getSequence() - server.getBroadcaster().getSentSequence());
+    }
+
+    @Override
+    public long getLogBacklog() {
+        ChangeLog log = server.getLog();
+        return log == null ? 0 : Math.max(0, server.getSequence() - log.getLoggedSequence());
+    }
+
+    @Override
+    public long getQueuedMessages() {
+        long total = 0;
+        for (ClientConnection client : server.getClients()) {
+            total += client.getQueued();
+        }
+        return total;
+    }
+
+    @Override
+    public int getLargestClientQueue() {
+        int largest = 0;
+        for (ClientConnection client : server.getClients()) {
+            largest = Math.max(largest, client.getQueued());
+        }
+        return largest;
+    }
+
+    @Override
+    public int getAllocatedChunks() {
+        return server.board.getAllocatedChunks();
+    }
+
+    @Override
+    public double getFanOutMillisMean() {
+        return fanOut.getMeanMillis();
+    }
+
+    @Override
+    public double getFanOutMillisP99() {
+        return fanOut.getPercentileMillis(0.99);
+    }
+
+    @Override
+    public double getLoginMillisMean() {
+        return login.getMeanMillis();
+    }
+
+    @Override
+    public double getLoginMillisP99() {
+        return login.getPercentileMillis(0.99);
+    }
+
+    @Override
+    public double getReplicaLagMillis() {
+        Gateway gateway = server.getGateway();
+        return gateway == null ? 0 : gateway.getLagMillis();
+    }
+
+    /**
+     * @return every metric, one per line
+     */
+    @Override
+    public String toString() {
+        return String.format("placements: %d (%.1f/s), rejected: %d%n"
+                        + "clients: %d, refused connections: %d, queued messages: %d, largest client queue: %d%n"
+                        + "reconnects resumed: %d, sent the board: %d%n"
+                        + "broadcast backlog: %d, log backlog: %d, board chunks: %d of %d%n"
+                        + "fan-out ms: mean %.3f, p99 %.3f%n"
+                        + "login to board ms: mean %.3f, p99 %.3f%n"
+                        + "lag behind primary or shards ms: %.1f",
+                getPlacements(), getPlacementsPerSecond(), getRejectedPlacements(),
+                getConnectedClients(), getRefusedConnections(), getQueuedMessages(), getLargestClientQueue(),
+                getResumedSessions(), getReloadedSessions(),
+                getBroadcastBacklog(), getLogBacklog(),
+                getAllocatedChunks(), server.board.getChunks() * server.board.getChunks(),
+                getFanOutMillisMean(), getFanOutMillisP99(),
+                getLoginMillisMean(), getLoginMillisP99(), getReplicaLagMillis());
+    }
+}
@@ -0,0 +1,60 @@
+package place.server;
+
+/**
+ * The live metrics of a PlaceServer as seen through JMX, e.g. in jconsole
+ * under place.server:type=ServerMetrics.
+ *
+ * @author Michael Jansen
+ */
+public interface ServerMetricsMBean {
+    /** @return tile changes committed since the server started */
+    long getPlacements();
+
+    /** @return tile changes refused because they were off the board or too soon */
+    long getRejectedPlacements();
+
+    /** @return tile changes committed per second, averaged over the last second or more */
+    double getPlacementsPerSecond();
+
+    /** @return connections turned away by the connection limits */
+    long getRefusedConnections();
+
+    /** @return reconnecting clients sent only the changes they missed */
+    long getResumedSessions();
+
+    /** @return reconnecting clients that had missed too much and were sent the whole board */
+    long getReloadedSessions();
+
+    /** @return clients that are logged in */
+    int getConnectedClients();
+
+    /** @return committed changes the broadcaster has not sent yet */
+    long getBroadcastBacklog();
+
+    /** @return committed changes not written to the change log yet */
+    long getLogBacklog();
+
+    /** @return messages waiting to be written to all clients together */
+    long getQueuedMessages();
+
+    /** @return messages waiting to be written to the client that is furthest behind */
+    int getLargestClientQueue();
+
+    /** @return chunks of the board that have been written and take memory */
+    int getAllocatedChunks();
+
+    /** @return mean time from committing a change to handing it to every client */
+    double getFanOutMillisMean();
+
+    /** @return time from committing a change to handing it to every client, 99th percentile */
+    double getFanOutMillisP99();
+
+    /** @return mean time from a login arriving to its board being queued */
+    double getLoginMillisMean();
+
+    /** @return time from a login arriving to its board being queued, 99th percentile */
+    double getLoginMillisP99();
+
+    /** @return milliseconds the board is behind the primary or shards it follows, or 0 if it follows none */
+    double getReplicaLagMillis();
+}
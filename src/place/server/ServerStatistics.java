@@ -1,26 +1,41 @@
 package place.server;
 
 import place.PlaceTile;
+import place.UserTable;
 import java.io.BufferedWriter;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Runs along side PlaceServer
- * Gathers data while the server is running and when the server is closed, it generates a report
+ * Gathers data while the server is running and writes a report every so often and
+ * when the server is closed. The newest report is ServerStatistics.txt and older ones
+ * are rotated to ServerStatistics.txt.1, .2 and so on
+ * Live numbers while the server is up are kept by {@link ServerMetrics}
  *
  * @author Tyson Levy
  */
-public class ServerStatistics {
+public class ServerStatistics implements Runnable {
+    /** The newest report */
+    private static final Path REPORT = Paths.get("ServerStatistics.txt");
+    /** Most users listed on one line of a report */
+    private static final int LISTED = 10;
 
     private PlaceServer server;
-    private ArrayList<PlaceTile>[][] tiles;
-    private HashMap<String, Integer> userChanges;
+    private ChangeHistory history;
+    private TimeMachine timeMachine;
+    private Leaderboard leaderboard;
+    private Thread reporter;
 
     /**
      * initializes ServerStatistics
@@ -28,29 +43,74 @@ public class ServerStatistics {
      */
     public ServerStatistics(PlaceServer server){
         this.server = server;
-        this.tiles = new ArrayList[server.board.DIM][server.board.DIM];
-        this.userChanges = new HashMap<>();
-
-        for(int i=0; i<tiles.length; i++){
-            for(int j=0; j<tiles[i].length; j++){
-                tiles[i][j] = new ArrayList<>();
-                tiles[i][j].add(tiles[i][j].size(), server.board.getTile(i,j));
-            }
+        if(server.getConfig().history && ChangeHistory.fits(server.board.DIM)){
+            this.history = new ChangeHistory(server.board.DIM, server.getUsers());
+            this.timeMachine = new TimeMachine(server.board, history);
+        }else if(server.getConfig().history){
+            System.out.println("The board is too big to keep a change history; earlier boards cannot be rebuilt");
         }
+        this.leaderboard = new Leaderboard();
+        this.reporter = new Thread(this, "statistics-reporter");
+        this.reporter.setDaemon(true);
+    }
+
+    /**
+     * Start writing a report every place.report milliseconds
+     */
+    void start(){
+        reporter.start();
+    }
+
+    /**
+     * @return every change made since the server started, or null if no history is kept
+     */
+    ChangeHistory getHistory(){
+        return history;
+    }
+
+    /**
+     * @return rebuilds the board as it was earlier, or null if no history is kept
+     */
+    TimeMachine getTimeMachine(){
+        return timeMachine;
     }
 
     /**
      * Called whenever a tile is changed
      * Keeps track of how many moves each user has made
      *
+     * @param seq the sequence number of the change
      * @param tile
      */
-    public void changeTile(PlaceTile tile){
-
-        tiles[tile.getRow()][tile.getCol()].add(tile);
-        if(userChanges.containsKey(tile.getOwner())){ userChanges.put(tile.getOwner(), userChanges.get(tile.getOwner()) + 1); }
-        else{ userChanges.put(tile.getOwner(), 1); }
+    public void changeTile(long seq, PlaceTile tile){
+        int owner = server.getUsers().idOf(tile.getOwner());
+        if(history != null){
+            history.add(seq, tile, owner);
+            timeMachine.added();
+        }
+        leaderboard.increment(owner);
+    }
 
+    /**
+     * Write a report every interval until the server stops
+     */
+    @Override
+    public void run(){
+        long interval = TimeUnit.MILLISECONDS.toNanos(server.getConfig().reportMillis);
+        long deadline = System.nanoTime() + interval;
+        while(true){
+            long left = deadline - System.nanoTime();
+            if(left > 0){
+                LockSupport.parkNanos(this, left);
+                continue;
+            }
+            deadline += interval;
+            try{
+                writeReport(System.currentTimeMillis(), false);
+            }catch (IOException e){
+                e.printStackTrace();
+            }
+        }
     }
 
     /**
@@ -59,19 +119,68 @@ public class ServerStatistics {
      * @throws IOException
      */
     public void generateReport() throws IOException {
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("ServerStatistics.txt"), "utf-8"));
+        writeReport(server.endTime, true);
+    }
 
+    /**
+     * Write a report covering the time up to now, rotating the earlier reports. Only the
+     * users that are listed are looked at, so this takes the same time however many users
+     * there are
+     *
+     * @param endTime the time the report is up to
+     * @param ended whether the server has stopped, rather than this being a periodic report
+     * @throws IOException
+     */
+    private synchronized void writeReport(long endTime, boolean ended) throws IOException {
+        Path temp = REPORT.resolveSibling(REPORT.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writeReport(writer, endTime, ended);
+        }
+
+        int keep = server.getConfig().reportsKept;
+        if(keep > 1){
+            Files.deleteIfExists(rotated(keep - 1));
+            for(int i = keep - 2; i >= 1; i--){
+                if(Files.exists(rotated(i))) Files.move(rotated(i), rotated(i + 1));
+            }
+            if(Files.exists(REPORT)) Files.move(REPORT, rotated(1));
+        }
+        Files.move(temp, REPORT, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Write a report covering the time up to now to the given writer, without touching
+     * the report files. The writer is flushed but left open
+     *
+     * @param out where the report goes
+     * @throws IOException
+     */
+    public void writeReport(Writer out) throws IOException {
+        BufferedWriter writer = new BufferedWriter(out);
+        writeReport(writer, System.currentTimeMillis(), false);
+        writer.flush();
+    }
+
+    /**
+     * Write the body of a report
+     *
+     * @param writer where the report goes
+     * @param endTime the time the report is up to
+     * @param ended whether the server has stopped, rather than this being a periodic report
+     * @throws IOException
+     */
+    private synchronized void writeReport(BufferedWriter writer, long endTime, boolean ended) throws IOException {
         writer.write("Statistics for PlaceServer:");
         writer.newLine();
         writer.newLine();
 
         writer.write("Server start time: " + new SimpleDateFormat("MM/dd/yy HH:mm:ss").format(new Date(server.startTime)));
         writer.newLine();
-        writer.write("Server end time: " + new SimpleDateFormat("MM/dd/yy HH:mm:ss").format(new Date(server.endTime)));
+        writer.write((ended ? "Server end time: " : "Report time: ") + new SimpleDateFormat("MM/dd/yy HH:mm:ss").format(new Date(endTime)));
         writer.newLine();
-        int seconds = (int) (((server.endTime-server.startTime) / 1000) % 60) ;
-        int minutes = (int) (((server.endTime-server.startTime) / (1000*60)) % 60);
-        int hours   = (int) (((server.endTime-server.startTime) / (1000*60*60)) % 24);
+        int seconds = (int) (((endTime-server.startTime) / 1000) % 60) ;
+        int minutes = (int) (((endTime-server.startTime) / (1000*60)) % 60);
+        int hours   = (int) (((endTime-server.startTime) / (1000*60*60)) % 24);
         String hr = " hours ";
         String mins = " minutes ";
         String sec = " seconds ";
@@ -82,30 +191,58 @@ public class ServerStatistics {
         writer.newLine();
         writer.newLine();
 
-        int max = 0;
-        int min = 0;
-        int total = 0;
-        String mostChanges = "";
-        String leastChanges = "";
-        if(userChanges.size() != 0){
-            max = userChanges.get(userChanges.keySet().toArray()[0]);
-            min = userChanges.get(userChanges.keySet().toArray()[0]);
-            for(String user : userChanges.keySet()){
-                total += userChanges.get(user);
-                if (userChanges.get(user) > max) { max = userChanges.get(user); }
-                if (userChanges.get(user) < min) { min = userChanges.get(user); }
-            }
-            for(String user : userChanges.keySet()){
-                if(userChanges.get(user) == max){ mostChanges += user + " "; }
-                if(userChanges.get(user) == min){ leastChanges += user + " "; }
-            }
+        UserTable users = server.getUsers();
+        Leaderboard.Standing most = leaderboard.most(LISTED);
+        Leaderboard.Standing least = leaderboard.least(LISTED);
+        writer.write("Users with the most changes (" + (most == null ? 0 : most.count) + " changes): " + names(most, users));
+        writer.newLine();
+        writer.write("Users with the least changes (" + (least == null ? 0 : least.count) + " changes): " + names(least, users));
+        writer.newLine();
+        writer.write("Top users:");
+        List<long[]> top = leaderboard.top(LISTED);
+        for(int i = 0; i < top.size(); i++){
+            writer.write((i == 0 ? " " : ", ") + users.nameOf((int) top.get(i)[0]) + " (" + top.get(i)[1] + ")");
         }
-        writer.write("Users with the most changes (" + max + " changes): " + mostChanges);
         writer.newLine();
-        writer.write("Users with the least changes (" + min + " changes): " + leastChanges);
+        long total = leaderboard.getChanges();
+        writer.write("Average changes per minute: " + total / (((double)(endTime-server.startTime)) /((double) (1000*60))));
+        writer.newLine();
+        writer.write("Metrics:");
         writer.newLine();
-        writer.write("Average changes per minute: " + total / (((double)(server.endTime-server.startTime)) /((double) (1000*60))));
+        writer.write(server.getMetrics().toString());
+        writer.newLine();
+        if(history != null){
+            writer.write("Change history: " + history.size() + " changes, " + String.format("%.1f", history.bytesPerChange()) + " bytes per change");
+        }else{
+            writer.write("Change history: not kept");
+        }
         writer.newLine();
-        writer.close();
+    }
+
+    /**
+     * @param age how many reports ago
+     * @return the file an older report is rotated to
+     */
+    private static Path rotated(int age){
+        return REPORT.resolveSibling(REPORT.getFileName() + "." + age);
+    }
+
+    /**
+     * List the names in a standing
+     *
+     * @param standing the standing, or null
+     * @param users the table the ids are from
+     * @return the names separated by spaces, and how many were left out
+     */
+    private static String names(Leaderboard.Standing standing, UserTable users){
+        if(standing == null) return "";
+        StringBuilder names = new StringBuilder();
+        for(int user : standing.users){
+            names.append(users.nameOf(user)).append(' ');
+        }
+        if(standing.total > standing.users.size()){
+            names.append("and ").append(standing.total - standing.users.size()).append(" more");
+        }
+        return names.toString();
     }
 }
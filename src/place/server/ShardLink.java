@@ -0,0 +1,359 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+import place.UserTable;
+import place.network.FrameBuffer;
+import place.network.PlaceExchange;
+import place.network.PlaceRequest;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A gateway's connection to one shard.  The gateway logs in to the shard
+ * like a client, with the shard key in its username so the shard lets it
+ * place tiles for its users, and copies the shard's band of the board out of
+ * the BOARD it is sent.  After that one thread commits the changes the shard
+ * sends, and another sends the placements that are queued for the shard,
+ * flushing once for all that are waiting.
+ *
+ * The sending thread also PINGs the shard now and then.  The shard sends a
+ * PING back after every change it published before it, so the round trip is
+ * how far the gateway's copy of the band is behind the shard.
+ *
+ * When the connection is lost the link logs in again until the shard is back,
+ * and commits every cell of the band that differs from the new BOARD so the
+ * clients catch up with whatever changed in between.  Placements made while
+ * the shard is away are turned down.
+ *
+ * @author Michael Jansen
+ */
+class ShardLink {
+    /** Placements waiting to be sent before more are turned down */
+    private static final int QUEUE = 65536;
+    /** Most placements written before a flush */
+    private static final int BATCH = 1024;
+    /** Milliseconds between attempts to reach the shard */
+    private static final long RETRY_MILLIS = 1000;
+    /** Milliseconds between PINGs */
+    private static final long PING_MILLIS = 100;
+    /** Stands for no PING being answered */
+    private static final long NONE = Long.MIN_VALUE;
+
+    /**
+     * One login to the shard
+     */
+    private static class Connection {
+        final Socket socket;
+        final PlaceExchange exchange;
+        final DataInputStream in;
+        final OutputStream out;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.exchange = new PlaceExchange(PlaceExchange.Codec.BINARY, new UserTable());
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        }
+    }
+
+    private final PlaceServer server;
+    private final InetSocketAddress address;
+    /** host:port, for messages */
+    private final String name;
+    private final String login;
+    /** First row of the shard's band and the row after its last */
+    private final int[] band;
+    private final BlockingQueue<PlaceTile> outgoing = new ArrayBlockingQueue<>(QUEUE);
+    /** The current login, or null while the shard is away */
+    private volatile Connection connection;
+    /** Pending connection, between load() and start() */
+    private Connection loaded;
+    /** System.nanoTime() the unanswered PING was sent at, or NONE */
+    private volatile long pingSent = NONE;
+    /** Round trip of the last PING answered */
+    private volatile long lagNanos;
+
+    /**
+     * Create a link that is not connected yet.
+     *
+     * @param server the gateway server
+     * @param address the shard
+     * @param login the username to log in with
+     * @param band the first row of the shard's band and the row after its last
+     */
+    ShardLink(PlaceServer server, InetSocketAddress address, String login, int[] band) {
+        this.server = server;
+        this.address = address;
+        this.name = address.getHostString() + ":" + address.getPort();
+        this.login = login;
+        this.band = band;
+    }
+
+    /**
+     * Connect to the shard and copy its band into the gateway's board,
+     * waiting for the shard if it is not up yet.
+     *
+     * @param board the gateway's board, not yet shared with anyone
+     * @throws IOException if the shard's board is not the gateway's size
+     */
+    void load(PlaceBoard board) throws IOException {
+        while (loaded == null) {
+            try {
+                PlaceBoard shard = connect();
+                copy(shard, board);
+                loaded = connection;
+            } catch (IOException e) {
+                if (e instanceof BoardSizeException) throw e;
+                System.out.println("Waiting for shard " + name + ": " + e.getMessage());
+                pause();
+            }
+        }
+        System.out.println("Loaded rows " + band[0] + " to " + (band[1] - 1) + " from shard " + name);
+    }
+
+    /**
+     * Start the threads that follow the shard and send it placements
+     */
+    void start() {
+        Thread reading = new Thread(this::follow, "shard-" + address.getPort() + "-in");
+        Thread writing = new Thread(this::send, "shard-" + address.getPort() + "-out");
+        reading.setDaemon(true);
+        writing.setDaemon(true);
+        reading.start();
+        writing.start();
+    }
+
+    /**
+     * Queue a placement for the shard.
+     *
+     * @param tile the tile
+     * @return false if the shard is away or too far behind
+     */
+    boolean offer(PlaceTile tile) {
+        return connection != null && outgoing.offer(tile);
+    }
+
+    /**
+     * Get how far the gateway's copy of the band is behind the shard: the
+     * round trip of the last PING, or the time since the PING that has not
+     * come back yet if that is longer.
+     *
+     * @return the lag in milliseconds
+     */
+    double getLagMillis() {
+        long sent = pingSent;
+        long lag = lagNanos;
+        if (sent != NONE) lag = Math.max(lag, System.nanoTime() - sent);
+        return lag / 1e6;
+    }
+
+    /**
+     * Log in to the shard.
+     *
+     * @return the board the shard sent
+     * @throws IOException if the shard cannot be reached or turns the login down
+     */
+    private PlaceBoard connect() throws IOException {
+        Connection c = new Connection(new Socket(address.getHostString(), address.getPort()));
+        try {
+            c.socket.setTcpNoDelay(true);
+            c.exchange.write(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, login), c.out);
+            while (true) {
+                PlaceRequest<?> request = c.exchange.read(c.in);
+                if (request.getType() == PlaceRequest.RequestType.BOARD) {
+                    PlaceBoard board = (PlaceBoard) request.getData();
+                    if (board.DIM != server.board.DIM) {
+                        throw new BoardSizeException("Shard " + name + " has a board of " + board.DIM
+                                + " instead of " + server.board.DIM);
+                    }
+                    connection = c;
+                    return board;
+                } else if (request.getType() == PlaceRequest.RequestType.ERROR) {
+                    throw new IOException("Shard refused the gateway: " + request.getData());
+                }
+            }
+        } catch (IOException e) {
+            c.socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copy the band of a shard's board into a board that nobody else is using
+     */
+    private void copy(PlaceBoard shard, PlaceBoard board) {
+        UserTable users = board.getUsers();
+        for (int row = band[0]; row < band[1]; row++) {
+            for (int col = 0; col < shard.DIM; col++) {
+                board.setTile(row, col, shard.getColor(row, col).getNumber(),
+                        users.idOf(shard.getUsers().nameOf(shard.getOwnerId(row, col))), shard.getTime(row, col));
+            }
+        }
+    }
+
+    /**
+     * Commit every cell of the band where a shard's board differs from the
+     * gateway's, so clients see what changed while the shard was away
+     *
+     * @return the number of cells committed
+     */
+    private int catchUp(PlaceBoard shard) {
+        PlaceBoard board = server.board;
+        int changed = 0;
+        for (int row = band[0]; row < band[1]; row++) {
+            for (int col = 0; col < shard.DIM; col++) {
+                PlaceColor color = shard.getColor(row, col);
+                String owner = shard.getUsers().nameOf(shard.getOwnerId(row, col));
+                long time = shard.getTime(row, col);
+                if (color != board.getColor(row, col) || time != board.getTime(row, col)
+                        || !owner.equals(board.getUsers().nameOf(board.getOwnerId(row, col)))) {
+                    server.commit(new PlaceTile(row, col, owner, color, time));
+                    changed++;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Commit the shard's changes, logging in again whenever the shard goes
+     * away.  Runs on the link's reading thread.
+     */
+    private void follow() {
+        Connection c = loaded;
+        while (true) {
+            try {
+                if (c == null) {
+                    int changed = catchUp(connect());
+                    c = connection;
+                    pingSent = NONE;
+                    System.out.println("Shard " + name + " is back, " + changed + " cells caught up");
+                }
+                PlaceRequest<?> request = c.exchange.read(c.in);
+                if (request.getType() == PlaceRequest.RequestType.TILE_CHANGED) {
+                    server.commit((PlaceTile) request.getData());
+                } else if (request.getType() == PlaceRequest.RequestType.TILES_CHANGED) {
+                    for (PlaceTile tile : (PlaceTile[]) request.getData()) {
+                        server.commit(tile);
+                    }
+                } else if (request.getType() == PlaceRequest.RequestType.PING) {
+                    long sent = (Long) request.getData();
+                    if (sent == pingSent) {
+                        lagNanos = System.nanoTime() - sent;
+                        pingSent = NONE;
+                    }
+                }
+            } catch (IOException e) {
+                if (c != null) {
+                    // The lag grows until the shard is back
+                    if (pingSent == NONE) pingSent = System.nanoTime();
+                    System.out.println("Lost shard " + name + ": "
+                            + (e instanceof EOFException ? "connection closed" : e.getMessage()));
+                    connection = null;
+                    close(c);
+                    c = null;
+                }
+                pause();
+            }
+        }
+    }
+
+    /**
+     * Send queued placements to the shard, and a PING when one is due.  Runs
+     * on the link's writing thread.
+     */
+    private void send() {
+        List<PlaceTile> batch = new ArrayList<>(BATCH);
+        FrameBuffer frame = new FrameBuffer(64);
+        long lastPing = System.nanoTime();
+        while (true) {
+            try {
+                PlaceTile first = outgoing.poll(PING_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    outgoing.drainTo(batch, BATCH - 1);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            Connection c = connection;
+            long now = System.nanoTime();
+            boolean ping = c != null && pingSent == NONE && now - lastPing >= TimeUnit.MILLISECONDS.toNanos(PING_MILLIS);
+            if (batch.isEmpty() && !ping) continue;
+            try {
+                if (c == null) throw new IOException("Shard is away");
+                for (PlaceTile tile : batch) {
+                    frame.reset();
+                    c.exchange.encode(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE, tile), frame);
+                    frame.writeTo(c.out);
+                }
+                if (ping) {
+                    // Set before sending, so the answer cannot beat it
+                    pingSent = now;
+                    lastPing = now;
+                    frame.reset();
+                    c.exchange.encode(new PlaceRequest<>(PlaceRequest.RequestType.PING, now), frame);
+                    frame.writeTo(c.out);
+                }
+                c.out.flush();
+            } catch (IOException e) {
+                // The reading thread notices the shard has gone and logs in again
+                for (int i = 0; i < batch.size(); i++) {
+                    server.getMetrics().rejected();
+                }
+                if (c != null) close(c);
+            }
+            batch.clear();
+        }
+    }
+
+    private static void close(Connection c) {
+        try {
+            c.socket.close();
+        } catch (IOException e) {
+            // Gone anyway
+        }
+    }
+
+    private static void pause() {
+        try {
+            Thread.sleep(RETRY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the shard, its band and whether it is connected
+     */
+    @Override
+    public String toString() {
+        return "shard " + name + " rows " + band[0] + "-" + (band[1] - 1) + ": "
+                + (connection != null ? "connected, " + outgoing.size() + " placements queued, " : "away, ")
+                + String.format("%.1f ms behind", getLagMillis());
+    }
+
+    /**
+     * A shard whose board does not match the gateway's, which waiting will not fix
+     */
+    private static class BoardSizeException extends IOException {
+        private static final long serialVersionUID = -1438237419579415651L;
+
+        BoardSizeException(String message) {
+            super(message);
+        }
+    }
+}
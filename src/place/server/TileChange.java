@@ -0,0 +1,29 @@
+package place.server;
+
+import place.PlaceTile;
+
+/**
+ * A tile change that has been committed to the board, tagged with its place
+ * in the server's global order of changes.
+ *
+ * @author Michael Jansen
+ */
+class TileChange {
+    /** Position in the order of all changes, starting at 1 */
+    final long seq;
+    /** The new tile */
+    final PlaceTile tile;
+    /** System.nanoTime() when the change was committed */
+    final long committed = System.nanoTime();
+
+    /**
+     * Create a committed change.
+     *
+     * @param seq the sequence number
+     * @param tile the new tile
+     */
+    TileChange(long seq, PlaceTile tile) {
+        this.seq = seq;
+        this.tile = tile;
+    }
+}
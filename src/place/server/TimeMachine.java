@@ -0,0 +1,180 @@
+package place.server;
+
+import place.PlaceBoard;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Rebuilds the board as it was at an earlier time or sequence number, for
+ * looking back at what was drawn where and when.  The board is rebuilt from
+ * a copy of the board taken when the server started and the
+ * {@link ChangeHistory} since: each chunk of the board starts from the
+ * first keyframe in the history after the point asked for and walks each
+ * cell back to its change at that point, and the chunks are rebuilt in
+ * parallel.  Nothing from before the server started is kept, so the board
+ * can only be rebuilt back to then.
+ *
+ * A board asked for by time is rebuilt as of some number of changes in the
+ * order the broadcaster handed them to clients, which is what clients saw.
+ * Changes committed at the same moment in different regions may be handed
+ * out a few places away from sequence number order, so a board asked for by
+ * sequence number is rebuilt from changes that may go a little past it,
+ * with each cell walked back to its last change at or before it.
+ *
+ * Times are those the changes were added to the history at, not the times
+ * the clients put on their tiles, and are kept to the nearest MARK_MILLIS.
+ *
+ * @author Michael Jansen
+ */
+class TimeMachine {
+    /** Milliseconds between the times changes are looked up by */
+    private static final long MARK_MILLIS = 1000;
+
+    private final ChangeHistory history;
+    /** The board when the server started */
+    private final PlaceBoard start;
+    /** When the server started */
+    private final long startTime;
+    /** Times of the marks, and the number of the first change added at or after each */
+    private long[] markTimes = new long[64];
+    private int[] markChanges = new int[64];
+    private int marks;
+    /** Time of the next mark to make */
+    private long nextMark;
+
+    /**
+     * Copy the board as it is now, before the history has any changes.
+     *
+     * @param board the server's board
+     * @param history the history that will get the board's changes
+     */
+    TimeMachine(PlaceBoard board, ChangeHistory history) {
+        this.history = history;
+        this.startTime = System.currentTimeMillis();
+        this.start = new PlaceBoard(board.DIM, board.getUsers());
+        byte[] colors = new byte[PlaceBoard.CHUNK_SIZE];
+        int[] owners = new int[PlaceBoard.CHUNK_SIZE];
+        long[] times = new long[PlaceBoard.CHUNK_SIZE];
+        for (int chunkRow = 0; chunkRow < board.getChunks(); chunkRow++) {
+            for (int chunkCol = 0; chunkCol < board.getChunks(); chunkCol++) {
+                if (!board.isAllocated(chunkRow, chunkCol)) continue;
+                int top = chunkRow << PlaceBoard.CHUNK_SHIFT, left = chunkCol << PlaceBoard.CHUNK_SHIFT;
+                for (int row = 0; row < Math.min(PlaceBoard.CHUNK_SIZE, board.DIM - top); row++) {
+                    board.copyChunkRow(chunkRow, chunkCol, row, colors, owners, times);
+                    for (int col = 0; col < Math.min(PlaceBoard.CHUNK_SIZE, board.DIM - left); col++) {
+                        start.setTile(top + row, left + col, colors[col], owners[col], times[col]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Note the time of the change just added to the history.  Called by
+     * the history's writer after each change.
+     */
+    void added() {
+        long now = System.currentTimeMillis();
+        if (now < nextMark) return;
+        synchronized (this) {
+            if (marks == markTimes.length) {
+                markTimes = Arrays.copyOf(markTimes, marks * 2);
+                markChanges = Arrays.copyOf(markChanges, marks * 2);
+            }
+            markTimes[marks] = now;
+            markChanges[marks] = history.size() - 1;
+            marks++;
+        }
+        nextMark = now - now % MARK_MILLIS + MARK_MILLIS;
+    }
+
+    /**
+     * Get the number of changes made up to a time.
+     *
+     * @param time the time, in milliseconds since the epoch
+     * @return the number of changes in the history at that time
+     * @throws IllegalArgumentException if the time is before the server started
+     */
+    int changesAt(long time) {
+        if (time < startTime) {
+            throw new IllegalArgumentException("There is no history before the server started");
+        }
+        int size = history.size();
+        synchronized (this) {
+            int low = 0, high = marks;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (markTimes[mid] <= time) low = mid + 1; else high = mid;
+            }
+            // Nothing was added between the end of the last mark's interval and the next mark
+            if (low == marks) return size;
+            return markChanges[low];
+        }
+    }
+
+    /**
+     * Rebuild the board as it was at a time.
+     *
+     * @param time the time, in milliseconds since the epoch
+     * @return a new board
+     * @throws IllegalArgumentException if the time is before the server started
+     */
+    PlaceBoard boardAt(long time) {
+        return boardAfter(changesAt(time));
+    }
+
+    /**
+     * Rebuild the board as it was after a change.
+     *
+     * @param seq the sequence number of the change
+     * @return a new board
+     */
+    PlaceBoard boardAtSequence(long seq) {
+        return boardAfter(history.changesThrough(seq), seq);
+    }
+
+    /**
+     * Rebuild the board as it was after the first changes in the history.
+     *
+     * @param changes the number of changes
+     * @return a new board sharing the server's user table
+     */
+    PlaceBoard boardAfter(int changes) {
+        return boardAfter(changes, Long.MAX_VALUE);
+    }
+
+    /**
+     * Rebuild the board as it was after the first changes in the history,
+     * leaving out those with higher sequence numbers.
+     */
+    private PlaceBoard boardAfter(int changes, long seq) {
+        PlaceBoard board = new PlaceBoard(start.DIM, start.getUsers());
+        int chunks = start.getChunks();
+        IntStream.range(0, chunks * chunks).parallel()
+                .forEach(i -> rebuild(board, i / chunks, i % chunks, changes, seq));
+        return board;
+    }
+
+    /**
+     * Rebuild one chunk of a board.  Different chunks may be rebuilt at once.
+     */
+    private void rebuild(PlaceBoard board, int chunkRow, int chunkCol, int changes, long seq) {
+        int[] latest = history.latestAmong(chunkRow, chunkCol, changes, seq);
+        if (latest == null && !start.isAllocated(chunkRow, chunkCol)) return;
+        byte[] colors = new byte[PlaceBoard.CHUNK_SIZE];
+        int[] owners = new int[PlaceBoard.CHUNK_SIZE];
+        long[] times = new long[PlaceBoard.CHUNK_SIZE];
+        int top = chunkRow << PlaceBoard.CHUNK_SHIFT, left = chunkCol << PlaceBoard.CHUNK_SHIFT;
+        for (int row = 0; row < Math.min(PlaceBoard.CHUNK_SIZE, board.DIM - top); row++) {
+            start.copyChunkRow(chunkRow, chunkCol, row, colors, owners, times);
+            for (int col = 0; col < Math.min(PlaceBoard.CHUNK_SIZE, board.DIM - left); col++) {
+                int change = latest == null ? -1 : latest[(row << PlaceBoard.CHUNK_SHIFT) | col];
+                if (change < 0) {
+                    board.setTile(top + row, left + col, colors[col], owners[col], times[col]);
+                } else {
+                    history.applyTo(change, board);
+                }
+            }
+        }
+    }
+}